@@ -25,45 +25,68 @@ public class Config {
 	// C O N S T R U C T O R 
 	
 	private static final Map<ConfigKey, String> config= new HashMap<ConfigKey, String>();
+	/** Configuration in resources providing the values of keys missing from the user's configuration */
+	private static final String DEFAULT_CONFIG= "black_on_white";
 
 	public Config(String source) throws IOException, InvalidConfigException {
 		
 		new Xterm256();
 		
-		String RawConfigFile= Config.getConfigFileAsString(source).replaceAll("\t", " ").toLowerCase();
+		Map<ConfigKey, String> parsed= parseConfig(Config.getConfigFileAsString(source));
+		config.clear();
+		config.putAll(parsed);
+
+		// Keys added in later versions are missing from older configuration files: Use the default
+		Map<ConfigKey, String> defaults= null;
+		for(ConfigKey key : ConfigKey.values()){
+			if( ! config.containsKey(key)){
+				if(defaults == null){
+					defaults= parseConfig(Config.getConfigFileAsString(DEFAULT_CONFIG));
+				}
+				if( ! defaults.containsKey(key)){
+					System.err.println("Missing configuration key: " + key);
+					throw new InvalidConfigException();
+				}
+				config.put(key, defaults.get(key));
+			}
+		}
+		try {
+			colorNameToInt();
+		} catch (InvalidColourException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// M E T H O D S
+
+	/** Parse the content of a configuration file to key-value pairs.
+	 * */
+	private static Map<ConfigKey, String> parseConfig(String rawConfigFile) throws InvalidConfigException{
+
+		Map<ConfigKey, String> parsed= new HashMap<ConfigKey, String>();
+
+		// Keys are case insensitive. Values are left as they are since they may be file paths.
+		rawConfigFile= rawConfigFile.replaceAll("\t", " ");
 		
 		// This will give one string per line
-		List<String> raw= Splitter.on("\n").omitEmptyStrings().trimResults().splitToList(RawConfigFile);
+		List<String> raw= Splitter.on("\n").omitEmptyStrings().trimResults().splitToList(rawConfigFile);
 
-		//List<String> config= new ArrayList<String>();
 		for(String x : raw){
 			x= x.replaceAll("#.*", "").trim();
 			if( ! x.isEmpty()){
 				List<String> keyValuePair= Splitter.on(" ").omitEmptyStrings().trimResults().splitToList(x);
-				if(ConfigKey.getValues().contains(keyValuePair.get(0))){
-					config.put(ConfigKey.valueOf(keyValuePair.get(0)), keyValuePair.get(1));
+				String key= keyValuePair.get(0).toLowerCase();
+				if(ConfigKey.getValues().contains(key)){
+					parsed.put(ConfigKey.valueOf(key), keyValuePair.get(1));
 				} else {
 					System.err.println("Unrecognized configuration key: " + keyValuePair.get(0));
-					// throw new RuntimeException();
 					throw new InvalidConfigException();
 				}
 			}
 		}
-		// Check all fields have been populated
-		for(ConfigKey key : ConfigKey.values()){
-			if( ! config.containsKey(key)){
-				System.err.println("Missing configuration key: " + key);
-				throw new InvalidConfigException();
-			}
-		}
-		try {
-			colorNameToInt();
-		} catch (InvalidColourException e) {
-			e.printStackTrace();
-		}
+		return parsed;
 	}
 
-	// M E T H O D S
 	public static String help(){
 		List<String> help= new ArrayList<String>();
 		for(ConfigKey key : ConfigKey.values()){
@@ -39,7 +39,18 @@ public enum ConfigKey {
 	shade_structural_variant("Background colour for reads suggesting structural variation"), 
 	highlight_mid_char("Highlight mid-character in read tracks?"), 
 	nucs_as_letters("Show read nucleotides as letters at single base resolution?"),
-	show_soft_clip("NOT IN USE YET - Show soft clipped bases in read tracks?");
+	show_soft_clip("NOT IN USE YET - Show soft clipped bases in read tracks?"),
+	cache_dir("Directory for files cached across sessions"),
+	tmp_dir("Directory for temporary files of sorting. 'default' for the system temporary directory"),
+	coverage_cache("Cache coverage of bam files in cache_dir for fast zoom out?"),
+	bedgraph_cache("Cache bedGraph files in cache_dir for fast zoom out?"),
+	pileup_cache_mb("Max memory in MB to cache read pileup of each bam track"),
+	feature_cache_mb("Max memory in MB to cache features of each interval feature track. 0 to disable"),
+	sorted_bam_cache_mb("Max disk space in MB for sorted copies of sam and bam files without index in cache_dir. 0 to disable"),
+	tabix_cache_mb("Max disk space in MB for indexed copies of interval files without tabix index in cache_dir. 0 to disable"),
+	csi_index("Always create CSI indexes rather than tbi/bai? CSI is used anyway for positions beyond 2^29"),
+	csi_min_shift("Size of the smallest bins of CSI indexes as power of 2"),
+	csi_depth("Number of levels of bins of CSI indexes. 0 to choose automatically");
 	
 	private String value;
 
@@ -82,6 +93,9 @@ public enum ConfigKey {
 		booleanKeys.add(ConfigKey.highlight_mid_char);
 		booleanKeys.add(ConfigKey.nucs_as_letters);
 		booleanKeys.add(ConfigKey.show_soft_clip);
+		booleanKeys.add(ConfigKey.coverage_cache);
+		booleanKeys.add(ConfigKey.bedgraph_cache);
+		booleanKeys.add(ConfigKey.csi_index);
 		return booleanKeys;
 	}
 	
@@ -89,6 +103,12 @@ public enum ConfigKey {
 		Set<ConfigKey> integerKeys= new HashSet<ConfigKey>();
 		integerKeys.add(ConfigKey.max_reads_in_stack);
 		integerKeys.add(ConfigKey.shade_baseq);
+		integerKeys.add(ConfigKey.pileup_cache_mb);
+		integerKeys.add(ConfigKey.feature_cache_mb);
+		integerKeys.add(ConfigKey.sorted_bam_cache_mb);
+		integerKeys.add(ConfigKey.tabix_cache_mb);
+		integerKeys.add(ConfigKey.csi_min_shift);
+		integerKeys.add(ConfigKey.csi_depth);
 		return integerKeys;
 	}
 	
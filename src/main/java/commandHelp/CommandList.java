@@ -821,7 +821,8 @@ public class CommandList {
 				+ "\n"
 				+ "* :code:`na` Scale tracks to their individual min and/or max\n"
 				+ "\n"
-				+ "* :code:`min` and :code:`max` Set to the min and max of **all** tracks.\n"
+				+ "* :code:`min` and :code:`max` Set to the min and max of **all** tracks. For bedGraph tracks "
+				+ "all the data columns are included, so the limits do not change with :code:`dataCol`\n"
 				+ "\n"
 				+ ":code:`-v` Invert selection: apply changes to the tracks not selected by list of track_regex\n"
 				+ "\n"
@@ -1132,6 +1133,21 @@ public class CommandList {
 				+ "Use single quotes to define patterns containing spaces, e.g. :code:`-grep 'goto chr1'`.");
 		cmdList.add(cmd);
 		
+		cmd= new CommandHelp();
+		cmd.setName("cacheInfo"); cmd.setArgs("[-clear]"); cmd.inSection= Section.GENERAL; 
+		cmd.setBriefDescription("List files cached across sessions. ");
+		cmd.setAdditionalDescription("Files in :code:`cache_dir` are sorted and indexed copies of "
+				+ "sam/bam and interval files opened without index, and coverage caches of bam and bedGraph files. "
+				+ "Files used by the current tracks are marked with *. Least recently used files are deleted "
+				+ "when the cache exceeds the limits set by :code:`sorted_bam_cache_mb` and "
+				+ ":code:`tabix_cache_mb` (see :code:`setConfig`). "
+				+ "For pileup tracks, the number of pileup tiles found in the in-memory cache and read from file "
+				+ "is also shown. The size of this cache is set by :code:`pileup_cache_mb`.\n"
+				+ "\n"
+				+ "* :code:`-clear` Delete the cached files not in use. Files used in the last 10 minutes, "
+				+ "possibly by another session, are kept.");
+		cmdList.add(cmd);
+		
 		cmd= new CommandHelp();
 		cmd.setName("open"); cmd.setArgs("[files | URLs | indexes]..."); cmd.inSection= Section.GENERAL; 
 		cmd.setBriefDescription("Add tracks from local or remote files. ");
@@ -1414,6 +1430,7 @@ public class CommandList {
 		paramList.add("open");
 		paramList.add("reload");
 		paramList.add("recentlyOpened");
+		paramList.add("cacheInfo");
 		paramList.add("dropTracks");
 		paramList.add("orderTracks");
 		paramList.add("posHistory");
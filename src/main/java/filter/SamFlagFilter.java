@@ -0,0 +1,97 @@
+package filter;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.filter.SamRecordFilter;
+
+/**
+ * Sam flag and mapping quality filters compiled in a single predicate: A mask of
+ * required bits, a mask of forbidden bits and a minimum mapping quality.
+ * Same as the filters from FlagToFilter.flagToFilterList(f, F) plus MappingQualityFilter(mapq),
+ * including bit 4096 for reads from the top strand, but it only needs the flag and the
+ * mapping quality so it can be tested without decoding the rest of the record.
+ */
+public class SamFlagFilter implements SamRecordFilter {
+
+	/** Not a real sam flag, see ReadFromTopStrandFilter */
+	public static final int TOP_STRAND_FLAG= 4096;
+
+	private final int requiredFlags;
+	private final int forbiddenFlags;
+	private final int minMapq;
+
+	/**
+	 * @param f_incl Keep reads with all these bits set, as samtools view -f
+	 * @param F_excl Discard reads with any of these bits set, as samtools view -F
+	 * @param mapq Discard reads with mapping quality below this, as samtools view -q
+	 */
+	public SamFlagFilter(int f_incl, int F_excl, int mapq) {
+		this.requiredFlags= f_incl;
+		this.forbiddenFlags= F_excl;
+		this.minMapq= mapq;
+	}
+
+	/**
+	 * @return true if a record with these flag and mapping quality passes the filter.
+	 */
+	public boolean pass(int flags, int mapq){
+		if((flags & this.requiredFlags & ~TOP_STRAND_FLAG) != (this.requiredFlags & ~TOP_STRAND_FLAG) ||
+		   (flags & this.forbiddenFlags & ~TOP_STRAND_FLAG) != 0 ||
+		   mapq < this.minMapq){
+			return false;
+		}
+		if(((this.requiredFlags | this.forbiddenFlags) & TOP_STRAND_FLAG) != 0){
+			boolean isTopStrand= isTopStrand(flags);
+			if((this.requiredFlags & TOP_STRAND_FLAG) != 0 && ! isTopStrand){
+				return false;
+			}
+			if((this.forbiddenFlags & TOP_STRAND_FLAG) != 0 && isTopStrand){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Same as in ReadFromTopStrandFilter: +ve unpaired, +ve 1st in pair or -ve 2nd in pair.
+	 * */
+	private static boolean isTopStrand(int flags){
+		boolean isNegative= (flags & 16) != 0;
+		boolean isPaired= (flags & 1) != 0;
+		return (! isNegative && ! isPaired) ||
+			   (! isNegative && isPaired && (flags & 64) != 0) ||
+			   (isNegative && isPaired && (flags & 128) != 0);
+	}
+
+	/**
+	 * @return Filter passing only the records passing both this and the other filter.
+	 */
+	public SamFlagFilter and(SamFlagFilter other){
+		return new SamFlagFilter(this.requiredFlags | other.requiredFlags,
+				this.forbiddenFlags | other.forbiddenFlags,
+				Math.max(this.minMapq, other.minMapq));
+	}
+
+    /**
+     * Determines whether a SAMRecord matches this filter
+     *
+     * @param record the SAMRecord to evaluate
+     *
+     * @return true if the SAMRecord matches the filter, otherwise false
+     */
+	@Override
+	public boolean filterOut(final SAMRecord record) {
+		return ! this.pass(record.getFlags(), record.getMappingQuality());
+	}
+
+    /**
+     * Determines whether a pair of SAMRecord matches this filter
+     *
+     * @param first  the first SAMRecord to evaluate
+     * @param second the second SAMRecord to evaluate
+     *
+     * @return true if the SAMRecords matches the filter, otherwise false
+     */
+	@Override
+	public boolean filterOut(final SAMRecord first, final SAMRecord second) {
+		return this.filterOut(first) || this.filterOut(second);
+	}
+}
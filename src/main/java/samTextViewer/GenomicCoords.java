@@ -60,6 +60,7 @@ public class GenomicCoords implements Cloneable {
 	public boolean isSingleBaseResolution= false;
 	private int terminalWidth;
 	private List<Double> mapping;
+	private ScreenMapping screenMapping;
 	
 	/* Constructors */
 	public GenomicCoords(String region, int terminalWidth, SAMSequenceDictionary samSeqDict, String fastaFile, boolean verbose) throws InvalidGenomicCoordsException, IOException{
@@ -121,6 +122,7 @@ public class GenomicCoords implements Cloneable {
 		this.setSingleBaseResolution(); // True if one text character corresponds to 1 bp
 		this.setRefSeq();
 		this.mapping= this.seqFromToLenOut(this.getTerminalWidth());
+		this.screenMapping= this.mapping == null ? null : new ScreenMapping(this.mapping);
 	}
 	
 	/* Methods */
@@ -987,6 +989,11 @@ public class GenomicCoords implements Cloneable {
 	public List<Double> getMapping() {
 		return this.mapping;
 	}
+
+	/** Same as getMapping() with methods to map genomic positions to screen columns. */
+	public ScreenMapping getScreenMapping() {
+		return this.screenMapping;
+	}
 	
 	/** Map using this.getUserWindowSize() as window size. Consider using 
 	 * getMapping(int size) to avoid computing the terminal width for each call. */
@@ -139,6 +139,11 @@ public class InteractiveInput {
 					System.out.println(opened);
 					this.interactiveInputExitCode= ExitCode.CLEAN_NO_FLUSH;
 				
+				} else if(cmdTokens.get(0).equals("cacheInfo")) {
+					String cache= Utils.padEndMultiLine(proc.getTrackSet().showCache(cmdTokens), proc.getWindowSize());
+					System.out.println(cache);
+					this.interactiveInputExitCode= ExitCode.CLEAN_NO_FLUSH;
+				
 				} else if(cmdTokens.get(0).equals("setConfig")) {
 					try{
 						this.setConfigOpt(cmdTokens);
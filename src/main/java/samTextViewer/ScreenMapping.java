@@ -0,0 +1,106 @@
+package samTextViewer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Immutable mapping of genomic positions to the columns of the screen. Column i shows
+ * position getPosition(i) and any position is shown in the column with the closest position.
+ * Positions are kept in a primitive array so that mapping a position costs a binary
+ * search, without boxing or copying the mapping.
+ * */
+public class ScreenMapping {
+
+	private final double[] positions;
+	/** First integer genomic position shown in each column, except column 0 which extends to the left. */
+	private final int[] columnStart;
+	private final List<Double> asList;
+
+	/* C o n s t r u c t o r */
+
+	/** @param positions Genomic position of each screen column, sorted. E.g. from GenomicCoords.getMapping().
+	 * */
+	public ScreenMapping(List<Double> positions){
+		if(positions == null || positions.size() == 0){
+			throw new IllegalArgumentException("Screen mapping must have at least one column");
+		}
+		this.positions= new double[positions.size()];
+		for(int i= 0; i < this.positions.length; i++){
+			this.positions[i]= positions.get(i);
+		}
+		this.asList= Collections.unmodifiableList(new ArrayList<Double>(positions));
+		this.columnStart= new int[this.positions.length];
+		for(int i= 1; i < this.positions.length; i++){
+			// Start from the midpoint and adjust, so boundaries agree exactly with getColumn()
+			double mid= (this.positions[i-1] + this.positions[i]) / 2.0;
+			int start= (int) Math.max(Integer.MIN_VALUE + 1, Math.min(Integer.MAX_VALUE - 1, Math.ceil(mid)));
+			while(this.getColumn(start - 1) >= i){
+				start--;
+			}
+			while(this.getColumn(start) < i){
+				start++;
+			}
+			this.columnStart[i]= start;
+		}
+	}
+
+	/* M e t h o d s */
+
+	/** Number of screen columns */
+	public int size(){
+		return this.positions.length;
+	}
+
+	/** Genomic position shown in this column */
+	public double getPosition(int column){
+		return this.positions[column];
+	}
+
+	/** Column closest to the genomic position. Positions before the first column or after
+	 * the last one go to the first and last column, respectively. When a position is half way
+	 * between two columns the right one is returned.
+	 * */
+	public int getColumn(double genomePos){
+		return Utils.getIndexOfclosestValue(genomePos, this.positions);
+	}
+
+	/** First and last column spanned by the genomic interval from-to or null if the interval
+	 * is entirely outside the screen.
+	 * */
+	public int[] getColumnSpan(double from, double to){
+		if(to < this.positions[0] || from > this.positions[this.positions.length - 1]){
+			return null;
+		}
+		return new int[] {this.getColumn(from), this.getColumn(to)};
+	}
+
+	/** First integer genomic position shown in this column, so that the column shows the positions
+	 * from getColumnStart(column) to getColumnStart(column + 1) - 1, in agreement with getColumn(). 
+	 * Column 0 starts at the first mapped position and column size() is the position after the
+	 * last mapped one, so that the columns span the mapped window.
+	 * */
+	public int getColumnStart(int column){
+		if(column == 0){
+			return (int) Math.ceil(this.positions[0]);
+		}
+		if(column == this.positions.length){
+			return (int) Math.floor(this.positions[this.positions.length - 1]) + 1;
+		}
+		return this.columnStart[column];
+	}
+
+	/** Number of integer genomic positions in from-to, 1-based and included, that are
+	 * shown in this column.
+	 * */
+	public int countPositionsInColumn(int column, int from, int to){
+		long colFrom= column == 0 ? Long.MIN_VALUE : this.columnStart[column];
+		long colTo= column == this.positions.length - 1 ? Long.MAX_VALUE : this.columnStart[column + 1] - 1L;
+		long n= Math.min(colTo, to) - Math.max(colFrom, from) + 1;
+		return n > 0 ? (int) n : 0;
+	}
+
+	/** Positions of the columns as in GenomicCoords.getMapping(). The list is read-only. */
+	public List<Double> asList(){
+		return this.asList;
+	}
+}
@@ -70,15 +70,14 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import coloring.Config;
+import coloring.ConfigKey;
 import exceptions.InvalidColourException;
 import exceptions.InvalidCommandLineException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
 import faidx.Faidx;
 import faidx.UnindexableFastaFileException;
-import htsjdk.samtools.SAMFileHeader.SortOrder;
-import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMSequenceDictionary;
@@ -94,7 +93,6 @@ import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.tribble.AbstractFeatureReader;
 import htsjdk.tribble.index.tabix.TabixFormat;
 import htsjdk.tribble.readers.LineIterator;
-import htsjdk.tribble.readers.TabixReader;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
@@ -104,6 +102,8 @@ import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
 import htsjdk.variant.vcf.VCFHeaderLine;
 import htsjdk.variant.vcf.VCFHeaderVersion;
+import sortBgzipIndex.SamSorter;
+import sortBgzipIndex.TabixCsiReader;
 import tracks.IntervalFeature;
 import tracks.Track;
 import tracks.TrackFormat;
@@ -123,6 +123,19 @@ public class Utils {
 	    return bd.doubleValue();
 	}
 	
+	/** Directory for temporary files of sorting, as set by tmp_dir. The system's tmp dir 
+	 * if tmp_dir is not set or it is 'default'. The directory is created if it does not exist. 
+	 * */
+	public static File getTmpDir(){
+		String x= Config.get(ConfigKey.tmp_dir);
+		if(x == null || x.equals("default")){
+			return new File(System.getProperty("java.io.tmpdir"));
+		}
+		File tmpDir= new File(tildeToHomeDir(x));
+		tmpDir.mkdirs();
+		return tmpDir;
+	}
+
 	/**Create temp file in the current working directory or in the system's
 	 * tmp dir if failing to create in cwd.*/
 	public static File createTempFile(String prefix, String suffix, boolean deleteOnExit){
@@ -460,7 +473,7 @@ public class Utils {
 		}
 		
 		try{
-			TabixReader tabixReader= new TabixReader(fileName);
+			TabixCsiReader tabixReader= new TabixCsiReader(fileName);
 			tabixReader.readLine();
 			tabixReader.close();
 			return true;
@@ -1048,7 +1061,7 @@ public class Utils {
 			return mapping.size()-1;
 		}
 		
-		int closest= Arrays.binarySearch(mapping.toArray(new Double[mapping.size()]), (double)genomePos);
+		int closest= Collections.binarySearch(mapping, (double)genomePos);
 		if(closest < 0){
 			// If < 0 the value is not found in the list and binarySearch returns the insertion point.
 			// See binarySearch docs. We need to convert the insertion point to the closest value.
@@ -1080,6 +1093,29 @@ public class Utils {
 //		}
 //		return closest;
 	}
+
+	/** As getIndexOfclosestValue(double, List<Double>) for a primitive array, e.g. from ScreenMapping.
+	 * */
+	public static int getIndexOfclosestValue(double genomePos, double[] mapping){
+		if(genomePos <= mapping[0]){
+			return 0;
+		}
+		if(genomePos >= mapping[mapping.length-1]){
+			return mapping.length-1;
+		}
+		int closest= Arrays.binarySearch(mapping, genomePos);
+		if(closest < 0){
+			int insertionPoint= -(closest + 1);
+			double leftDiff= genomePos - mapping[insertionPoint - 1];
+			double rightDiff= mapping[insertionPoint] - genomePos;
+			if(leftDiff < rightDiff){
+				return insertionPoint - 1;
+			} else {
+				return insertionPoint;
+			}
+		}
+		return closest;
+	}
 	
 	/** Return true  */
 	public static boolean allIsNaN(Iterable<Double> x){
@@ -2175,24 +2211,18 @@ public class Utils {
 		}
 		/*  ------------------------------------------------------ */
 		
-		samReader.getFileHeader().setSortOrder(SortOrder.coordinate);
-		
 		File out= new File(sortedBam);
 		if(deleteOnExit){
 			out.deleteOnExit();
-			File idx= new File(out.getAbsolutePath().replaceAll("\\.bam$", "") + ".bai");
-			idx.deleteOnExit();
+			SamSorter.getBaiFile(out).deleteOnExit();
+			SamSorter.getCsiFile(out).deleteOnExit();
 		}
 		
-		SAMFileWriter outputSam= new SAMFileWriterFactory()
-				.setCreateIndex(true)
-				.makeSAMOrBAMWriter(samReader.getFileHeader(), false, out);
-
-		for (final SAMRecord samRecord : samReader) {
-			outputSam.addAlignment(samRecord);
-        }
-		samReader.close();
-		outputSam.close();
+		try{
+			new SamSorter(getTmpDir()).sortAndIndex(samReader, out);
+		} finally {
+			samReader.close();
+		}
 	}
 
 	/**True if SAM read names are equal. Read name strings are parsed to remove
@@ -0,0 +1,420 @@
+package sortBgzipIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import coloring.Config;
+import coloring.ConfigKey;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.util.LittleEndianOutputStream;
+import samTextViewer.Utils;
+
+/** Build a CSI index for a BGZF file, either tab separated text or bam. Unlike tbi and bai indexes,
+ * which cannot address positions beyond 2^29, CSI has configurable min-shift, the size of the smallest
+ * bins, and depth, the number of levels of bins. Records must be added in sorted order, each with the
+ * virtual file pointer where it starts. See https://samtools.github.io/hts-specs/CSIv1.pdf
+ * */
+class CsiIndexCreator {
+
+	protected static final int DEFAULT_MIN_SHIFT= 14;
+	/** Positions must be less than this to be indexed by tbi or bai */
+	protected static final int MAX_TBI_POSITION= 1 << 29;
+	/** Max position addressable when depth is chosen automatically, as in htslib */
+	private static final long DEFAULT_MAX_POSITION= 1L << 31;
+	private static final long UNSET= -1;
+
+	private final int minShift;
+	private final int depth;
+	private final long maxPosition;
+	private final byte[] aux;
+	/** For text files: Format to store in the aux field together with the sequence names */
+	private TabixFormat tabixFormat;
+	private final List<RefIndex> refs= new ArrayList<RefIndex>();
+	/** For text files: Sequence names in order of appearance with their index */
+	private final Map<String, Integer> nameToTid= new HashMap<String, Integer>();
+	private final List<String> names= new ArrayList<String>();
+	private long nNoCoordinate= 0;
+
+	private int lastTid= -1;
+	private int lastBeg= -1;
+	/** Current run of consecutive records in the same bin */
+	private int runTid= -1;
+	private int runBin= -1;
+	private long runStart= UNSET;
+
+	/* C o n s t r u c t o r */
+
+	/**
+	 * @param minShift Size of the smallest bins as power of 2.
+	 * @param depth Number of levels of bins. If less than 1, choose the smallest depth that
+	 * addresses maxPosition.
+	 * @param maxPosition Length of the longest sequence, if known. If less than 1, use 2^31.
+	 * @param aux Auxiliary data to store in the index, e.g. the tabix header, or null.
+	 * */
+	protected CsiIndexCreator(int minShift, int depth, long maxPosition, byte[] aux){
+		if(minShift < 1 || minShift > 30){
+			throw new IllegalArgumentException("Invalid CSI min shift: " + minShift);
+		}
+		if(maxPosition < 1){
+			maxPosition= DEFAULT_MAX_POSITION;
+		}
+		if(depth < 1){
+			depth= 1;
+			while(minShift + 3 * depth < 63 && (1L << (minShift + 3 * depth)) < maxPosition){
+				depth++;
+			}
+		}
+		if(minShift + 3 * depth > 62 || depth > 9){
+			throw new IllegalArgumentException("Invalid CSI depth: " + depth);
+		}
+		this.minShift= minShift;
+		this.depth= depth;
+		this.maxPosition= 1L << (minShift + 3 * depth);
+		this.aux= aux == null ? new byte[0] : aux;
+	}
+
+	/** Creator for a tab separated file of format fmt. Min shift and depth are taken from
+	 * the configuration.
+	 * */
+	protected static CsiIndexCreator forTabix(TabixFormat fmt){
+		CsiIndexCreator creator= new CsiIndexCreator(getConfiguredMinShift(), getConfiguredDepth(), 0, null);
+		creator.tabixFormat= fmt;
+		return creator;
+	}
+
+	/** Creator for a bam file where the longest sequence is maxSequenceLength. Min shift and
+	 * depth are taken from the configuration.
+	 * */
+	protected static CsiIndexCreator forBam(long maxSequenceLength){
+		// As samtools, leave some room for reads extending past the end of sequence
+		return new CsiIndexCreator(getConfiguredMinShift(), getConfiguredDepth(), maxSequenceLength + 256, null);
+	}
+
+	/* M e t h o d s */
+
+	/** True if the configuration asks for CSI indexes even when tbi or bai would do.
+	 * */
+	protected static boolean isCsiPreferred(){
+		String x= Config.get(ConfigKey.csi_index);
+		return x != null && Utils.asBoolean(x);
+	}
+
+	private static int getConfiguredMinShift(){
+		String x= Config.get(ConfigKey.csi_min_shift);
+		return x == null ? DEFAULT_MIN_SHIFT : Integer.parseInt(x);
+	}
+
+	private static int getConfiguredDepth(){
+		String x= Config.get(ConfigKey.csi_depth);
+		return x == null ? 0 : Integer.parseInt(x);
+	}
+
+	protected int getMinShift(){
+		return this.minShift;
+	}
+
+	protected int getDepth(){
+		return this.depth;
+	}
+
+	/** Add a feature from a text file starting at the given virtual file pointer. Features must be
+	 * sorted by position and features on the same sequence must be contiguous, otherwise 
+	 * RecordsOutOfOrderException is thrown.
+	 * */
+	protected void addFeature(Feature feature, long filePosition){
+		Integer tid= this.nameToTid.get(feature.getContig());
+		if(tid == null){
+			tid= this.names.size();
+			this.nameToTid.put(feature.getContig(), tid);
+			this.names.add(feature.getContig());
+		} else if(tid != this.lastTid){
+			throw new RecordsOutOfOrderException("Features on sequence " + feature.getContig() + " are not contiguous");
+		}
+		this.addRecord(tid, feature.getStart() - 1, feature.getEnd(), true, filePosition);
+	}
+
+	/** Add a record starting at the given virtual file pointer.
+	 * @param tid Index of the sequence or -1 for records without coordinates, which must come last.
+	 * @param beg 0-based start
+	 * @param end 0-based end, exclusive
+	 * @param isMapped False for unmapped reads placed next to their mate.
+	 * */
+	protected void addRecord(int tid, int beg, int end, boolean isMapped, long filePosition){
+		if(tid < 0){
+			this.closeRun(filePosition);
+			if(this.lastTid >= 0){
+				this.refs.get(this.lastTid).offEnd= filePosition;
+			}
+			this.lastTid= Integer.MAX_VALUE;
+			this.nNoCoordinate++;
+			return;
+		}
+		if(tid < this.lastTid || (tid == this.lastTid && beg < this.lastBeg)){
+			throw new RecordsOutOfOrderException("Records not sorted by position: previous ("
+					+ this.lastTid + ":" + this.lastBeg + ") > next (" + tid + ":" + beg + ")");
+		}
+		if(end <= beg){
+			end= beg + 1;
+		}
+		if(end > this.maxPosition){
+			throw new IllegalArgumentException("Position " + end + " is beyond the maximum position "
+					+ this.maxPosition + " addressable with CSI min shift " + this.minShift + " and depth " + this.depth);
+		}
+		if(tid != this.lastTid && this.lastTid >= 0){
+			this.refs.get(this.lastTid).offEnd= filePosition;
+		}
+		while(this.refs.size() <= tid){
+			this.refs.add(new RefIndex());
+		}
+		RefIndex ref= this.refs.get(tid);
+		if(ref.offBeg == UNSET){
+			ref.offBeg= filePosition;
+		}
+		if(isMapped){
+			ref.nMapped++;
+		} else {
+			ref.nUnmapped++;
+		}
+		ref.setLinear(beg >> this.minShift, (end - 1) >> this.minShift, filePosition);
+
+		int bin= this.reg2bin(beg, end);
+		if(tid != this.runTid || bin != this.runBin){
+			this.closeRun(filePosition);
+			this.runTid= tid;
+			this.runBin= bin;
+			this.runStart= filePosition;
+		}
+		this.lastTid= tid;
+		this.lastBeg= beg;
+	}
+
+	/** Complete the index. finalFilePosition is the virtual file pointer at the end of the last record.
+	 * */
+	protected void finalizeIndex(long finalFilePosition){
+		this.closeRun(finalFilePosition);
+		if(this.lastTid >= 0 && this.lastTid < this.refs.size()){
+			this.refs.get(this.lastTid).offEnd= finalFilePosition;
+		}
+		this.lastTid= Integer.MAX_VALUE;
+	}
+
+	private void closeRun(long filePosition){
+		if(this.runBin >= 0){
+			this.refs.get(this.runTid).addChunk(this.runBin, this.runStart, filePosition);
+		}
+		this.runBin= -1;
+		this.runTid= -1;
+	}
+
+	/** Write the index to file, block compressed.
+	 * */
+	protected void write(File csi) throws IOException{
+		byte[] auxData= this.aux;
+		if(this.tabixFormat != null){
+			auxData= this.getTabixAux();
+		}
+		LittleEndianOutputStream out= new LittleEndianOutputStream(new BlockCompressedOutputStream(csi));
+		try{
+			out.write(new byte[] {'C', 'S', 'I', 1});
+			out.writeInt(this.minShift);
+			out.writeInt(this.depth);
+			out.writeInt(auxData.length);
+			out.write(auxData);
+			int nRef= Math.max(this.refs.size(), this.names.size());
+			out.writeInt(nRef);
+			for(int tid= 0; tid < nRef; tid++){
+				RefIndex ref= tid < this.refs.size() ? this.refs.get(tid) : new RefIndex();
+				this.writeRef(out, ref);
+			}
+			out.writeLong(this.nNoCoordinate);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeRef(LittleEndianOutputStream out, RefIndex ref) throws IOException{
+		ref.fillLinear();
+		boolean hasMeta= ref.offBeg != UNSET;
+		out.writeInt(ref.bins.size() + (hasMeta ? 1 : 0));
+		for(int bin : ref.bins.keySet()){
+			long[] chunks= ref.bins.get(bin);
+			int nChunks= (int) chunks[0];
+			out.writeInt(bin);
+			out.writeLong(ref.getLinear(this.getBinStart(bin) >> this.minShift));
+			out.writeInt(nChunks);
+			for(int i= 1; i <= 2 * nChunks; i++){
+				out.writeLong(chunks[i]);
+			}
+		}
+		if(hasMeta){
+			// Pseudo-bin with the span of this sequence in the file and the number of records
+			out.writeInt(this.getMaxBin() + 1);
+			out.writeLong(0);
+			out.writeInt(2);
+			out.writeLong(ref.offBeg);
+			out.writeLong(ref.offEnd);
+			out.writeLong(ref.nMapped);
+			out.writeLong(ref.nUnmapped);
+		}
+	}
+
+	/** Tabix header as stored in the aux field of CSI: format, columns, meta character,
+	 * lines to skip and sequence names.
+	 * */
+	private byte[] getTabixAux() throws IOException{
+		ByteArrayOutputStream nm= new ByteArrayOutputStream();
+		for(String name : this.names){
+			nm.write(name.getBytes(StandardCharsets.UTF_8));
+			nm.write(0);
+		}
+		ByteArrayOutputStream bytes= new ByteArrayOutputStream();
+		LittleEndianOutputStream out= new LittleEndianOutputStream(bytes);
+		out.writeInt(this.tabixFormat.flags);
+		out.writeInt(this.tabixFormat.sequenceColumn);
+		out.writeInt(this.tabixFormat.startPositionColumn);
+		out.writeInt(this.tabixFormat.endPositionColumn);
+		out.writeInt(this.tabixFormat.metaCharacter);
+		out.writeInt(this.tabixFormat.numHeaderLinesToSkip);
+		out.writeInt(nm.size());
+		out.write(nm.toByteArray());
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/** Bin of the smallest interval containing [beg, end). As hts_reg2bin in htslib.
+	 * */
+	protected int reg2bin(long beg, long end){
+		return reg2bin(beg, end, this.minShift, this.depth);
+	}
+
+	protected static int reg2bin(long beg, long end, int minShift, int depth){
+		end--;
+		int s= minShift;
+		int t= ((1 << (3 * depth)) - 1) / 7;
+		for(int l= depth; l > 0; l--){
+			if(beg >> s == end >> s){
+				return (int) (t + (beg >> s));
+			}
+			s += 3;
+			t -= 1 << (3 * (l - 1));
+		}
+		return 0;
+	}
+
+	/** All the bins overlapping [beg, end). As reg2bins in htslib.
+	 * */
+	protected static List<Integer> reg2bins(long beg, long end, int minShift, int depth){
+		List<Integer> bins= new ArrayList<Integer>();
+		if(beg >= end){
+			return bins;
+		}
+		int s= minShift + 3 * depth;
+		if(end >= 1L << s){
+			end= 1L << s;
+		}
+		end--;
+		int t= 0;
+		for(int l= 0; l <= depth; l++){
+			long b= t + (beg >> s);
+			long e= t + (end >> s);
+			for(long i= b; i <= e; i++){
+				bins.add((int) i);
+			}
+			s -= 3;
+			t += 1 << (3 * l);
+		}
+		return bins;
+	}
+
+	/** First position of this bin */
+	private long getBinStart(int bin){
+		int l= 0;
+		int t= 0;
+		while(bin >= t + (1 << (3 * l))){
+			t += 1 << (3 * l);
+			l++;
+		}
+		return ((long) (bin - t)) << (this.minShift + 3 * (this.depth - l));
+	}
+
+	private int getMaxBin(){
+		return ((1 << (3 * (this.depth + 1))) - 1) / 7;
+	}
+
+	/** Bins and linear index of a sequence */
+	private static class RefIndex {
+		/** Key: bin. Value: Number of chunks followed by start and end of each chunk */
+		private TreeMap<Integer, long[]> bins= new TreeMap<Integer, long[]>();
+		/** File pointer of the first record overlapping each window of size 2^minShift */
+		private long[] linear= new long[0];
+		private long offBeg= UNSET;
+		private long offEnd= UNSET;
+		private long nMapped= 0;
+		private long nUnmapped= 0;
+
+		private void addChunk(int bin, long start, long end){
+			long[] chunks= this.bins.get(bin);
+			if(chunks == null){
+				chunks= new long[] {0, 0, 0};
+			}
+			int n= (int) chunks[0];
+			if(n > 0 && chunks[2 * n] == start){
+				// Contiguous with the last chunk: Extend it
+				chunks[2 * n]= end;
+				return;
+			}
+			if(2 * n + 2 >= chunks.length){
+				chunks= Arrays.copyOf(chunks, chunks.length * 2 + 1);
+			}
+			chunks[2 * n + 1]= start;
+			chunks[2 * n + 2]= end;
+			chunks[0]= n + 1;
+			this.bins.put(bin, chunks);
+		}
+
+		private void setLinear(int fromWindow, int toWindow, long filePosition){
+			if(toWindow >= this.linear.length){
+				int n= this.linear.length;
+				this.linear= Arrays.copyOf(this.linear, Math.max(toWindow + 1, n * 2));
+				Arrays.fill(this.linear, n, this.linear.length, UNSET);
+			}
+			for(int i= fromWindow; i <= toWindow; i++){
+				if(this.linear[i] == UNSET){
+					this.linear[i]= filePosition;
+				}
+			}
+		}
+
+		/** Windows without records take the value of the previous window, since no record
+		 * overlapping them can start before. */
+		private void fillLinear(){
+			long prev= 0;
+			for(int i= 0; i < this.linear.length; i++){
+				if(this.linear[i] == UNSET){
+					this.linear[i]= prev;
+				}
+				prev= this.linear[i];
+			}
+		}
+
+		private long getLinear(long window){
+			if(this.linear.length == 0){
+				return 0;
+			}
+			if(window >= this.linear.length){
+				return this.linear[this.linear.length - 1];
+			}
+			return this.linear[(int) window];
+		}
+	}
+}
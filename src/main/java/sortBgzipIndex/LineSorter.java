@@ -0,0 +1,278 @@
+package sortBgzipIndex;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import samTextViewer.Utils;
+
+/** Sort the lines of a tab separated file by chromosome, then start, then end position,
+ * with an external merge sort. Lines are collected in buffers of bounded size. Each full buffer
+ * is sorted and written to a temporary run file by a worker thread while the next buffer is filled.
+ * The sorted lines are returned by merging the runs as the iterator is consumed, so the sorted
+ * output never goes to disk as a whole.
+ * Comment lines, starting with #, are returned first as they are. Reading stops if the line
+ * ##FASTA is found. Empty lines and track lines are skipped.
+ * Lines with same position are returned in input order. Chromosomes are sorted as strings.
+ * */
+class LineSorter implements Iterator<String>, Closeable {
+
+	/** Max number of characters held in memory across all buffers */
+	private static final long MAX_CHARS_IN_RAM= 64 * 1024 * 1024;
+	private static final int N_THREADS= Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private final int chromIdx;
+	private final int posIdx;
+	private final boolean hasEnd;
+	private long bufferChars= MAX_CHARS_IN_RAM / N_THREADS;
+	private final Comparator<SortableLine> comparator= new Comparator<SortableLine>() {
+		@Override
+		public int compare(SortableLine x, SortableLine y) {
+			int cmp= x.chrom.compareTo(y.chrom);
+			if(cmp != 0){
+				return cmp;
+			}
+			cmp= Integer.compare(x.pos, y.pos);
+			if(cmp != 0){
+				return cmp;
+			}
+			cmp= Integer.compare(x.end, y.end);
+			if(cmp != 0){
+				return cmp;
+			}
+			return Long.compare(x.order, y.order);
+		}
+	};
+
+	private List<String> header= new ArrayList<String>();
+	private List<File> runFiles= new ArrayList<File>();
+	private List<BufferedReader> runReaders= new ArrayList<BufferedReader>();
+	private PriorityQueue<SortableLine> heads= new PriorityQueue<SortableLine>(11, this.comparator);
+	/** Lines sorted in memory, used when there is a single buffer */
+	private Iterator<SortableLine> inMemory;
+
+	/* C o n s t r u c t o r */
+
+	/**
+	 * @param chromIdx 1-based index of the chromosome column
+	 * @param posIdx 1-based index of the start column
+	 * @param hasEnd If true, the column after start is the end position and it is used to sort
+	 * lines with same start.
+	 * */
+	protected LineSorter(int chromIdx, int posIdx, boolean hasEnd){
+		this.chromIdx= chromIdx;
+		this.posIdx= posIdx;
+		this.hasEnd= hasEnd;
+	}
+
+	/* M e t h o d s */
+
+	/** Read and sort the input file, a local file, possibly compressed, or a URL.
+	 * The temporary run files go in tmpDir.
+	 * */
+	protected void sort(String unsorted, final File tmpDir) throws IOException{
+
+		ExecutorService executor= Executors.newFixedThreadPool(N_THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t= new Thread(r);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		List<Future<File>> runs= new ArrayList<Future<File>>();
+		try{
+			BufferedReader br= Utils.reader(unsorted);
+			List<SortableLine> buffer= new ArrayList<SortableLine>();
+			long nChars= 0;
+			long order= 0;
+			String line;
+			while((line = br.readLine()) != null){
+				String trimmed= line.trim();
+				if(trimmed.startsWith("##FASTA")){
+					break;
+				}
+				if(trimmed.startsWith("#")){
+					this.header.add(line);
+					continue;
+				}
+				if(trimmed.isEmpty() || trimmed.startsWith("track ")){
+					continue;
+				}
+				buffer.add(this.parse(line, order));
+				order++;
+				nChars += line.length();
+				if(nChars >= this.bufferChars){
+					runs.add(this.submitRun(executor, buffer, tmpDir));
+					buffer= new ArrayList<SortableLine>();
+					nChars= 0;
+					// Memory is bounded by not having more buffers than threads waiting to be written
+					int pending= 0;
+					for(Future<File> run : runs){
+						pending += run.isDone() ? 0 : 1;
+					}
+					for(int i= 0; i < runs.size() && pending >= N_THREADS; i++){
+						if( ! runs.get(i).isDone()){
+							getRun(runs.get(i));
+							pending--;
+						}
+					}
+				}
+			}
+			br.close();
+
+			if(runs.size() == 0){
+				Collections.sort(buffer, this.comparator);
+				this.inMemory= buffer.iterator();
+				return;
+			}
+			if(buffer.size() > 0){
+				runs.add(this.submitRun(executor, buffer, tmpDir));
+			}
+			for(Future<File> run : runs){
+				this.runFiles.add(getRun(run));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		for(File run : this.runFiles){
+			BufferedReader reader= new BufferedReader(new InputStreamReader(new FileInputStream(run), StandardCharsets.UTF_8));
+			this.runReaders.add(reader);
+			this.advance(this.runReaders.size() - 1);
+		}
+	}
+
+	/** Comment lines found in input, in input order.
+	 * */
+	protected List<String> getHeader(){
+		return this.header;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(this.inMemory != null){
+			return this.inMemory.hasNext();
+		}
+		return this.heads.size() > 0;
+	}
+
+	@Override
+	public String next() {
+		if( ! this.hasNext()){
+			throw new NoSuchElementException();
+		}
+		if(this.inMemory != null){
+			return this.inMemory.next().line;
+		}
+		SortableLine head= this.heads.poll();
+		try {
+			this.advance((int) head.order);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return head.line;
+	}
+
+	/** Read the next line of this run and put it in the queue of run heads. In the queue,
+	 * order is the index of the run so that lines with same position keep the input order.
+	 * */
+	private void advance(int run) throws IOException{
+		String line= this.runReaders.get(run).readLine();
+		if(line != null){
+			this.heads.add(this.parse(line, run));
+		}
+	}
+
+	/** Delete temporary files.
+	 * */
+	@Override
+	public void close() throws IOException {
+		for(BufferedReader reader : this.runReaders){
+			reader.close();
+		}
+		for(File run : this.runFiles){
+			run.delete();
+		}
+	}
+
+	private SortableLine parse(String line, long order){
+		String[] tabs= line.split("\t");
+		int end= this.hasEnd ? Integer.parseInt(tabs[this.posIdx]) : 0;
+		return new SortableLine(tabs[this.chromIdx - 1], Integer.parseInt(tabs[this.posIdx - 1]), end, order, line);
+	}
+
+	/** Sort the buffer and write it to a temporary file in a worker thread.
+	 * */
+	private Future<File> submitRun(ExecutorService executor, final List<SortableLine> buffer, final File tmpDir){
+		return executor.submit(new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				Collections.sort(buffer, comparator);
+				File run= File.createTempFile(".asciigenome.", ".run.tmp", tmpDir);
+				run.deleteOnExit();
+				BufferedWriter wr= new BufferedWriter(new OutputStreamWriter(new FileOutputStream(run), StandardCharsets.UTF_8));
+				for(SortableLine x : buffer){
+					wr.write(x.line);
+					wr.write('\n');
+				}
+				wr.close();
+				return run;
+			}
+		});
+	}
+
+	private static File getRun(Future<File> run) throws IOException{
+		try {
+			return run.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/** For testing: Number of characters in each buffer */
+	protected void setBufferChars(long bufferChars){
+		this.bufferChars= bufferChars;
+	}
+
+	private static class SortableLine {
+		private final String chrom;
+		private final int pos;
+		private final int end;
+		/** Position in input, or index of the run file when merging */
+		private final long order;
+		private final String line;
+
+		private SortableLine(String chrom, int pos, int end, long order, String line){
+			this.chrom= chrom;
+			this.pos= pos;
+			this.end= end;
+			this.order= order;
+			this.line= line;
+		}
+	}
+}
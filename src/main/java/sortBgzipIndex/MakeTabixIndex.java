@@ -1,43 +1,30 @@
 package sortBgzipIndex;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedList;
 
-import org.sqlite.SQLiteException;
+import com.google.common.collect.Iterators;
 
 import exceptions.InvalidRecordException;
-import htsjdk.samtools.util.BlockCompressedOutputStream;
 import htsjdk.samtools.util.CloserUtil;
 import htsjdk.samtools.util.FileExtensions;
-import htsjdk.tribble.TribbleException.MalformedFeatureFile;
+import htsjdk.tribble.Feature;
 import htsjdk.tribble.index.Index;
 import htsjdk.tribble.index.tabix.TabixFormat;
 import htsjdk.tribble.index.tabix.TabixIndexCreator;
 import htsjdk.tribble.readers.LineIterator;
-import htsjdk.variant.variantcontext.VariantContext;
-import htsjdk.variant.vcf.VCFCodec;
-import htsjdk.variant.vcf.VCFFileReader;
-import htsjdk.variant.vcf.VCFHeader;
 import samTextViewer.Utils;
-import utils.BedLine;
-import utils.BedLineCodec;
-import utils.GtfLine;
 
 public class MakeTabixIndex {
 
-	private File sqliteFile;
-	
+	/** Number of skipped lines still to be reported */
+	private int nWarnings;
+
 	/** Sort, block compress and index the input with format fmt to the given output file.
 	 * Input is either a local file, possibly compressed, or a URL.
 	 * @throws InvalidRecordException 
@@ -50,16 +37,25 @@ public class MakeTabixIndex {
 		File tmp = Utils.createTempFile(".asciigenome", "makeTabixIndex.tmp.gz", true);
 		File tmpTbi= new File(tmp.getAbsolutePath() + FileExtensions.TABIX_INDEX);
 		tmpTbi.deleteOnExit();
+		File tmpCsi= new File(tmp.getAbsolutePath() + FileExtensions.CSI);
+		tmpCsi.deleteOnExit();
 		
 		try{
 			// Try to block compress and create index assuming the file is sorted
-			blockCompressAndIndex(intab, tmp, fmt);
+			LineIterator lin= utils.IOUtils.openURIForLineIterator(intab);
+			try{
+				blockCompressAndIndex(lin, tmp, fmt);
+			} finally {
+				CloserUtil.close(lin);
+			}
 		} catch(Exception e){
-			// If intab is not sorted, sort it first.
-			File sorted= Utils.createTempFile(".asciigenome.", ".sorted.tmp", true);
-			sortByChromThenPos(intab, sorted, fmt);
-			blockCompressAndIndex(sorted.getAbsolutePath(), tmp, fmt);
-			Files.delete(Paths.get(sorted.getAbsolutePath()));
+			// If intab is not sorted, sort it first. Sorted lines go straight to compression.
+			LineSorter sorted= sortByChromThenPos(intab, fmt);
+			try{
+				blockCompressAndIndex(Iterators.concat(sorted.getHeader().iterator(), sorted), tmp, fmt);
+			} finally {
+				sorted.close();
+			}
 		}
 		
 		// This renaming and the use of File tmp allows to block compress and index an input file in place.
@@ -69,123 +65,138 @@ public class MakeTabixIndex {
 		}
 		Files.move(Paths.get(tmp.getAbsolutePath()), Paths.get(bgzfOut.getAbsolutePath()));
 
+		// Either index may exist from a previous run, remove both so the index found is the new one
 		File bgzfOutTbi= new File(bgzfOut.getAbsolutePath() + FileExtensions.TABIX_INDEX);
-		if(bgzfOutTbi.exists()){
-			Files.delete(Paths.get(bgzfOutTbi.getAbsolutePath()));
+		File bgzfOutCsi= new File(bgzfOut.getAbsolutePath() + FileExtensions.CSI);
+		Files.deleteIfExists(Paths.get(bgzfOutTbi.getAbsolutePath()));
+		Files.deleteIfExists(Paths.get(bgzfOutCsi.getAbsolutePath()));
+		if(tmpCsi.exists()){
+			Files.move(Paths.get(tmpCsi.getAbsolutePath()), Paths.get(bgzfOutCsi.getAbsolutePath()));
+		} else {
+			Files.move(Paths.get(tmpTbi.getAbsolutePath()), Paths.get(bgzfOutTbi.getAbsolutePath()));
 		}
-		Files.move(Paths.get(tmpTbi.getAbsolutePath()), Paths.get(bgzfOutTbi.getAbsolutePath()));
-		
+	}
+
+	/** Index of the block compressed file bgzf: The CSI index if it exists, otherwise the tabix index,
+	 * which may or may not exist. 
+	 * */
+	public static File getIndexFile(File bgzf){
+		File csi= new File(bgzf.getAbsolutePath() + FileExtensions.CSI);
+		if(csi.exists()){
+			return csi;
+		}
+		return new File(bgzf.getAbsolutePath() + FileExtensions.TABIX_INDEX);
 	}
 
 	/**
-	 * Block compress input file and create associated tabix index. 
+	 * Block compress the lines of the input file and create associated tabix index. 
+	 * The tabix index cannot address positions beyond 2^29: If any feature ends beyond that, 
+	 * or if csi_index is set, a CSI index is created instead.
+	 * Blocks are compressed in parallel. Since the file position of a line is known only once its
+	 * block is written, features are added to the index as their blocks are written, in input order.
+	 * @param lines Lines to compress, in the order they should be written.
 	 * @throws IOException 
 	 * @throws InvalidRecordException 
 	 * */
-	private void blockCompressAndIndex(String intab, File bgzfOut, TabixFormat fmt) throws IOException, InvalidRecordException {
+	private void blockCompressAndIndex(Iterator<String> lines, File bgzfOut, TabixFormat fmt) throws IOException, InvalidRecordException {
 				
-		BlockCompressedOutputStream writer = new BlockCompressedOutputStream(bgzfOut);
-		long filePosition= writer.getFilePointer();
-			
-		TabixIndexCreator indexCreator=new TabixIndexCreator(fmt);
+		ParallelBlockCompressedOutputStream writer = new ParallelBlockCompressedOutputStream(bgzfOut);
+		try{
+			// Both indexes are built as we go since we know which one is needed only at the end 
+			TabixIndexCreator indexCreator= CsiIndexCreator.isCsiPreferred() ? null : new TabixIndexCreator(fmt);
+			CsiIndexCreator csiCreator= CsiIndexCreator.forTabix(fmt);
+			LinkedList<PendingFeature> pending= new LinkedList<PendingFeature>();
 		
-		// boolean first= true;
+			PositionParser positionParser= new PositionParser(fmt);
+
+			this.nWarnings= 10;
+			while(lines.hasNext()){
+			
+				String line = lines.next().trim();
+			
+				try{
+					if(line.isEmpty() || line.startsWith("track ")){
+						continue;
+					}
+					if(line.startsWith("#")){
+						writer.write((line + "\n").getBytes());
+						continue;
+					}
+					if(line.startsWith("##FASTA")){
+						break;
+					}			
+
+					Feature feature= positionParser.parse(line);
+					pending.add(new PendingFeature(feature, line, writer.getBlockPointer()));
+				
+					writer.write(line.getBytes());
+					writer.write('\n');
+					if(indexCreator != null && feature.getEnd() >= CsiIndexCreator.MAX_TBI_POSITION){
+						indexCreator= null;
+					}
+				} catch(Exception e){
+					this.warn(e, line);
+				}
+				addWrittenFeatures(pending, writer, indexCreator, csiCreator);
+			}
+
+			writer.flush();
+			addWrittenFeatures(pending, writer, indexCreator, csiCreator);
 		
-		// This is relevant to vcf files only: Prepare header and codec
-		// ------------------------------------------------------------
-		VCFHeader vcfHeader= null;
-		VCFCodec vcfCodec= null;
-		if(fmt.equals(TabixFormat.VCF)){
-			try{
-				VCFFileReader vcfr= new VCFFileReader(new File(intab), false);
-			    vcfHeader= vcfr.getFileHeader();
-			    vcfr.close();
-			} catch(MalformedFeatureFile e){
-				vcfHeader= new VCFHeader();
+			if(indexCreator != null){
+				Index index = indexCreator.finalizeIndex(writer.getFilePointer());
+				index.writeBasedOnFeatureFile(bgzfOut);
+			} else {
+				csiCreator.finalizeIndex(writer.getFilePointer());
+				csiCreator.write(new File(bgzfOut.getAbsolutePath() + FileExtensions.CSI));
 			}
-			vcfCodec= new VCFCodec();
-			vcfCodec.setVCFHeader(vcfHeader, Utils.getVCFHeaderVersion(vcfHeader));
+		} finally {
+			// Also on error, so that the compressing threads are shut down
+			writer.close();
 		}
-		// ------------------------------------------------------------
+	}
 
-		int nWarnings= 10;
-		LineIterator lin= utils.IOUtils.openURIForLineIterator(intab);
-		while(lin.hasNext()){
-			
-			String line = lin.next().trim();
-			
+	/** Add to the index the pending features whose block has been written and therefore have
+	 * a known file position. A feature that cannot be indexed is reported and skipped, 
+	 * except for features out of order which make the whole input invalid.
+	 * */
+	private void addWrittenFeatures(LinkedList<PendingFeature> pending, ParallelBlockCompressedOutputStream writer, TabixIndexCreator indexCreator, CsiIndexCreator csiCreator) throws InvalidRecordException{
+		while(pending.size() > 0 && writer.isWritten(pending.getFirst().blockPointer)){
+			PendingFeature x= pending.removeFirst();
+			long filePosition= writer.toVirtualFilePointer(x.blockPointer);
 			try{
-				if(line.isEmpty() || line.startsWith("track ")){
-					continue;
+				if(indexCreator != null){
+					indexCreator.addFeature(x.feature, filePosition);
 				}
-				if(line.startsWith("#")){
-					writer.write((line + "\n").getBytes());
-					filePosition = writer.getFilePointer();
-					continue;
-				}
-				if(line.startsWith("##FASTA")){
-					break;
-				}			
-
-				addLineToIndex(line, indexCreator, filePosition, fmt, vcfHeader, vcfCodec);
-				
-				writer.write(line.getBytes());
-				writer.write('\n');
-				filePosition = writer.getFilePointer();
-			} catch(Exception e){
-				if(e.getMessage().contains("added out sequence of order") || e.getMessage().contains("Features added out of order")){
+				csiCreator.addFeature(x.feature, filePosition);
+			} catch(RecordsOutOfOrderException e){
+				throw new InvalidRecordException();
+			} catch(RuntimeException e){
+				if(e.getMessage() != null && (e.getMessage().contains("added out sequence of order") || e.getMessage().contains("Features added out of order"))){
 					// Get a string marker for out-of-order from htsjdk/tribble/index/tabix/TabixIndexCreator.java 
-					writer.close();
 					throw new InvalidRecordException();
 				}
-				if(nWarnings >= 0){
-					System.err.println("Warning: " + e.getMessage() + ". Skipping:\n" + line);
-				}
-				if(nWarnings == 0){
-					System.err.println("Additional warnings will not be show.");
-				}
-				nWarnings--;
+				this.warn(e, x.line);
 			}
 		}
-
-		writer.flush();
-		
-		Index index = indexCreator.finalizeIndex(writer.getFilePointer());
-		index.writeBasedOnFeatureFile(bgzfOut);
-		writer.close();
-		CloserUtil.close(lin);
 	}
 
-	/** Set vcfHeader and vcfCodec to null if reading non-vcf line.
-	 * */
-	private void addLineToIndex(String line, TabixIndexCreator indexCreator, long filePosition, TabixFormat fmt, VCFHeader vcfHeader, VCFCodec vcfCodec) throws InvalidRecordException {
-
-		if(fmt.equals(TabixFormat.BED)){
-			
-			BedLineCodec bedCodec= new BedLineCodec();
-			BedLine bed = bedCodec.decode(line);
-			indexCreator.addFeature(bed, filePosition);
-		
-		} else if(fmt.equals(TabixFormat.GFF)){
-			GtfLine gtf= new GtfLine(line.split("\t"));
-			indexCreator.addFeature(gtf, filePosition);
-		
-		} else if(fmt.equals(TabixFormat.VCF)) {
-
-			VariantContext vcf = vcfCodec.decode(line);
-			indexCreator.addFeature(vcf, filePosition);
-			
-		} else {
-			System.err.println("Unexpected TabixFormat: " + fmt.sequenceColumn + " " + fmt.startPositionColumn);
-			throw new InvalidRecordException();
-		}	
+	private void warn(Exception e, String line){
+		if(this.nWarnings >= 0){
+			System.err.println("Warning: " + e.getMessage() + ". Skipping:\n" + line);
+		}
+		if(this.nWarnings == 0){
+			System.err.println("Additional warnings will not be show.");
+		}
+		this.nWarnings--;
 	}
-	
-	/** Sort file by columns chrom (text) and pos (int). chromIdx and posIdx are 1-based  
-	 * indexes for the chrom and pos column. For bed use 1 and 2 respectively. For use GTF/GFF  1 and 4.
-	 * Comment lines, starting with #, are returned as they are. Reading stops if the line ##FASTA is found.
+
+	/** Sort file by columns chrom (text) and pos (int), then end, if available. 
+	 * For bed the chrom and pos columns are 1 and 2 respectively. For GTF/GFF 1 and 4.
+	 * Comment lines, starting with #, are returned as they are by getHeader(). Reading stops if the line ##FASTA is found.
+	 * The returned sorter must be closed to remove temporary files.
 	 * */
-	private void sortByChromThenPos(String unsorted, File sorted, TabixFormat fmt) throws SQLException, InvalidRecordException, IOException, ClassNotFoundException{
+	private LineSorter sortByChromThenPos(String unsorted, TabixFormat fmt) throws InvalidRecordException, IOException{
 
 		int chromIdx= 1;
 		int posIdx= 2;
@@ -200,85 +211,22 @@ public class MakeTabixIndex {
 			throw new InvalidRecordException();
 		}
 		
-		Connection conn= null;
-		try{
-			this.sqliteFile= Utils.createTempFile(".asciigenome.", ".tmp.sqlite", true);
-			conn= this.createSQLiteDb(this.sqliteFile, "data");
-		} catch(SQLiteException e){
-			this.sqliteFile= File.createTempFile(".asciigenome.", ".tmp.sqlite");
-			this.sqliteFile.deleteOnExit();
-			conn= this.createSQLiteDb(this.sqliteFile, "data");
-		}
-		PreparedStatement stmtInsert= conn.prepareStatement("INSERT INTO data (contig, pos, posEnd, line) VALUES (?, ?, ?, ?)");
-	
-		BufferedReader br= Utils.reader(unsorted);
-		BufferedWriter wr= new BufferedWriter(new FileWriter(sorted));
-		String line;
-		while((line = br.readLine()) != null){
-			if(line.trim().startsWith("##FASTA")){
-				break;
-			}
-			if(line.trim().startsWith("#")){
-				wr.write(line + "\n");
-				continue;
-			}
-			String[] tabs= line.split("\t"); 
-			stmtInsert.setString(1, tabs[chromIdx-1]);
-			stmtInsert.setInt(2, Integer.parseInt(tabs[posIdx-1]));
-			if(fmt.equals(TabixFormat.VCF)){
-				stmtInsert.setInt(3, 0);
-			} else {
-				stmtInsert.setInt(3, Integer.parseInt(tabs[posIdx]));
-			}
-			stmtInsert.setString(4, line.replaceAll("\n$", ""));
-			stmtInsert.executeUpdate();
-		}
-		stmtInsert.close();
-		br.close();
-
-		PreparedStatement stmtSelect= conn.prepareStatement("SELECT * FROM data ORDER BY contig, pos, posEnd");
-		
-		ResultSet rs= stmtSelect.executeQuery();
-		
-		while(rs.next()){
-			wr.write(rs.getString("line") + "\n");
-		}
-		conn.commit();
-		stmtSelect.close();
-		wr.close();
-		conn.close();
-		Files.delete(Paths.get(this.sqliteFile.getAbsolutePath()));
-		
+		LineSorter sorter= new LineSorter(chromIdx, posIdx, ! fmt.equals(TabixFormat.VCF));
+		sorter.sort(unsorted, Utils.getTmpDir());
+		return sorter;
 	}
 
-	/** Create a tmp sqlite db and return the connection to it. 
-	 * @throws SQLException 
-	 */
-	private Connection createSQLiteDb(File sqliteFile, String tablename) throws SQLException {
-		// this.sqliteFile= Utils.createTempFile(".asciigenome.", ".tmp.sqlite");
-	    
-	    try {
-			Class.forName("org.sqlite.JDBC");
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
+	/** Feature waiting for its block to be written */
+	private static class PendingFeature {
+		private final Feature feature;
+		/** Input line of this feature, to report it if it cannot be indexed */
+		private final String line;
+		private final long blockPointer;
+
+		private PendingFeature(Feature feature, String line, long blockPointer){
+			this.feature= feature;
+			this.line= line;
+			this.blockPointer= blockPointer;
 		}
-		Connection conn = DriverManager.getConnection("jdbc:sqlite:" + this.sqliteFile);
-        Statement stmt = conn.createStatement();
-        String sql = "CREATE TABLE " + tablename +  
-        		   " (" +
-                   "contig text, " +
-        		   "pos int," +
-        		   "posEnd int," +
-                   "line text" + // This is the row line as read from input file
-                   ")"; 
-        stmt.executeUpdate(sql);
-        stmt= conn.createStatement();
-
-        // http://stackoverflow.com/questions/1711631/improve-insert-per-second-performance-of-sqlite
-        stmt.execute("PRAGMA journal_mode = OFF"); // This is not to leave tmp journal file o disk
-		conn.setAutoCommit(false); // This is important: By default each insert is committed 
-					     		   // as it is executed, which is slow. Let's commit in bulk at the end instead.
-		stmt.close();
-        return conn;
 	}
 }
@@ -0,0 +1,262 @@
+package sortBgzipIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+/** Write a BGZF file deflating blocks on a pool of threads. Blocks are written to file in
+ * order as they are ready, so the output is the same as from a BlockCompressedOutputStream.
+ * Since the compressed size of the blocks still in progress is not known, the virtual file pointer
+ * of a position is known only once its block is written. Use getBlockPointer() to mark a position
+ * and toVirtualFilePointer() to convert it once isWritten() is true.
+ * */
+class ParallelBlockCompressedOutputStream extends OutputStream {
+
+	/** Uncompressed bytes in each block. Small enough that a block fits in a BGZF block even if
+	 * it does not compress */
+	protected static final int BLOCK_SIZE= 0xff00;
+	private static final int N_THREADS= Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+	/** Blocks being compressed at any time */
+	private static final int MAX_IN_FLIGHT= 4 * N_THREADS;
+
+	private final OutputStream out;
+	private final int compressionLevel= BlockCompressedOutputStream.getDefaultCompressionLevel();
+	private final ExecutorService executor;
+	private final ThreadLocal<Deflater> deflater= new ThreadLocal<Deflater>();
+	/** All the deflaters created by the threads, to release their native memory on close */
+	private final List<Deflater> deflaters= Collections.synchronizedList(new ArrayList<Deflater>());
+	private LinkedList<Future<byte[]>> inFlight= new LinkedList<Future<byte[]>>();
+
+	private byte[] block= new byte[BLOCK_SIZE];
+	private int blockLength= 0;
+	/** Number of blocks started, including the current one */
+	private long nBlocks= 0;
+	/** Number of blocks written to file */
+	private long nWritten= 0;
+	private boolean closed= false;
+	/** Offset in the compressed file of each block written */
+	private long[] blockOffsets= new long[1024];
+	private long compressedBytes= 0;
+
+	/* C o n s t r u c t o r */
+
+	protected ParallelBlockCompressedOutputStream(File bgzf) throws IOException {
+		this.out= new BufferedOutputStream(new FileOutputStream(bgzf));
+		this.executor= Executors.newFixedThreadPool(N_THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t= new Thread(r);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/* M e t h o d s */
+
+	@Override
+	public void write(int b) throws IOException {
+		this.block[this.blockLength]= (byte) b;
+		this.blockLength++;
+		if(this.blockLength == BLOCK_SIZE){
+			this.submitBlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0){
+			int n= Math.min(len, BLOCK_SIZE - this.blockLength);
+			System.arraycopy(b, off, this.block, this.blockLength, n);
+			this.blockLength += n;
+			off += n;
+			len -= n;
+			if(this.blockLength == BLOCK_SIZE){
+				this.submitBlock();
+			}
+		}
+	}
+
+	/** Position of the next byte to be written as index of the block and offset in the block,
+	 * encoded as a virtual file pointer would be.
+	 * */
+	protected long getBlockPointer(){
+		return (this.nBlocks << 16) | this.blockLength;
+	}
+
+	/** True if the block of this block pointer has been written so its virtual file pointer is known.
+	 * */
+	protected boolean isWritten(long blockPointer){
+		return (blockPointer >>> 16) < this.nWritten;
+	}
+
+	/** Convert a position from getBlockPointer() to a virtual file pointer. The block
+	 * must have been written already.
+	 * */
+	protected long toVirtualFilePointer(long blockPointer){
+		int blockIdx= (int) (blockPointer >>> 16);
+		if(blockIdx >= this.nWritten){
+			throw new IllegalStateException("Block not written yet: " + blockIdx);
+		}
+		return (this.blockOffsets[blockIdx] << 16) | (blockPointer & 0xffff);
+	}
+
+	/** Compress and write all the data written so far. After flushing, getFilePointer() gives the
+	 * virtual file pointer of the next byte.
+	 * */
+	@Override
+	public void flush() throws IOException {
+		if(this.blockLength > 0){
+			this.submitBlock();
+		}
+		while(this.inFlight.size() > 0){
+			this.writeNextBlock();
+		}
+		this.out.flush();
+	}
+
+	/** Virtual file pointer of the next byte. Only valid after flush().
+	 * */
+	protected long getFilePointer(){
+		if(this.blockLength > 0 || this.inFlight.size() > 0){
+			throw new IllegalStateException("Stream must be flushed first");
+		}
+		return this.compressedBytes << 16;
+	}
+
+	/** Flush, write the empty block marking the end of file and close. Closing again has no effect.
+	 * The threads are shut down and their deflaters ended also if writing fails.
+	 * */
+	@Override
+	public void close() throws IOException {
+		if(this.closed){
+			return;
+		}
+		this.closed= true;
+		try{
+			this.flush();
+			this.out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+			this.out.close();
+		} finally {
+			this.executor.shutdownNow();
+			try {
+				// On error blocks may be still in progress: Let them finish before ending their deflater
+				this.executor.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized(this.deflaters){
+				for(Deflater def : this.deflaters){
+					def.end();
+				}
+				this.deflaters.clear();
+			}
+		}
+	}
+
+	/** For testing: Number of deflaters not yet ended */
+	protected int getDeflaterCount(){
+		return this.deflaters.size();
+	}
+
+	private void submitBlock() throws IOException{
+		final byte[] data= Arrays.copyOf(this.block, this.blockLength);
+		this.inFlight.add(this.executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compressBlock(data);
+			}
+		}));
+		this.blockLength= 0;
+		this.nBlocks++;
+		// Write blocks already done, wait if too many are in progress
+		while(this.inFlight.size() > 0 && (this.inFlight.getFirst().isDone() || this.inFlight.size() >= MAX_IN_FLIGHT)){
+			this.writeNextBlock();
+		}
+	}
+
+	private void writeNextBlock() throws IOException{
+		byte[] compressed;
+		try {
+			compressed= this.inFlight.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		if(this.nWritten == this.blockOffsets.length){
+			this.blockOffsets= Arrays.copyOf(this.blockOffsets, this.blockOffsets.length * 2);
+		}
+		this.blockOffsets[(int) this.nWritten]= this.compressedBytes;
+		this.out.write(compressed);
+		this.compressedBytes += compressed.length;
+		this.nWritten++;
+	}
+
+	/** Deflate data into a complete BGZF block: gzip header with BC extra field, deflated data,
+	 * CRC and uncompressed size. Data that does not shrink is stored uncompressed.
+	 * */
+	private byte[] compressBlock(byte[] data){
+		Deflater def= this.deflater.get();
+		if(def == null){
+			def= new Deflater(this.compressionLevel, true);
+			this.deflater.set(def);
+			this.deflaters.add(def);
+		}
+		byte[] deflated= new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+		def.reset();
+		def.setLevel(this.compressionLevel);
+		def.setInput(data);
+		def.finish();
+		int deflatedLength= def.deflate(deflated);
+		if( ! def.finished() || deflatedLength > BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH){
+			Deflater store= new Deflater(Deflater.NO_COMPRESSION, true);
+			store.setInput(data);
+			store.finish();
+			deflatedLength= store.deflate(deflated);
+			store.end();
+		}
+		CRC32 crc= new CRC32();
+		crc.update(data, 0, data.length);
+
+		int totalLength= BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + deflatedLength + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+		ByteBuffer buf= ByteBuffer.allocate(totalLength).order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(BlockCompressedStreamConstants.GZIP_ID1);
+		buf.put((byte) BlockCompressedStreamConstants.GZIP_ID2);
+		buf.put(BlockCompressedStreamConstants.GZIP_CM_DEFLATE);
+		buf.put((byte) BlockCompressedStreamConstants.GZIP_FLG);
+		buf.putInt(0); // Modification time
+		buf.put((byte) BlockCompressedStreamConstants.GZIP_XFL);
+		buf.put((byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN);
+		buf.putShort(BlockCompressedStreamConstants.GZIP_XLEN);
+		buf.put(BlockCompressedStreamConstants.BGZF_ID1);
+		buf.put(BlockCompressedStreamConstants.BGZF_ID2);
+		buf.putShort(BlockCompressedStreamConstants.BGZF_LEN);
+		buf.putShort((short) (totalLength - 1));
+		buf.put(deflated, 0, deflatedLength);
+		buf.putInt((int) crc.getValue());
+		buf.putInt(data.length);
+		return buf.array();
+	}
+}
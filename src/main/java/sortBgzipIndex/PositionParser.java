@@ -0,0 +1,208 @@
+package sortBgzipIndex;
+
+import exceptions.InvalidRecordException;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.tabix.TabixFormat;
+
+/** Extract chromosome, start and end from the lines of bed, gtf/gff, vcf and other tab separated
+ * files as needed to build or query a tabix index. The columns to read are given by the TabixFormat.
+ * Only the columns needed are scanned so, for example, INFO and genotypes of vcf records are
+ * never parsed. Positions are 1-based, end included, as for htsjdk Features:
+ * <ul>
+ * <li>bed, and any zero-based format: start is the start column plus 1, end the end column, if any, otherwise the start.</li>
+ * <li>gtf/gff, and any generic format: start and end are the start and end columns.</li>
+ * <li>vcf: start is POS and end is POS plus the length of REF minus 1, unless
+ * the INFO field has the END key, as in htsjdk VariantContext.</li>
+ * </ul>
+ * */
+public class PositionParser {
+
+	/** 0-based index of the columns of chromosome, start and end. End is -1 if not available */
+	private final int chromCol;
+	private final int startCol;
+	private final int endCol;
+	private final boolean isVcf;
+	private final boolean isZeroBased;
+	/** Chromosome of the last line, reused since consecutive lines are mostly on the same chromosome */
+	private String lastChrom= "";
+
+	/* C o n s t r u c t o r */
+
+	public PositionParser(TabixFormat fmt) throws InvalidRecordException{
+		int preset= fmt.flags & 0xffff;
+		if(preset == TabixFormat.SAM_FLAGS || fmt.sequenceColumn < 1 || fmt.startPositionColumn < 1){
+			System.err.println("Unexpected TabixFormat: " + fmt.sequenceColumn + " " + fmt.startPositionColumn);
+			throw new InvalidRecordException();
+		}
+		this.isVcf= preset == TabixFormat.VCF_FLAGS;
+		this.isZeroBased= (fmt.flags & TabixFormat.ZERO_BASED) != 0;
+		this.chromCol= fmt.sequenceColumn - 1;
+		this.startCol= fmt.startPositionColumn - 1;
+		this.endCol= fmt.endPositionColumn - 1;
+		if(this.chromCol != 0 || this.startCol <= this.chromCol || (this.endCol >= 0 && this.endCol < this.startCol)){
+			// Not a real restriction but it makes scanning simpler and all common formats comply
+			System.err.println("Unsupported TabixFormat: " + fmt.sequenceColumn + " " + fmt.startPositionColumn + " " + fmt.endPositionColumn);
+			throw new InvalidRecordException();
+		}
+	}
+
+	/* M e t h o d s */
+
+	/** Parse line to a feature holding only the position of the line. Throws IllegalArgumentException
+	 * if the line does not have valid positions.
+	 * */
+	public Feature parse(String line){
+
+		int chromEnd= nextTab(line, 0);
+		if(chromEnd <= 0){
+			throw new IllegalArgumentException("Invalid line");
+		}
+		String chrom= this.getChrom(line, chromEnd);
+
+		int from= skipColumns(line, chromEnd + 1, this.startCol - 1);
+		int startEnd= nextTab(line, from);
+		int start= parsePosition(line, from, startEnd);
+		int end;
+		if(this.isVcf){
+			int refStart= skipColumns(line, startEnd + 1, 1);
+			int refEnd= nextTab(line, refStart);
+			checkRef(line, refStart, refEnd);
+			end= start + (refEnd - refStart) - 1;
+			int infoStart= skipColumns(line, refEnd + 1, 3);
+			if(infoStart < line.length()){
+				int infoEnd= nextTab(line, infoStart);
+				int endTag= findEndTag(line, infoStart, infoEnd);
+				if(endTag >= 0){
+					end= parsePosition(line, endTag, infoEnd(line, endTag, infoEnd));
+				}
+			}
+			return new Position(chrom, start, end);
+		}
+		if(this.isZeroBased){
+			start++;
+		}
+		end= start;
+		if(this.endCol == this.startCol){
+			end= parsePosition(line, from, startEnd);
+		} else if(this.endCol > this.startCol){
+			if(startEnd < line.length()){
+				from= skipColumns(line, startEnd + 1, this.endCol - this.startCol - 1);
+				end= parsePosition(line, from, nextTab(line, from));
+			} else if( ! this.isZeroBased){
+				// Only bed-like files may have no end column
+				throw new IllegalArgumentException("Invalid line: Too few columns");
+			}
+		}
+		return new Position(chrom, start, end);
+	}
+
+	private String getChrom(String line, int chromEnd){
+		if(chromEnd != this.lastChrom.length() || ! line.regionMatches(0, this.lastChrom, 0, chromEnd)){
+			this.lastChrom= line.substring(0, chromEnd);
+		}
+		return this.lastChrom;
+	}
+
+	/** Index of the next tab from position from or the length of the line if there is no tab.
+	 * */
+	private static int nextTab(String line, int from){
+		int i= line.indexOf('\t', from);
+		return i < 0 ? line.length() : i;
+	}
+
+	/** Start of the column found after skipping n columns from position from.
+	 * */
+	private static int skipColumns(String line, int from, int n){
+		for(int i= 0; i < n; i++){
+			int tab= line.indexOf('\t', from);
+			if(tab < 0){
+				throw new IllegalArgumentException("Invalid line: Too few columns");
+			}
+			from= tab + 1;
+		}
+		return from;
+	}
+
+	private static int parsePosition(String line, int from, int to){
+		if(from >= to){
+			throw new IllegalArgumentException("Invalid line: Missing position");
+		}
+		long x= 0;
+		for(int i= from; i < to; i++){
+			char c= line.charAt(i);
+			if(c < '0' || c > '9' || x > Integer.MAX_VALUE){
+				throw new IllegalArgumentException("Invalid position: " + line.substring(from, to));
+			}
+			x= x * 10 + (c - '0');
+		}
+		if(x > Integer.MAX_VALUE){
+			throw new IllegalArgumentException("Invalid position: " + line.substring(from, to));
+		}
+		return (int) x;
+	}
+
+	/** REF of vcf must be made of bases only.
+	 * */
+	private static void checkRef(String line, int from, int to){
+		if(from >= to){
+			throw new IllegalArgumentException("Invalid line: Missing REF");
+		}
+		for(int i= from; i < to; i++){
+			switch(line.charAt(i)){
+			case 'A': case 'C': case 'G': case 'T': case 'N':
+			case 'a': case 'c': case 'g': case 't': case 'n':
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid REF allele: " + line.substring(from, to));
+			}
+		}
+	}
+
+	/** End of the INFO key/value starting at from, i.e. the next semicolon, or to.
+	 * */
+	private static int infoEnd(String line, int from, int to){
+		int i= line.indexOf(';', from);
+		return i < 0 || i > to ? to : i;
+	}
+
+	/** Position of the value of the END key in the INFO field between from and to, or -1 if absent.
+	 * */
+	private static int findEndTag(String line, int from, int to){
+		int i= from;
+		while(i < to){
+			if(line.startsWith("END=", i)){
+				return i + 4;
+			}
+			i= infoEnd(line, i, to) + 1;
+		}
+		return -1;
+	}
+
+	/** Location of a line, without any other information */
+	private static class Position implements Feature {
+		private final String chrom;
+		private final int start;
+		private final int end;
+
+		private Position(String chrom, int start, int end){
+			this.chrom= chrom;
+			this.start= start;
+			this.end= end;
+		}
+
+		@Override
+		public String getContig() {
+			return this.chrom;
+		}
+
+		@Override
+		public int getStart() {
+			return this.start;
+		}
+
+		@Override
+		public int getEnd() {
+			return this.end;
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package sortBgzipIndex;
+
+/** Thrown by CsiIndexCreator when records are not sorted by position or records on the same 
+ * sequence are not contiguous.
+ * */
+class RecordsOutOfOrderException extends IllegalArgumentException {
+
+	private static final long serialVersionUID = 1L;
+
+	protected RecordsOutOfOrderException(String message){
+		super(message);
+	}
+}
@@ -0,0 +1,441 @@
+package sortBgzipIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.FileExtensions;
+
+/** Sort sam or bam records by coordinate with an external merge sort.
+ * Records are collected in buffers of bounded size. Each full buffer is sorted and written
+ * to a temporary run file by a worker thread while the next buffer is filled. The runs are then
+ * merged and written to the output bam file, creating the index in the same pass. Compression
+ * of the output runs in its own thread, concurrently with merging. If there are more than 
+ * MAX_FAN_IN runs, groups of runs are first merged into larger runs so that the number of
+ * files open at once stays bounded.
+ * The bai index cannot address positions beyond 2^29: If any sequence is longer than that, or if
+ * csi_index is set, a CSI index is created instead, also while writing the output.
+ * If all records fit in one buffer, they are sorted in memory and written directly.
+ * */
+public class SamSorter {
+
+	/** Max number of records held in memory across all buffers */
+	private static final int MAX_RECORDS_IN_RAM= 500000;
+	private static final int N_THREADS= Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	/** Fast compression for temporary runs since they are read back only once */
+	private static final int RUN_COMPRESSION_LEVEL= 1;
+	/** Max number of runs merged at once */
+	private static final int MAX_FAN_IN= 64;
+
+	private final File tmpDir;
+	private int bufferSize= Math.max(10000, MAX_RECORDS_IN_RAM / N_THREADS);
+	private int maxFanIn= MAX_FAN_IN;
+	private final SAMRecordCoordinateComparator comparator= new SAMRecordCoordinateComparator();
+
+	/* C o n s t r u c t o r */
+
+	/**
+	 * @param tmpDir Directory for temporary run files.
+	 * */
+	public SamSorter(File tmpDir){
+		this.tmpDir= tmpDir;
+	}
+
+	/* M e t h o d s */
+
+	/** Sort the records from samReader and write them to sortedBam together with its index.
+	 * The caller is responsible for closing samReader.
+	 * */
+	public void sortAndIndex(SamReader samReader, File sortedBam) throws IOException{
+
+		final SAMFileHeader header= samReader.getFileHeader().clone();
+		header.setSortOrder(SortOrder.coordinate);
+
+		ExecutorService executor= Executors.newFixedThreadPool(N_THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t= new Thread(r);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		List<Future<File>> runs= new ArrayList<Future<File>>();
+		List<File> runFiles= new ArrayList<File>();
+		try{
+			List<SAMRecord> buffer= new ArrayList<SAMRecord>();
+			for(SAMRecord rec : samReader){
+				buffer.add(rec);
+				if(buffer.size() >= this.bufferSize){
+					runs.add(this.submitRun(executor, header, buffer));
+					buffer= new ArrayList<SAMRecord>();
+					// Memory is bounded by not having more buffers than threads waiting to be written
+					int pending= 0;
+					for(Future<File> run : runs){
+						pending += run.isDone() ? 0 : 1;
+					}
+					for(int i= 0; i < runs.size() && pending >= N_THREADS; i++){
+						if( ! runs.get(i).isDone()){
+							getRun(runs.get(i));
+							pending--;
+						}
+					}
+				}
+			}
+			if(runs.size() == 0){
+				// All records fit in memory
+				Collections.sort(buffer, this.comparator);
+				this.write(header, buffer.iterator(), sortedBam);
+				return;
+			}
+			if(buffer.size() > 0){
+				runs.add(this.submitRun(executor, header, buffer));
+			}
+			for(Future<File> run : runs){
+				runFiles.add(getRun(run));
+			}
+			this.merge(header, runFiles, sortedBam);
+		} finally {
+			executor.shutdownNow();
+			for(Future<File> run : runs){
+				if(run.isDone() && ! run.isCancelled()){
+					try {
+						run.get().delete();
+					} catch (InterruptedException | ExecutionException e) {
+						// Nothing to delete
+					}
+				}
+			}
+		}
+	}
+
+	/** Sort the buffer and write it to a temporary file in a worker thread.
+	 * */
+	private Future<File> submitRun(ExecutorService executor, final SAMFileHeader header, final List<SAMRecord> buffer){
+		return executor.submit(new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				Collections.sort(buffer, comparator);
+				return writeRun(header, buffer.iterator());
+			}
+		});
+	}
+
+	/** Write sorted records to a new temporary run file.
+	 * */
+	private File writeRun(SAMFileHeader header, Iterator<SAMRecord> sorted) throws IOException{
+		File run= File.createTempFile(".asciigenome.", ".run.bam", this.tmpDir);
+		run.deleteOnExit();
+		SAMFileWriter writer= new SAMFileWriterFactory()
+				.setCompressionLevel(RUN_COMPRESSION_LEVEL)
+				.makeBAMWriter(header, true, run);
+		try{
+			while(sorted.hasNext()){
+				writer.addAlignment(sorted.next());
+			}
+		} finally {
+			writer.close();
+		}
+		return run;
+	}
+
+	private static File getRun(Future<File> run) throws IOException{
+		try {
+			return run.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/** k-way merge of the sorted runs into the output file. With more than maxFanIn runs,
+	 * consecutive groups of maxFanIn runs are first merged into intermediate runs, as many
+	 * times as needed. Since groups are consecutive, records at the same position stay in input order.
+	 * */
+	private void merge(SAMFileHeader header, List<File> runFiles, File sortedBam) throws IOException{
+
+		List<File> intermediate= new ArrayList<File>();
+		try{
+			while(runFiles.size() > this.maxFanIn){
+				List<File> merged= new ArrayList<File>();
+				for(int i= 0; i < runFiles.size(); i += this.maxFanIn){
+					List<File> group= runFiles.subList(i, Math.min(i + this.maxFanIn, runFiles.size()));
+					if(group.size() == 1){
+						merged.add(group.get(0));
+						continue;
+					}
+					List<SamReader> readers= openRuns(group);
+					try{
+						merged.add(this.writeRun(header, this.mergeRuns(readers)));
+					} finally {
+						closeRuns(readers);
+					}
+					intermediate.add(merged.get(merged.size() - 1));
+					// Merged runs are not needed anymore
+					for(File run : group){
+						run.delete();
+					}
+				}
+				runFiles= merged;
+			}
+			List<SamReader> readers= openRuns(runFiles);
+			try{
+				this.write(header, this.mergeRuns(readers), sortedBam);
+			} finally {
+				closeRuns(readers);
+			}
+		} finally {
+			for(File run : intermediate){
+				run.delete();
+			}
+		}
+	}
+
+	private static List<SamReader> openRuns(List<File> runFiles) throws IOException{
+		SamReaderFactory srf= SamReaderFactory.make().validationStringency(ValidationStringency.SILENT);
+		List<SamReader> readers= new ArrayList<SamReader>();
+		try{
+			for(File run : runFiles){
+				readers.add(srf.open(run));
+			}
+		} catch(RuntimeException e){
+			closeRuns(readers);
+			throw e;
+		}
+		return readers;
+	}
+
+	private static void closeRuns(List<SamReader> readers) throws IOException{
+		for(SamReader reader : readers){
+			reader.close();
+		}
+	}
+
+	/** Iterator over the records of the sorted runs, in sorted order. Records at the same position
+	 * are returned in order of run.
+	 * */
+	private Iterator<SAMRecord> mergeRuns(List<SamReader> readers){
+		final PriorityQueue<RunHead> heads= new PriorityQueue<RunHead>(Math.max(1, readers.size()), new Comparator<RunHead>() {
+			@Override
+			public int compare(RunHead x, RunHead y) {
+				int cmp= comparator.compare(x.rec, y.rec);
+				if(cmp == 0){
+					// Keep records with same position in input order
+					cmp= Integer.compare(x.run, y.run);
+				}
+				return cmp;
+			}
+		});
+		for(int i= 0; i < readers.size(); i++){
+			Iterator<SAMRecord> iter= readers.get(i).iterator();
+			if(iter.hasNext()){
+				heads.add(new RunHead(i, iter));
+			}
+		}
+		return new Iterator<SAMRecord>() {
+			@Override
+			public boolean hasNext() {
+				return heads.size() > 0;
+			}
+			@Override
+			public SAMRecord next() {
+				RunHead head= heads.poll();
+				SAMRecord rec= head.rec;
+				if(head.advance()){
+					heads.add(head);
+				}
+				return rec;
+			}
+		};
+	}
+
+	/** Write sorted records to bam file and its index. Records are compressed and written in a
+	 * separate thread.
+	 * */
+	private void write(SAMFileHeader header, Iterator<SAMRecord> sorted, File sortedBam) throws IOException{
+		long maxSequenceLength= 0;
+		for(SAMSequenceRecord x : header.getSequenceDictionary().getSequences()){
+			maxSequenceLength= Math.max(maxSequenceLength, x.getSequenceLength());
+		}
+		boolean useCsi= CsiIndexCreator.isCsiPreferred() || maxSequenceLength >= CsiIndexCreator.MAX_TBI_POSITION;
+		// Remove index from previous runs, if any
+		getBaiFile(sortedBam).delete();
+		getCsiFile(sortedBam).delete();
+		
+		if(useCsi){
+			writeWithCsi(header, sorted, sortedBam, maxSequenceLength);
+			return;
+		}
+		SAMFileWriter writer= new SAMFileWriterFactory()
+				.setCreateIndex(true)
+				.setUseAsyncIo(true)
+				.makeSAMOrBAMWriter(header, true, sortedBam);
+		while(sorted.hasNext()){
+			writer.addAlignment(sorted.next());
+		}
+		writer.close();
+	}
+
+	/** Write sorted records to the bam file and create its CSI index in the same pass. Blocks are
+	 * compressed in parallel. As in MakeTabixIndex, records are added to the index as their blocks are
+	 * written, when their file position is known.
+	 * */
+	private static void writeWithCsi(SAMFileHeader header, Iterator<SAMRecord> sorted, File sortedBam, long maxSequenceLength) throws IOException{
+		CsiIndexCreator csi= CsiIndexCreator.forBam(maxSequenceLength);
+		LinkedList<PendingRecord> pending= new LinkedList<PendingRecord>();
+		ParallelBlockCompressedOutputStream out= new ParallelBlockCompressedOutputStream(sortedBam);
+		try{
+			writeHeader(out, header);
+			BAMRecordCodec codec= new BAMRecordCodec(header);
+			codec.setOutputStream(out, sortedBam.getPath());
+			while(sorted.hasNext()){
+				SAMRecord rec= sorted.next();
+				pending.add(new PendingRecord(rec, out.getBlockPointer()));
+				codec.encode(rec);
+				addWrittenRecords(pending, out, csi);
+			}
+			out.flush();
+			addWrittenRecords(pending, out, csi);
+			csi.finalizeIndex(out.getFilePointer());
+		} finally {
+			out.close();
+		}
+		csi.write(getCsiFile(sortedBam));
+	}
+
+	/** Write the bam header, uncompressed, to out as htsjdk writers do.
+	 * */
+	private static void writeHeader(OutputStream out, SAMFileHeader header){
+		StringWriter text= new StringWriter();
+		new SAMTextHeaderCodec().encode(text, header);
+		BinaryCodec codec= new BinaryCodec(out);
+		codec.writeBytes(new byte[] {'B', 'A', 'M', 1});
+		codec.writeString(text.toString(), true, false);
+		codec.writeInt(header.getSequenceDictionary().size());
+		for(SAMSequenceRecord x : header.getSequenceDictionary().getSequences()){
+			codec.writeString(x.getSequenceName(), true, true);
+			codec.writeInt(x.getSequenceLength());
+		}
+	}
+
+	/** Add to the index the pending records whose block has been written.
+	 * */
+	private static void addWrittenRecords(LinkedList<PendingRecord> pending, ParallelBlockCompressedOutputStream out, CsiIndexCreator csi){
+		while(pending.size() > 0 && out.isWritten(pending.getFirst().blockPointer)){
+			PendingRecord x= pending.removeFirst();
+			csi.addRecord(x.tid, x.beg, x.end, x.isMapped, out.toVirtualFilePointer(x.blockPointer));
+		}
+	}
+
+	/** Index of the sorted bam file: The CSI index if it exists, otherwise the bai index, which may or may not exist.
+	 * */
+	public static File getIndexFile(File bam){
+		File csi= getCsiFile(bam);
+		if(csi.exists()){
+			return csi;
+		}
+		return getBaiFile(bam);
+	}
+
+	/** The bai index as named by htsjdk writers */
+	public static File getBaiFile(File bam){
+		return new File(bam.getAbsolutePath().replaceAll("\\.bam$", "") + FileExtensions.BAI_INDEX);
+	}
+
+	public static File getCsiFile(File bam){
+		return new File(bam.getAbsolutePath().replaceAll("\\.bam$", "") + FileExtensions.CSI);
+	}
+
+	/** For testing: Number of records in each buffer */
+	protected void setBufferSize(int bufferSize){
+		this.bufferSize= bufferSize;
+	}
+
+	/** For testing: Max number of runs merged at once */
+	protected void setMaxFanIn(int maxFanIn){
+		this.maxFanIn= maxFanIn;
+	}
+
+	/** Index position of a record waiting for its block to be written */
+	private static class PendingRecord {
+		private final int tid;
+		private final int beg;
+		private final int end;
+		private final boolean isMapped;
+		private final long blockPointer;
+
+		private PendingRecord(SAMRecord rec, long blockPointer){
+			int beg= Math.max(0, rec.getAlignmentStart() - 1);
+			if(rec.getReferenceIndex() < 0){
+				this.tid= -1;
+				this.beg= 0;
+				this.end= 0;
+				this.isMapped= false;
+			} else if(rec.getReadUnmappedFlag()){
+				// Unmapped reads placed next to their mate
+				this.tid= rec.getReferenceIndex();
+				this.beg= beg;
+				this.end= beg + 1;
+				this.isMapped= false;
+			} else {
+				this.tid= rec.getReferenceIndex();
+				this.beg= beg;
+				this.end= rec.getAlignmentEnd();
+				this.isMapped= true;
+			}
+			this.blockPointer= blockPointer;
+		}
+	}
+
+	/** Current record of a sorted run */
+	private static class RunHead {
+		private final int run;
+		private final Iterator<SAMRecord> iter;
+		private SAMRecord rec;
+
+		private RunHead(int run, Iterator<SAMRecord> iter){
+			this.run= run;
+			this.iter= iter;
+			this.rec= iter.next();
+		}
+
+		/** Move to the next record of this run. Return false if the run is exhausted */
+		private boolean advance(){
+			if( ! this.iter.hasNext()){
+				return false;
+			}
+			this.rec= this.iter.next();
+			return true;
+		}
+	}
+}
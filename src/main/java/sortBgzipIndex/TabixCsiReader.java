@@ -0,0 +1,309 @@
+package sortBgzipIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import exceptions.InvalidRecordException;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.FileExtensions;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.readers.TabixReader;
+
+/** Query block compressed, tab separated files indexed with either tabix or CSI.
+ * Files with a tabix index, including remote files, are read with htsjdk TabixReader.
+ * For local files with a CSI index, which htsjdk does not support for text files, the index is
+ * read here. The methods used by the tracks behave as in TabixReader.
+ * */
+public class TabixCsiReader {
+
+	/** Not null if the file has a tabix index */
+	private TabixReader tabixReader;
+
+	private String filename;
+	private BlockCompressedInputStream fp;
+	private int minShift;
+	private int depth;
+	private PositionParser positionParser;
+	private char metaChar;
+	private Map<String, Integer> chromToTid= new LinkedHashMap<String, Integer>();
+	/** For each sequence, the bins in the index. Key: bin; Value: loffset followed by start
+	 * and end of each chunk */
+	private List<Map<Integer, long[]>> bins= new ArrayList<Map<Integer, long[]>>();
+
+	/** Iterator returned when the query has no results */
+	private static final TabixReader.Iterator EMPTY_ITERATOR= new TabixReader.Iterator() {
+		@Override
+		public String next() {
+			return null;
+		}
+	};
+
+	/* C o n s t r u c t o r */
+
+	public TabixCsiReader(String filename) throws IOException{
+		File csi= new File(filename + FileExtensions.CSI);
+		if( ! csi.isFile()){
+			this.tabixReader= new TabixReader(filename);
+			return;
+		}
+		this.filename= filename;
+		this.readIndex(csi);
+		this.fp= new BlockCompressedInputStream(new File(filename));
+	}
+
+	/* M e t h o d s */
+
+	private void readIndex(File csi) throws IOException{
+		InputStream is= new BlockCompressedInputStream(csi);
+		try{
+			byte[] magic= new byte[4];
+			readFully(is, magic);
+			if( ! Arrays.equals(magic, new byte[] {'C', 'S', 'I', 1})){
+				throw new IOException("Invalid CSI index: " + csi);
+			}
+			this.minShift= TabixReader.readInt(is);
+			this.depth= TabixReader.readInt(is);
+			byte[] aux= new byte[TabixReader.readInt(is)];
+			readFully(is, aux);
+			this.readAux(aux, csi);
+			int nRef= TabixReader.readInt(is);
+			int maxBin= ((1 << (3 * (this.depth + 1))) - 1) / 7;
+			for(int tid= 0; tid < nRef; tid++){
+				Map<Integer, long[]> refBins= new HashMap<Integer, long[]>();
+				int nBin= TabixReader.readInt(is);
+				for(int i= 0; i < nBin; i++){
+					int bin= TabixReader.readInt(is);
+					long loffset= TabixReader.readLong(is);
+					int nChunk= TabixReader.readInt(is);
+					long[] chunks= new long[1 + 2 * nChunk];
+					chunks[0]= loffset;
+					for(int j= 1; j < chunks.length; j++){
+						chunks[j]= TabixReader.readLong(is);
+					}
+					if(bin <= maxBin){
+						// Skip pseudo-bin with metadata
+						refBins.put(bin, chunks);
+					}
+				}
+				this.bins.add(refBins);
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	/** Read format and sequence names from the aux data, stored as in the tabix index.
+	 * */
+	private void readAux(byte[] aux, File csi) throws IOException{
+		if(aux.length < 28){
+			throw new IOException("CSI index without tabix header: " + csi);
+		}
+		ByteBuffer buf= ByteBuffer.wrap(aux).order(ByteOrder.LITTLE_ENDIAN);
+		int flags= buf.getInt();
+		int colSeq= buf.getInt();
+		int colBeg= buf.getInt();
+		int colEnd= buf.getInt();
+		this.metaChar= (char) buf.getInt();
+		int skip= buf.getInt();
+		int lNm= buf.getInt();
+		try {
+			this.positionParser= new PositionParser(new TabixFormat(flags, colSeq, colBeg, colEnd, this.metaChar, skip));
+		} catch (InvalidRecordException e) {
+			throw new IOException("Unsupported format in CSI index: " + csi);
+		}
+		int from= buf.position();
+		int to= Math.min(aux.length, from + lNm);
+		for(int i= from; i < to; i++){
+			if(aux[i] == 0){
+				this.chromToTid.put(new String(aux, from, i - from, StandardCharsets.UTF_8), this.chromToTid.size());
+				from= i + 1;
+			}
+		}
+	}
+
+	private static void readFully(InputStream is, byte[] buf) throws IOException{
+		int n= 0;
+		while(n < buf.length){
+			int x= is.read(buf, n, buf.length - n);
+			if(x < 0){
+				throw new IOException("Unexpected end of index file");
+			}
+			n += x;
+		}
+	}
+
+	/** Lines overlapping the region chrom:beg-end where beg is 0-based and end is 1-based, as
+	 * for TabixReader. The iterator returns null when there are no more lines.
+	 * */
+	public TabixReader.Iterator query(String chrom, int beg, int end){
+		if(this.tabixReader != null){
+			return this.tabixReader.query(chrom, beg, end);
+		}
+		Integer tid= this.chromToTid.get(chrom);
+		if(tid == null || tid >= this.bins.size() || beg >= end){
+			return EMPTY_ITERATOR;
+		}
+		final long[] chunks= this.getChunks(this.bins.get(tid), Math.max(0, beg), end);
+		if(chunks.length == 0){
+			return EMPTY_ITERATOR;
+		}
+		return new CsiIterator(chrom, Math.max(0, beg), end, chunks);
+	}
+
+	/** Chunks of file to read to find lines overlapping beg-end, sorted and merged. As in
+	 * hts_itr_query of htslib, the chunks ending before the smallest file offset that can contain
+	 * overlapping lines are excluded.
+	 * */
+	private long[] getChunks(Map<Integer, long[]> refBins, int beg, int end){
+		long minOff= 0;
+		int bin= ((1 << (3 * this.depth)) - 1) / 7 + (beg >> this.minShift);
+		while(bin > 0 && ! refBins.containsKey(bin)){
+			// Try the bin on the left or the parent bin
+			int first= (((bin - 1) >> 3) << 3) + 1;
+			bin= bin > first ? bin - 1 : (bin - 1) >> 3;
+		}
+		if(refBins.containsKey(bin)){
+			minOff= refBins.get(bin)[0];
+		}
+		List<long[]> chunks= new ArrayList<long[]>();
+		for(int b : CsiIndexCreator.reg2bins(beg, end, this.minShift, this.depth)){
+			long[] x= refBins.get(b);
+			if(x == null){
+				continue;
+			}
+			for(int i= 1; i < x.length; i += 2){
+				if(x[i + 1] > minOff){
+					chunks.add(new long[] {Math.max(x[i], minOff), x[i + 1]});
+				}
+			}
+		}
+		Collections.sort(chunks, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] x, long[] y) {
+				return Long.compare(x[0], y[0]);
+			}
+		});
+		List<Long> merged= new ArrayList<Long>();
+		for(long[] x : chunks){
+			int n= merged.size();
+			if(n > 0 && x[0] <= merged.get(n - 1)){
+				merged.set(n - 1, Math.max(merged.get(n - 1), x[1]));
+			} else {
+				merged.add(x[0]);
+				merged.add(x[1]);
+			}
+		}
+		long[] out= new long[merged.size()];
+		for(int i= 0; i < out.length; i++){
+			out[i]= merged.get(i);
+		}
+		return out;
+	}
+
+	/** Read the next line from the current position. The first call reads the first line.
+	 * */
+	public String readLine() throws IOException{
+		if(this.tabixReader != null){
+			return this.tabixReader.readLine();
+		}
+		return this.fp.readLine();
+	}
+
+	public Set<String> getChromosomes(){
+		if(this.tabixReader != null){
+			return this.tabixReader.getChromosomes();
+		}
+		return this.chromToTid.keySet();
+	}
+
+	public String getSource(){
+		if(this.tabixReader != null){
+			return this.tabixReader.getSource();
+		}
+		return this.filename;
+	}
+
+	public void close(){
+		if(this.tabixReader != null){
+			this.tabixReader.close();
+			return;
+		}
+		try {
+			this.fp.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+	}
+
+	/** Read the chunks of the file and return the lines overlapping the query */
+	private class CsiIterator implements TabixReader.Iterator {
+
+		private final String chrom;
+		private final int beg;
+		private final int end;
+		private final long[] chunks;
+		private int chunk= -1;
+		private boolean done= false;
+
+		private CsiIterator(String chrom, int beg, int end, long[] chunks){
+			this.chrom= chrom;
+			this.beg= beg;
+			this.end= end;
+			this.chunks= chunks;
+		}
+
+		@Override
+		public String next() throws IOException {
+			while( ! this.done){
+				if(this.chunk < 0 || fp.getFilePointer() >= this.chunks[2 * this.chunk + 1]){
+					// Move to next chunk
+					this.chunk++;
+					if(2 * this.chunk >= this.chunks.length){
+						this.done= true;
+						break;
+					}
+					if(this.chunk == 0 || fp.getFilePointer() != this.chunks[2 * this.chunk]){
+						fp.seek(this.chunks[2 * this.chunk]);
+					}
+				}
+				String line= fp.readLine();
+				if(line == null){
+					this.done= true;
+					break;
+				}
+				if(line.isEmpty() || line.charAt(0) == metaChar){
+					continue;
+				}
+				Feature x;
+				try{
+					x= positionParser.parse(line);
+				} catch(IllegalArgumentException e){
+					continue;
+				}
+				if( ! x.getContig().equals(this.chrom) || x.getStart() - 1 >= this.end){
+					// Lines are sorted so there is nothing else to find
+					this.done= true;
+					break;
+				}
+				if(x.getEnd() > this.beg){
+					return line;
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,434 @@
+package tracks;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import samTextViewer.ScreenMapping;
+import samTextViewer.Utils;
+
+/** Multi-resolution depth of a bam file stored in a cache file shared across sessions.
+ * The bam file is read once, typically in a background thread, and depth is summarised in bins
+ * of BASE_BIN bp. Each following level merges ZOOM_FACTOR bins of the previous level, similar to
+ * the zoom levels of bigWig and TDF files. For each bin the cache stores the sum of depth and the
+ * number of positions with depth > 0 so that the mean depth over covered positions, as shown by
+ * TrackPileup, can be computed from any combination of bins.
+ * The cache file is named after the path, size and modification time of the bam file, so a
+ * modified bam file is not served from an old cache.
+ * Only unmapped reads are excluded, so the cache is valid only when no read filter is set.
+ * */
+class BamCoveragePyramid {
+
+	private static final int MAGIC= 0x41474350; // "AGCP"
+	private static final int VERSION= 1;
+	protected static final int BASE_BIN= 256;
+	private static final int ZOOM_FACTOR= 4;
+	private static final int N_LEVELS= 7; // Bins of 256 bp to 1 Mb
+	/** Positions processed at a time while building. Must be a multiple of BASE_BIN */
+	private static final int CHUNK_SIZE= 1 << 20;
+
+	/** Cache files being built in this session, so the same bam opened twice is built once only */
+	private static final Set<String> building= Collections.synchronizedSet(new HashSet<String>());
+	/** Cache files that could not be built in this session, not to try again */
+	private static final Set<String> failed= Collections.synchronizedSet(new HashSet<String>());
+
+	private final String bam;
+	private final File cacheFile;
+	private volatile boolean ready= false;
+	private MappedByteBuffer buffer;
+	/** Key: chrom. Value: Offset in the cache file of each level */
+	private Map<String, long[]> levelOffsets= new HashMap<String, long[]>();
+	/** Key: chrom. Value: Number of bins in each level */
+	private Map<String, int[]> levelSizes= new HashMap<String, int[]>();
+
+	/* C o n s t r u c t o r */
+
+	/** Open the cache of this bam file in cacheDir, if it exists. Use build() or buildInBackground()
+	 * to create it.
+	 * @param bam File to read, sorted and indexed.
+	 * @param sourceFile File the cache is named after. Typically the same as bam, but it may be
+	 * the original, unsorted file when bam is a sorted copy of it.
+	 * */
+	protected BamCoveragePyramid(String bam, String sourceFile, File cacheDir) throws IOException{
+		this.bam= bam;
+		this.cacheFile= new File(cacheDir, getCacheName(sourceFile));
+		CacheFiles.use(this, this.cacheFile);
+		if(this.cacheFile.isFile()){
+			try{
+				this.open();
+			} catch(IOException e){
+				// Possibly a corrupt file: It will be rebuilt.
+				this.ready= false;
+			}
+		}
+	}
+
+	/* M e t h o d s */
+
+	/** Name of the cache file for this source file. It depends on full path, size and time of last
+	 * modification of the file.
+	 * */
+	private static String getCacheName(String sourceFile){
+		File f= new File(sourceFile).getAbsoluteFile();
+		String hash= CacheFiles.hashFile(f);
+		return f.getName() + "." + hash + ".coverage";
+	}
+
+	protected boolean isReady(){
+		return this.ready;
+	}
+
+	/** Release the cache file so that it can be evicted or cleared. It stays mapped in memory
+	 * until garbage collected.
+	 * */
+	protected void close(){
+		CacheFiles.release(this);
+	}
+
+	protected File getCacheFile(){
+		return this.cacheFile;
+	}
+
+	/** Build the cache file in a daemon thread, unless it already exists or it is being
+	 * built already. The cache becomes available, i.e. isReady() is true, once done.
+	 * If the build fails, the error is reported once and the cache stays unavailable for the
+	 * rest of the session.
+	 * */
+	protected void buildInBackground(){
+		if(this.ready || failed.contains(this.cacheFile.getAbsolutePath()) || ! building.add(this.cacheFile.getAbsolutePath())){
+			return;
+		}
+		Thread builder= new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					build();
+				} catch (Exception e) {
+					failed.add(cacheFile.getAbsolutePath());
+					System.err.println("Could not cache coverage of " + bam + ": " + e.getMessage());
+				} finally {
+					building.remove(cacheFile.getAbsolutePath());
+				}
+			}
+		});
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	/** Read the bam file and write the cache file. The cache is written to a temporary file
+	 * first and then moved in place so other sessions never see a partial cache.
+	 * */
+	protected void build() throws IOException{
+
+		File cacheDir= this.cacheFile.getAbsoluteFile().getParentFile();
+		cacheDir.mkdirs();
+		File tmp= File.createTempFile(".asciigenome.", ".coverage.tmp", cacheDir);
+		tmp.deleteOnExit();
+
+		SamReader samReader= Utils.getSamReader(this.bam);
+		DataOutputStream out= new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try{
+			List<SAMSequenceRecord> sequences= samReader.getFileHeader().getSequenceDictionary().getSequences();
+			this.writeHeader(out, sequences);
+
+			SAMRecordIterator iter= samReader.iterator();
+			ChromDepth chromDepth= null;
+			int nextSeq= 0; // Index of the next sequence to be written
+			while(iter.hasNext()){
+				SAMRecord rec= iter.next();
+				if(rec.getReadUnmappedFlag() || rec.getAlignmentEnd() < rec.getAlignmentStart()){
+					continue;
+				}
+				int refIdx= rec.getReferenceIndex();
+				if(chromDepth == null || refIdx != chromDepth.refIdx){
+					if(refIdx < nextSeq){
+						iter.close();
+						throw new IOException("File is not sorted by position: " + this.bam);
+					}
+					if(chromDepth != null){
+						chromDepth.write(out);
+					}
+					for( ; nextSeq < refIdx; nextSeq++){
+						// Sequences without reads
+						new ChromDepth(nextSeq, sequences.get(nextSeq).getSequenceLength()).write(out);
+					}
+					chromDepth= new ChromDepth(refIdx, sequences.get(refIdx).getSequenceLength());
+					nextSeq= refIdx + 1;
+				}
+				chromDepth.add(rec);
+			}
+			iter.close();
+			if(chromDepth != null){
+				chromDepth.write(out);
+			}
+			for( ; nextSeq < sequences.size(); nextSeq++){
+				new ChromDepth(nextSeq, sequences.get(nextSeq).getSequenceLength()).write(out);
+			}
+		} finally {
+			out.close();
+			samReader.close();
+		}
+		Files.move(tmp.toPath(), this.cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		this.open();
+	}
+
+	/** Header: Magic number, version, base bin size, zoom factor, number of levels,
+	 * number of sequences. Then name and length of each sequence.
+	 * */
+	private void writeHeader(DataOutputStream out, List<SAMSequenceRecord> sequences) throws IOException{
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(BASE_BIN);
+		out.writeInt(ZOOM_FACTOR);
+		out.writeInt(N_LEVELS);
+		out.writeInt(sequences.size());
+		for(SAMSequenceRecord seq : sequences){
+			out.writeUTF(seq.getSequenceName());
+			out.writeInt(seq.getSequenceLength());
+		}
+	}
+
+	/** Number of bins of size binSize spanning a sequence of this length.
+	 * */
+	private static int nBins(int seqLen, long binSize){
+		return (int) ((seqLen + binSize - 1) / binSize);
+	}
+
+	private static long binSize(int level){
+		return (long) BASE_BIN << (2 * level); // BASE_BIN * ZOOM_FACTOR^level
+	}
+
+	/** Read the header and map the cache file in memory.
+	 * */
+	private synchronized void open() throws IOException{
+		RandomAccessFile raf= new RandomAccessFile(this.cacheFile, "r");
+		try{
+			if(raf.readInt() != MAGIC || raf.readInt() != VERSION || raf.readInt() != BASE_BIN
+					|| raf.readInt() != ZOOM_FACTOR || raf.readInt() != N_LEVELS){
+				throw new IOException("Invalid coverage cache file: " + this.cacheFile);
+			}
+			int nSeqs= raf.readInt();
+			List<String> names= new ArrayList<String>();
+			List<Integer> lengths= new ArrayList<Integer>();
+			for(int i= 0; i < nSeqs; i++){
+				names.add(raf.readUTF());
+				lengths.add(raf.readInt());
+			}
+			// Data follows the header: For each sequence, for each level, pairs of floats (depth sum, covered bases)
+			long offset= raf.getFilePointer();
+			Map<String, long[]> offsets= new HashMap<String, long[]>();
+			Map<String, int[]> sizes= new HashMap<String, int[]>();
+			for(int i= 0; i < nSeqs; i++){
+				long[] seqOffsets= new long[N_LEVELS];
+				int[] seqSizes= new int[N_LEVELS];
+				for(int level= 0; level < N_LEVELS; level++){
+					seqOffsets[level]= offset;
+					seqSizes[level]= nBins(lengths.get(i), binSize(level));
+					offset += seqSizes[level] * 8L;
+				}
+				offsets.put(names.get(i), seqOffsets);
+				sizes.put(names.get(i), seqSizes);
+			}
+			if(offset != raf.length()){
+				throw new IOException("Truncated coverage cache file: " + this.cacheFile);
+			}
+			this.buffer= raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			this.levelOffsets= offsets;
+			this.levelSizes= sizes;
+			this.ready= true;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** Mean depth over covered positions at each screen column. NaN for columns without coverage.
+	 * Return null if the cache is not ready or if columns are too narrow to be served by the cache.
+	 * @param mapping Screen columns, typically from GenomicCoords.getScreenMapping().
+	 * */
+	protected synchronized List<Float> getDepth(String chrom, ScreenMapping mapping){
+
+		if( ! this.ready){
+			return null;
+		}
+		double bpPerColumn= (mapping.getColumnStart(mapping.size()) - mapping.getColumnStart(0)) / (double)mapping.size();
+		if(bpPerColumn < BASE_BIN){
+			return null;
+		}
+		// Coarsest level with at least ZOOM_FACTOR bins per screen column. Bins partially 
+		// overlapping a column make the depth approximate, so it's better to have a few bins per column.
+		int level= 0;
+		while(level + 1 < N_LEVELS && binSize(level + 1) * ZOOM_FACTOR <= bpPerColumn){
+			level++;
+		}
+		List<Float> depth= new ArrayList<Float>();
+		if( ! this.levelOffsets.containsKey(chrom)){
+			for(int i= 0; i < mapping.size(); i++){
+				depth.add(Float.NaN);
+			}
+			return depth;
+		}
+		long offset= this.levelOffsets.get(chrom)[level];
+		int nBins= this.levelSizes.get(chrom)[level];
+		long binSize= binSize(level);
+		for(int i= 0; i < mapping.size(); i++){
+			// Partially overlapped bins contribute in proportion to the overlap.
+			long colFrom= mapping.getColumnStart(i) - 1; // 0-based, included
+			long colTo= mapping.getColumnStart(i+1) - 1; // 0-based, excluded
+			double sum= 0;
+			double covered= 0;
+			for(long bin= colFrom / binSize; bin * binSize < colTo && bin < nBins; bin++){
+				long binFrom= bin * binSize;
+				double overlap= (Math.min(colTo, binFrom + binSize) - Math.max(colFrom, binFrom)) / (double)binSize;
+				int pos= (int) (offset + bin * 8);
+				sum += this.buffer.getFloat(pos) * overlap;
+				covered += this.buffer.getFloat(pos + 4) * overlap;
+			}
+			depth.add(covered > 0 ? (float)(sum / covered) : Float.NaN);
+		}
+		return depth;
+	}
+
+	/** Depth along one chromosome, collected from records sorted by position.
+	 * Depth is computed one chunk of CHUNK_SIZE positions at a time from the start and end of
+	 * alignment blocks. A chunk is complete, and it is added to the bins, once a record starts
+	 * past its end. Block ends falling past the current chunk are kept aside until their chunk is reached.
+	 * */
+	private static class ChromDepth {
+
+		private final int refIdx;
+		private final int seqLen;
+		/** Sum of depth and number of covered positions in each bin of BASE_BIN bp */
+		private final double[] sums;
+		private final int[] covered;
+		/** Change in depth at each position of the current chunk. Null until the first record is added */
+		private int[] delta;
+		private long chunkStart= 0; // 0-based
+		private int carry= 0; // Depth at the end of the previous chunk
+		private TreeMap<Long, Integer> pending= new TreeMap<Long, Integer>();
+
+		private ChromDepth(int refIdx, int seqLen){
+			this.refIdx= refIdx;
+			this.seqLen= seqLen;
+			this.sums= new double[nBins(seqLen, BASE_BIN)];
+			this.covered= new int[this.sums.length];
+		}
+
+		/** Add the blocks of this record. As for the pileup, deletions count towards depth, skipped
+		 * regions do not.
+		 * */
+		private void add(SAMRecord rec){
+			if(this.delta == null){
+				this.delta= new int[CHUNK_SIZE];
+			}
+			long start= rec.getAlignmentStart() - 1;
+			while(start >= this.chunkStart + CHUNK_SIZE){
+				this.flushChunk();
+			}
+			long refPos= start;
+			for(CigarElement el : rec.getCigar().getCigarElements()){
+				CigarOperator op= el.getOperator();
+				if(op.isAlignment() || op.equals(CigarOperator.DELETION)){
+					this.addDelta(refPos, 1);
+					this.addDelta(refPos + el.getLength(), -1);
+				}
+				if(op.consumesReferenceBases()){
+					refPos += el.getLength();
+				}
+			}
+		}
+
+		private void addDelta(long pos, int x){
+			if(pos < this.chunkStart + CHUNK_SIZE){
+				this.delta[(int) (pos - this.chunkStart)] += x;
+			} else {
+				Integer n= this.pending.get(pos);
+				this.pending.put(pos, n == null ? x : n + x);
+			}
+		}
+
+		/** Add the depth of the current chunk to the bins and move to the next chunk.
+		 * */
+		private void flushChunk(){
+			int depth= this.carry;
+			for(int i= 0; i < CHUNK_SIZE; i++){
+				long pos= this.chunkStart + i;
+				if(pos >= this.seqLen){
+					break;
+				}
+				depth += this.delta[i];
+				if(depth > 0){
+					int bin= (int) (pos / BASE_BIN);
+					this.sums[bin] += depth;
+					this.covered[bin]++;
+				}
+			}
+			this.carry= depth;
+			this.chunkStart += CHUNK_SIZE;
+			Arrays.fill(this.delta, 0);
+			while( ! this.pending.isEmpty() && this.pending.firstKey() < this.chunkStart + CHUNK_SIZE){
+				Map.Entry<Long, Integer> x= this.pending.pollFirstEntry();
+				this.delta[(int) (x.getKey() - this.chunkStart)] += x.getValue();
+			}
+		}
+
+		/** Complete the remaining chunks and write all levels.
+		 * */
+		private void write(DataOutputStream out) throws IOException{
+			while(this.delta != null && this.chunkStart < this.seqLen && (this.carry != 0 || ! this.pending.isEmpty() || this.hasDelta())){
+				this.flushChunk();
+			}
+			double[] sums= this.sums;
+			double[] covered= new double[this.covered.length];
+			for(int i= 0; i < covered.length; i++){
+				covered[i]= this.covered[i];
+			}
+			for(int level= 0; level < N_LEVELS; level++){
+				if(level > 0){
+					double[] s= new double[nBins(this.seqLen, binSize(level))];
+					double[] c= new double[s.length];
+					for(int i= 0; i < sums.length; i++){
+						s[i / ZOOM_FACTOR] += sums[i];
+						c[i / ZOOM_FACTOR] += covered[i];
+					}
+					sums= s;
+					covered= c;
+				}
+				for(int i= 0; i < sums.length; i++){
+					out.writeFloat((float) sums[i]);
+					out.writeFloat((float) covered[i]);
+				}
+			}
+		}
+
+		private boolean hasDelta(){
+			for(int x : this.delta){
+				if(x != 0){
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package tracks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import samTextViewer.ScreenMapping;
+import samTextViewer.Utils;
+
+/** Estimate read depth from the bam index alone, without decoding records.
+ * The index gives, for each 16 kb window of the reference, the file offset of the first
+ * read overlapping the window. The distance between offsets is the amount of data,
+ * and so roughly the number of reads, in that window. Amount of data is converted to
+ * reads using the count of aligned reads on the chromosome in the index metadata.
+ * Reads are converted to depth using the mean read length from a small sample of reads.
+ * Filters are not applied since records are not read.
+ * */
+class BamIndexCoverage {
+
+	/** Size of the linear index windows (2^14 bp) */
+	private static final int LINEAR_WINDOW_SHIFT= 14;
+	/** Rough ratio between compressed and uncompressed size of a BGZF block. Only used to
+	 * interpolate positions inside a block so it doesn't need to be accurate. */
+	private static final double COMPRESSION_RATIO= 0.3;
+	private static final int READ_LENGTH_SAMPLE_SIZE= 1000;
+
+	private String bam;
+	private double meanReadLength= -1;
+
+	/* C o n s t r u c t o r */
+
+	protected BamIndexCoverage(String bam){
+		this.bam= bam;
+	}
+
+	/* M e t h o d s */
+
+	/** Return true if depth can be estimated from the index of this file.
+	 * Only BAM files qualify since CRAM indexes do not point to BGZF blocks.
+	 * */
+	protected static boolean isEstimable(String bam) throws IOException{
+		SamReader samReader= Utils.getSamReader(bam);
+		try{
+			return samReader.type().equals(SamReader.Type.BAM_TYPE) && samReader.hasIndex();
+		} finally {
+			samReader.close();
+		}
+	}
+
+	/** Estimated mean depth at each screen column.
+	 * @param mapping Screen columns, typically from GenomicCoords.getScreenMapping().
+	 * */
+	protected List<Float> getDepth(String chrom, ScreenMapping mapping) throws IOException{
+
+		List<Float> depth= new ArrayList<Float>();
+		for(int i= 0; i < mapping.size(); i++){
+			depth.add(0f);
+		}
+
+		SamReader samReader= Utils.getSamReader(this.bam);
+		try {
+			SAMSequenceRecord seq= samReader.getFileHeader().getSequence(chrom);
+			if(seq == null){
+				return depth;
+			}
+			int refIdx= seq.getSequenceIndex();
+			int chromLen= seq.getSequenceLength();
+			BAMIndex index= samReader.indexing().getIndex();
+			int nAligned= index.getMetaData(refIdx).getAlignedRecordCount();
+			if(nAligned == 0){
+				return depth;
+			}
+			if(this.meanReadLength < 0){
+				this.meanReadLength= this.sampleMeanReadLength(samReader, chrom, chromLen);
+			}
+
+			// File position at the start of each linear window. Key: Window index.
+			Map<Integer, Double> windowPos= new HashMap<Integer, Double>();
+			double chromStartPos= this.getWindowPos(index, refIdx, chromLen, 0, windowPos);
+			double chromEndPos= this.getChromEndPos(index, refIdx, chromLen);
+			if(chromEndPos <= chromStartPos){
+				return depth;
+			}
+			double readsPerByte= nAligned / (chromEndPos - chromStartPos);
+
+			double prevPos= this.getFilePos(index, refIdx, chromLen, mapping.getColumnStart(0), windowPos, chromEndPos);
+			for(int i= 0; i < mapping.size(); i++){
+				double pos= this.getFilePos(index, refIdx, chromLen, mapping.getColumnStart(i+1), windowPos, chromEndPos);
+				int span= mapping.getColumnStart(i+1) - mapping.getColumnStart(i);
+				if(span > 0 && pos > prevPos){
+					double nReads= (pos - prevPos) * readsPerByte;
+					depth.set(i, (float)(nReads * this.meanReadLength / span));
+				}
+				prevPos= Math.max(prevPos, pos);
+			}
+		} finally {
+			samReader.close();
+		}
+		return depth;
+	}
+
+	/** Estimated position in the compressed file of the first read at or after this
+	 * genomic position. Interpolated linearly between the two flanking linear index windows.
+	 * */
+	private double getFilePos(BAMIndex index, int refIdx, int chromLen, int genomicPos, Map<Integer, Double> windowPos, double chromEndPos){
+		if(genomicPos > chromLen){
+			return chromEndPos;
+		}
+		int w= (genomicPos - 1) >> LINEAR_WINDOW_SHIFT;
+		double left= this.getWindowPos(index, refIdx, chromLen, w, windowPos);
+		double right= this.getWindowPos(index, refIdx, chromLen, w + 1, windowPos);
+		if(Double.isNaN(left)){
+			return chromEndPos;
+		}
+		if(Double.isNaN(right)){
+			right= chromEndPos;
+		}
+		double frac= ((genomicPos - 1) - ((long)w << LINEAR_WINDOW_SHIFT)) / (double)(1 << LINEAR_WINDOW_SHIFT);
+		return left + (right - left) * frac;
+	}
+
+	/** File position of the first read overlapping linear window w. If no read overlaps w,
+	 * use the next window with reads. Return NaN if there are no more reads on this chromosome.
+	 * Results are memoized in windowPos.
+	 * */
+	private double getWindowPos(BAMIndex index, int refIdx, int chromLen, int w, Map<Integer, Double> windowPos){
+		int lastWindow= (chromLen - 1) >> LINEAR_WINDOW_SHIFT;
+		List<Integer> emptyWindows= new ArrayList<Integer>();
+		double pos= Double.NaN;
+		for(int x= w; x <= lastWindow; x++){
+			if(windowPos.containsKey(x)){
+				pos= windowPos.get(x);
+				break;
+			}
+			int start= (x << LINEAR_WINDOW_SHIFT) + 1;
+			BAMFileSpan span= index.getSpanOverlapping(refIdx, start, start);
+			if(span != null && ! span.isEmpty()){
+				pos= virtualOffsetToFilePos(span.getFirstOffset());
+				windowPos.put(x, pos);
+				break;
+			}
+			emptyWindows.add(x);
+		}
+		for(int x : emptyWindows){
+			windowPos.put(x, pos);
+		}
+		return pos;
+	}
+
+	/** File position of the end of the last read on this chromosome.
+	 * */
+	private double getChromEndPos(BAMIndex index, int refIdx, int chromLen){
+		BAMFileSpan span= index.getSpanOverlapping(refIdx, 1, chromLen);
+		long end= 0;
+		if(span != null){
+			for(Chunk chunk : span.getChunks()){
+				end= Math.max(end, chunk.getChunkEnd());
+			}
+		}
+		return virtualOffsetToFilePos(end);
+	}
+
+	/** Approximate position in the compressed file of this BGZF virtual offset.
+	 * */
+	private static double virtualOffsetToFilePos(long virtualOffset){
+		long blockAddress= virtualOffset >>> 16;
+		int offsetInBlock= (int)(virtualOffset & 0xFFFF);
+		return blockAddress + offsetInBlock * COMPRESSION_RATIO;
+	}
+
+	/** Mean length of the reference span of the first few reads on this chromosome
+	 * */
+	private double sampleMeanReadLength(SamReader samReader, String chrom, int chromLen){
+		SAMRecordIterator iter= samReader.queryOverlapping(chrom, 1, chromLen);
+		long sum= 0;
+		int n= 0;
+		while(iter.hasNext() && n < READ_LENGTH_SAMPLE_SIZE){
+			SAMRecord rec= iter.next();
+			if(rec.getReadUnmappedFlag()){
+				continue;
+			}
+			sum += rec.getAlignmentEnd() - rec.getAlignmentStart() + 1;
+			n++;
+		}
+		iter.close();
+		if(n == 0){
+			return 0;
+		}
+		return (double)sum / n;
+	}
+}
@@ -0,0 +1,217 @@
+package tracks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.tribble.readers.TabixReader.Iterator;
+import samTextViewer.ScreenMapping;
+import sortBgzipIndex.TabixCsiReader;
+
+/** Records of a bedGraph file in a window, parsed once and held in columns: Start and end of
+ * each record and, for each data column, the value of each record. Changing the data column to show
+ * only needs to bin the values of that column to the screen, without reading the file again.
+ * If the window has more than MAX_CELLS values, the records are not kept and the values of
+ * each data column are binned to the screen as they are read. Then the scores can be served for
+ * the same screen mapping only.
+ * */
+class BedGraphMatrix {
+
+	/** Max number of values to hold. Windows with more are binned while reading */
+	protected static final long MAX_CELLS= 16000000;
+
+	private final String fileName;
+	private final String chrom;
+	private final int from;
+	private final int to;
+	private int[] starts= new int[64];
+	private int[] ends= new int[64];
+	/** Values of each column. Index is the 0-based column of the file and the first
+	 * three columns are null. Values not given or not numeric are NaN */
+	private float[][] values= new float[0][];
+	private int size= 0;
+	/** Mapping of the screen the values are binned to, null while records are kept */
+	private ScreenMapping binnedMapping;
+	/** Values binned to the screen, indexed as values */
+	private ScreenWiggleLocusInfo[][] binned;
+
+	/* C o n s t r u c t o r */
+
+	private BedGraphMatrix(String fileName, String chrom, int from, int to){
+		this.fileName= fileName;
+		this.chrom= chrom;
+		this.from= from;
+		this.to= to;
+	}
+
+	/* M e t h o d s */
+
+	/** Read the records of the tabix indexed fileName overlapping chrom:from-to, 1-based.
+	 * If there are too many records, bin them to this screen mapping.
+	 * */
+	protected static BedGraphMatrix read(String fileName, String chrom, int from, int to, ScreenMapping mapping) throws IOException{
+		BedGraphMatrix matrix= new BedGraphMatrix(fileName, chrom, from, to);
+		TabixCsiReader tabixReader= new TabixCsiReader(fileName);
+		try {
+			Iterator qry= tabixReader.query(chrom, from - 1, to);
+			while(true){
+				String q= qry.next();
+				if(q == null){
+					break;
+				}
+				String[] tokens= q.split("\t");
+				if(tokens.length < 4){
+					continue;
+				}
+				int start;
+				int end;
+				try{
+					start= Integer.parseInt(tokens[1]);
+					end= Integer.parseInt(tokens[2]);
+				} catch(NumberFormatException e){
+					continue;
+				}
+				if(matrix.binned != null){
+					matrix.addToBins(start, end, tokens);
+				} else {
+					matrix.add(start, end, tokens);
+					if((long) matrix.size * matrix.values.length > MAX_CELLS){
+						matrix.toBins(mapping);
+					}
+				}
+			}
+		} finally {
+			tabixReader.close();
+		}
+		return matrix;
+	}
+
+	private void add(int start, int end, String[] tokens){
+		if(this.size == this.starts.length){
+			int n= this.size * 2;
+			this.starts= Arrays.copyOf(this.starts, n);
+			this.ends= Arrays.copyOf(this.ends, n);
+			for(int col= 3; col < this.values.length; col++){
+				this.values[col]= Arrays.copyOf(this.values[col], n);
+			}
+		}
+		if(tokens.length > this.values.length){
+			int nCols= this.values.length;
+			this.values= Arrays.copyOf(this.values, tokens.length);
+			for(int col= Math.max(3, nCols); col < tokens.length; col++){
+				// Previous records do not have this column
+				this.values[col]= new float[this.starts.length];
+				Arrays.fill(this.values[col], 0, this.size, Float.NaN);
+			}
+		}
+		this.starts[this.size]= start;
+		this.ends[this.size]= end;
+		for(int col= 3; col < this.values.length; col++){
+			this.values[col][this.size]= col < tokens.length ? parseValue(tokens[col]) : Float.NaN;
+		}
+		this.size++;
+	}
+
+	/** Bin the records read so far to the screen and drop them.
+	 * */
+	private void toBins(ScreenMapping mapping){
+		this.binnedMapping= mapping;
+		this.binned= new ScreenWiggleLocusInfo[this.values.length][];
+		for(int col= 3; col < this.values.length; col++){
+			this.binned[col]= this.getBins(this.values[col], mapping);
+		}
+		this.starts= null;
+		this.ends= null;
+		this.values= null;
+		this.size= 0;
+	}
+
+	private void addToBins(int start, int end, String[] tokens){
+		if(tokens.length > this.binned.length){
+			int nCols= this.binned.length;
+			this.binned= Arrays.copyOf(this.binned, tokens.length);
+			for(int col= Math.max(3, nCols); col < tokens.length; col++){
+				this.binned[col]= newBins(this.binnedMapping.size());
+			}
+		}
+		for(int col= 3; col < tokens.length; col++){
+			float x= parseValue(tokens[col]);
+			if( ! Float.isNaN(x)){
+				addToColumns(this.binned[col], this.binnedMapping, start, end, x);
+			}
+		}
+	}
+
+	private static float parseValue(String x){
+		try{
+			return Float.parseFloat(x);
+		} catch(NumberFormatException e){
+			return Float.NaN;
+		}
+	}
+
+	/** True if this matrix holds the records of this file and window, or their scores binned
+	 * to this screen mapping.
+	 * */
+	protected boolean isWindow(String fileName, String chrom, int from, int to, ScreenMapping mapping){
+		if( ! this.fileName.equals(fileName) || ! this.chrom.equals(chrom) || this.from != from || this.to != to){
+			return false;
+		}
+		return this.binned == null || this.binnedMapping.asList().equals(mapping.asList());
+	}
+
+	/** Number of columns, including the first three columns of positions. */
+	protected int getColumnCount(){
+		return this.binned != null ? this.binned.length : this.values.length;
+	}
+
+	/** Score at each screen column from the values of the 1-based data column dataCol: The mean over the
+	 * bases in the column, as in addToColumns(). Records without value are skipped.
+	 * The mapping must be the same as in isWindow().
+	 * */
+	protected List<Float> getScores(int dataCol, ScreenMapping mapping){
+		ScreenWiggleLocusInfo[] loci;
+		if(this.binned != null){
+			loci= dataCol - 1 < this.binned.length ? this.binned[dataCol - 1] : newBins(mapping.size());
+		} else {
+			loci= this.getBins(dataCol - 1 < this.values.length ? this.values[dataCol - 1] : null, mapping);
+		}
+		List<Float> scores= new ArrayList<Float>();
+		for(ScreenWiggleLocusInfo x : loci){
+			scores.add(x.getMeanScore());
+		}
+		return scores;
+	}
+
+	private ScreenWiggleLocusInfo[] getBins(float[] col, ScreenMapping mapping){
+		ScreenWiggleLocusInfo[] loci= newBins(mapping.size());
+		for(int i= 0; col != null && i < this.size; i++){
+			if(Float.isNaN(col[i])){
+				continue;
+			}
+			addToColumns(loci, mapping, this.starts[i], this.ends[i], col[i]);
+		}
+		return loci;
+	}
+
+	/** Add the value of the record start-end, 0-based and end excluded, to the screen columns it spans
+	 * weighted by the bases of the record in each column. So the score of a column is the mean over
+	 * its bases, as from the bins of BedGraphPyramid. A column narrower than one base counts as one base.
+	 * */
+	protected static void addToColumns(ScreenWiggleLocusInfo[] loci, ScreenMapping mapping, int start, int end, float value){
+		int screenFrom= mapping.getColumn(start + 1);
+		int screenTo= mapping.getColumn(end);
+		for(int j= screenFrom; j <= screenTo; j++){
+			loci[j].increment(value, Math.max(1, mapping.countPositionsInColumn(j, start + 1, end)));
+		}
+	}
+
+	private static ScreenWiggleLocusInfo[] newBins(int n){
+		ScreenWiggleLocusInfo[] loci= new ScreenWiggleLocusInfo[n];
+		for(int i= 0; i < n; i++){
+			loci[i]= new ScreenWiggleLocusInfo();
+		}
+		return loci;
+	}
+}
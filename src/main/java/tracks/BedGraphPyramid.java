@@ -0,0 +1,506 @@
+package tracks;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import samTextViewer.ScreenMapping;
+import samTextViewer.Utils;
+
+/** A bedGraph file stored in a binary cache file shared across sessions, in the same way as
+ * BamCoveragePyramid for bam files.
+ * The bedGraph file is parsed once and, for each chromosome, the cache stores the records in
+ * columns, i.e. start and end of all the records followed by, for each data column, the values
+ * of all the records and their summaries in bins of BASE_BIN bp and in levels merging ZOOM_FACTOR
+ * bins of the previous level. For each bin the summary is the sum of value times bases and the
+ * number of bases with a value, so that the mean over bases can be computed from any combination of bins.
+ * All data columns are cached so switching column does not need another cache.
+ * Zoomed in, scores are computed from the records as when reading the bedGraph itself.
+ * Each chromosome is mapped in memory separately, only when first shown.
+ * */
+class BedGraphPyramid {
+
+	private static final int MAGIC= 0x41474247; // "AGBG"
+	private static final int VERSION= 2;
+	protected static final int BASE_BIN= 256;
+	private static final int ZOOM_FACTOR= 4;
+	private static final int N_LEVELS= 8; // Bins of 256 bp to 4 Mb
+
+	/** Cache files being built in this session, so the same file opened twice is built once only */
+	private static final Set<String> building= Collections.synchronizedSet(new HashSet<String>());
+	/** Cache files that could not be built in this session, not to try again */
+	private static final Set<String> failed= Collections.synchronizedSet(new HashSet<String>());
+
+	private final String bedGraph;
+	private final File cacheFile;
+	private volatile boolean ready= false;
+	/** Key: chrom. Value: Offset in the cache file of the chromosome data, number of records,
+	 * number of bins at level 0, number of data columns */
+	private Map<String, long[]> chromIndex= new HashMap<String, long[]>();
+	private Map<String, MappedByteBuffer> buffers= new HashMap<String, MappedByteBuffer>();
+
+	/* C o n s t r u c t o r */
+
+	/** Open the cache of this bedGraph file in cacheDir, if it exists. Use build() or buildInBackground()
+	 * to create it.
+	 * @param bedGraph File to read, sorted by position and possibly compressed.
+	 * @param sourceFile File the cache is named after. Typically the same as bedGraph, but it may be
+	 * the original, unsorted file when bedGraph is a sorted copy of it.
+	 * */
+	protected BedGraphPyramid(String bedGraph, String sourceFile, File cacheDir){
+		this.bedGraph= bedGraph;
+		this.cacheFile= new File(cacheDir, getCacheName(sourceFile));
+		CacheFiles.use(this, this.cacheFile);
+		if(this.cacheFile.isFile()){
+			try{
+				this.open();
+			} catch(IOException e){
+				// Possibly a corrupt file: It will be rebuilt.
+				this.ready= false;
+			}
+		}
+	}
+
+	/* M e t h o d s */
+
+	/** Name of the cache file for this source file. It depends on full path, size and time of last
+	 * modification of the file.
+	 * */
+	private static String getCacheName(String sourceFile){
+		File f= new File(sourceFile).getAbsoluteFile();
+		String hash= CacheFiles.hashFile(f);
+		return f.getName() + "." + hash + ".bdgcache";
+	}
+
+	protected boolean isReady(){
+		return this.ready;
+	}
+
+	/** Release the cache file so that it can be evicted or cleared. It stays mapped in memory
+	 * until garbage collected.
+	 * */
+	protected void close(){
+		CacheFiles.release(this);
+	}
+
+	protected File getCacheFile(){
+		return this.cacheFile;
+	}
+
+	/** Build the cache file in a daemon thread, unless it already exists or it is being
+	 * built already. The cache becomes available, i.e. isReady() is true, once done.
+	 * If the build fails, the error is reported once and the cache stays unavailable for the
+	 * rest of the session.
+	 * */
+	protected void buildInBackground(){
+		if(this.ready || failed.contains(this.cacheFile.getAbsolutePath()) || ! building.add(this.cacheFile.getAbsolutePath())){
+			return;
+		}
+		Thread builder= new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					build();
+				} catch (Exception e) {
+					failed.add(cacheFile.getAbsolutePath());
+					System.err.println("Could not cache bedGraph file " + bedGraph + ": " + e.getMessage());
+				} finally {
+					building.remove(cacheFile.getAbsolutePath());
+				}
+			}
+		});
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	/** Read the bedGraph file and write the cache file. The cache is written to a temporary file
+	 * first and then moved in place so other sessions never see a partial cache.
+	 * Lines without valid positions or value are skipped, as when reading the bedGraph.
+	 * */
+	protected void build() throws IOException{
+
+		File cacheDir= this.cacheFile.getAbsoluteFile().getParentFile();
+		cacheDir.mkdirs();
+		File tmp= File.createTempFile(".asciigenome.", ".bdgcache.tmp", cacheDir);
+		tmp.deleteOnExit();
+
+		BufferedReader br= Utils.reader(this.bedGraph);
+		DataOutputStream out= new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(BASE_BIN);
+			out.writeInt(ZOOM_FACTOR);
+			out.writeInt(N_LEVELS);
+
+			Set<String> done= new HashSet<String>();
+			ChromRecords chrom= null;
+			String line;
+			while((line= br.readLine()) != null){
+				if(line.isEmpty() || line.startsWith("#") || line.startsWith("track ")){
+					continue;
+				}
+				String[] tokens= line.split("\t");
+				if(tokens.length < 4){
+					continue;
+				}
+				int start;
+				int end;
+				try{
+					start= Integer.parseInt(tokens[1]);
+					end= Integer.parseInt(tokens[2]);
+				} catch(NumberFormatException e){
+					continue;
+				}
+				if(chrom == null || ! chrom.name.equals(tokens[0])){
+					if(chrom != null){
+						chrom.write(out);
+					}
+					if( ! done.add(tokens[0])){
+						throw new IOException("File is not sorted by position: " + this.bedGraph);
+					}
+					chrom= new ChromRecords(tokens[0]);
+				}
+				if(start < chrom.lastStart){
+					throw new IOException("File is not sorted by position: " + this.bedGraph);
+				}
+				chrom.add(start, end, tokens);
+			}
+			if(chrom != null){
+				chrom.write(out);
+			}
+		} finally {
+			out.close();
+			br.close();
+		}
+		Files.move(tmp.toPath(), this.cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		this.open();
+	}
+
+	private static long binSize(int level){
+		return (long) BASE_BIN << (2 * level); // BASE_BIN * ZOOM_FACTOR^level
+	}
+
+	private static int nBins(long length, long binSize){
+		return (int) ((length + binSize - 1) / binSize);
+	}
+
+	/** Bytes taken by the data of a chromosome after its name: Number of records, bins and data columns,
+	 * starts, ends and running max of ends as int then, for each data column, values as float
+	 * and two floats per bin at each level.
+	 * */
+	private static long chromDataSize(long nRecords, int nBins0, int nCols){
+		return columnOffset(nRecords, nBins0, nCols);
+	}
+
+	/** Offset, from the start of the chromosome data, of the values of the 0-based data column col.
+	 * */
+	private static long columnOffset(long nRecords, int nBins0, int col){
+		long columnSize= 4L * nRecords;
+		for(int level= 0; level < N_LEVELS; level++){
+			columnSize += 8L * nBins(nBins0 * (long) BASE_BIN, binSize(level));
+		}
+		return 12 + 12L * nRecords + col * columnSize;
+	}
+
+	/** Read the header and the position of each chromosome. Chromosomes are mapped in
+	 * memory when first needed.
+	 * */
+	private synchronized void open() throws IOException{
+		RandomAccessFile raf= new RandomAccessFile(this.cacheFile, "r");
+		try{
+			if(raf.readInt() != MAGIC || raf.readInt() != VERSION || raf.readInt() != BASE_BIN
+					|| raf.readInt() != ZOOM_FACTOR || raf.readInt() != N_LEVELS){
+				throw new IOException("Invalid bedGraph cache file: " + this.cacheFile);
+			}
+			Map<String, long[]> index= new HashMap<String, long[]>();
+			while(raf.getFilePointer() < raf.length()){
+				String name= raf.readUTF();
+				long offset= raf.getFilePointer();
+				int nRecords= raf.readInt();
+				int nBins0= raf.readInt();
+				int nCols= raf.readInt();
+				long size= chromDataSize(nRecords, nBins0, nCols);
+				if(offset + size > raf.length()){
+					throw new IOException("Truncated bedGraph cache file: " + this.cacheFile);
+				}
+				index.put(name, new long[] {offset, nRecords, nBins0, nCols});
+				raf.seek(offset + size);
+			}
+			this.chromIndex= index;
+			this.buffers.clear();
+			this.ready= true;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private MappedByteBuffer getBuffer(String chrom) throws IOException{
+		if( ! this.buffers.containsKey(chrom)){
+			long[] idx= this.chromIndex.get(chrom);
+			RandomAccessFile raf= new RandomAccessFile(this.cacheFile, "r");
+			try{
+				this.buffers.put(chrom, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, idx[0], chromDataSize(idx[1], (int) idx[2], (int) idx[3])));
+			} finally {
+				raf.close();
+			}
+		}
+		return this.buffers.get(chrom);
+	}
+
+	/** Number of data columns on this chromosome, i.e. columns after the third one. Zero if
+	 * the chromosome has no data or the cache is not ready.
+	 * */
+	protected synchronized int getDataColumnCount(String chrom){
+		if( ! this.ready || ! this.chromIndex.containsKey(chrom)){
+			return 0;
+		}
+		return (int) this.chromIndex.get(chrom)[3];
+	}
+
+	/** Score at each screen column for the window chrom:from-to, 1-based, from the 1-based
+	 * column dataCol of the bedGraph. NaN for columns without data.
+	 * Return null if the cache is not ready.
+	 * */
+	protected synchronized List<Float> getScores(String chrom, int from, int to, int dataCol, ScreenMapping mapping) throws IOException{
+		if( ! this.ready){
+			return null;
+		}
+		List<Float> scores= new ArrayList<Float>();
+		if(dataCol < 4 || dataCol - 4 >= this.getDataColumnCount(chrom)){
+			for(int i= 0; i < mapping.size(); i++){
+				scores.add(Float.NaN);
+			}
+			return scores;
+		}
+		double bpPerColumn= (mapping.getColumnStart(mapping.size()) - mapping.getColumnStart(0)) / (double)mapping.size();
+		if(bpPerColumn < BASE_BIN){
+			return this.getScoresFromRecords(chrom, from, to, dataCol - 4, mapping);
+		}
+		return this.getScoresFromBins(chrom, dataCol - 4, mapping, bpPerColumn);
+	}
+
+	/** As BedGraphMatrix.getScores(): Mean over the bases in each column of the records
+	 * overlapping the window, records without value are skipped.
+	 * */
+	private List<Float> getScoresFromRecords(String chrom, int from, int to, int col, ScreenMapping mapping) throws IOException{
+		MappedByteBuffer buf= this.getBuffer(chrom);
+		long[] idx= this.chromIndex.get(chrom);
+		int n= (int) idx[1];
+		int starts= 12;
+		int ends= starts + 4 * n;
+		int maxEnds= ends + 4 * n;
+		int values= (int) columnOffset(n, (int) idx[2], col);
+		// Records overlapping the window as for the tabix query from-1 to to
+		int beg= from - 1;
+
+		// First record that may overlap: Running max of ends past the window start
+		int lo= 0;
+		int hi= n;
+		while(lo < hi){
+			int mid= (lo + hi) >>> 1;
+			if(buf.getInt(maxEnds + 4 * mid) > beg){
+				hi= mid;
+			} else {
+				lo= mid + 1;
+			}
+		}
+		ScreenWiggleLocusInfo[] loci= new ScreenWiggleLocusInfo[mapping.size()];
+		for(int i= 0; i < loci.length; i++){
+			loci[i]= new ScreenWiggleLocusInfo();
+		}
+		for(int i= lo; i < n; i++){
+			int start= buf.getInt(starts + 4 * i);
+			if(start >= to){
+				break;
+			}
+			int end= buf.getInt(ends + 4 * i);
+			if(end <= beg){
+				continue;
+			}
+			float value= buf.getFloat(values + 4 * i);
+			if(Float.isNaN(value)){
+				continue;
+			}
+			BedGraphMatrix.addToColumns(loci, mapping, start, end, value);
+		}
+		List<Float> scores= new ArrayList<Float>();
+		for(ScreenWiggleLocusInfo x : loci){
+			scores.add(x.getMeanScore());
+		}
+		return scores;
+	}
+
+	/** Mean over bases from the coarsest level with at least ZOOM_FACTOR bins per screen column.
+	 * As for BamCoveragePyramid, bins partially overlapping a column contribute in proportion to the overlap.
+	 * */
+	private List<Float> getScoresFromBins(String chrom, int col, ScreenMapping mapping, double bpPerColumn) throws IOException{
+		int level= 0;
+		while(level + 1 < N_LEVELS && binSize(level + 1) * ZOOM_FACTOR <= bpPerColumn){
+			level++;
+		}
+		MappedByteBuffer buf= this.getBuffer(chrom);
+		long[] idx= this.chromIndex.get(chrom);
+		long offset= columnOffset(idx[1], (int) idx[2], col) + 4L * idx[1];
+		for(int l= 0; l < level; l++){
+			offset += 8L * nBins(idx[2] * BASE_BIN, binSize(l));
+		}
+		long binSize= binSize(level);
+		int nBins= nBins(idx[2] * BASE_BIN, binSize);
+
+		List<Float> scores= new ArrayList<Float>();
+		for(int i= 0; i < mapping.size(); i++){
+			long colFrom= mapping.getColumnStart(i) - 1; // 0-based, included
+			long colTo= mapping.getColumnStart(i+1) - 1; // 0-based, excluded
+			double sum= 0;
+			double covered= 0;
+			for(long bin= Math.max(0, colFrom / binSize); bin * binSize < colTo && bin < nBins; bin++){
+				long binFrom= bin * binSize;
+				double overlap= (Math.min(colTo, binFrom + binSize) - Math.max(colFrom, binFrom)) / (double)binSize;
+				int pos= (int) (offset + bin * 8);
+				sum += buf.getFloat(pos) * overlap;
+				covered += buf.getFloat(pos + 4) * overlap;
+			}
+			scores.add(covered > 0 ? (float)(sum / covered) : Float.NaN);
+		}
+		return scores;
+	}
+
+	/** Records of one chromosome, in order of start, and their summary in bins of BASE_BIN bp.
+	 * */
+	private static class ChromRecords {
+
+		private final String name;
+		private int[] starts= new int[1024];
+		private int[] ends= new int[1024];
+		/** Values of each data column. Values not given or not numeric are NaN */
+		private float[][] values= new float[0][];
+		private int n= 0;
+		private int lastStart= 0;
+
+		private ChromRecords(String name){
+			this.name= name;
+		}
+
+		private void add(int start, int end, String[] tokens) throws IOException{
+			if(this.n == this.starts.length){
+				int size= this.n * 2;
+				this.starts= Arrays.copyOf(this.starts, size);
+				this.ends= Arrays.copyOf(this.ends, size);
+				for(int col= 0; col < this.values.length; col++){
+					this.values[col]= Arrays.copyOf(this.values[col], size);
+				}
+			}
+			if(tokens.length - 3 > this.values.length){
+				int nCols= this.values.length;
+				this.values= Arrays.copyOf(this.values, tokens.length - 3);
+				for(int col= nCols; col < this.values.length; col++){
+					// Previous records do not have this column
+					this.values[col]= new float[this.starts.length];
+					Arrays.fill(this.values[col], 0, this.n, Float.NaN);
+				}
+			}
+			if(columnOffset(this.n + 1, 0, this.values.length) > Integer.MAX_VALUE){
+				// Each chromosome is mapped in one buffer
+				throw new IOException("Too many records on " + this.name + " to cache");
+			}
+			this.starts[this.n]= start;
+			this.ends[this.n]= end;
+			for(int col= 0; col < this.values.length; col++){
+				this.values[col][this.n]= col + 3 < tokens.length ? parseValue(tokens[col + 3]) : Float.NaN;
+			}
+			this.n++;
+			this.lastStart= start;
+		}
+
+		private static float parseValue(String x){
+			try{
+				return Float.parseFloat(x);
+			} catch(NumberFormatException e){
+				return Float.NaN;
+			}
+		}
+
+		private void write(DataOutputStream out) throws IOException{
+			long length= 0;
+			for(int i= 0; i < this.n; i++){
+				length= Math.max(length, this.ends[i]);
+			}
+			int nBins0= nBins(length, BASE_BIN);
+			if(chromDataSize(this.n, nBins0, this.values.length) > Integer.MAX_VALUE){
+				throw new IOException("Too many records on " + this.name + " to cache");
+			}
+			out.writeUTF(this.name);
+			out.writeInt(this.n);
+			out.writeInt(nBins0);
+			out.writeInt(this.values.length);
+			for(int i= 0; i < this.n; i++){
+				out.writeInt(this.starts[i]);
+			}
+			for(int i= 0; i < this.n; i++){
+				out.writeInt(this.ends[i]);
+			}
+			int maxEnd= Integer.MIN_VALUE;
+			for(int i= 0; i < this.n; i++){
+				maxEnd= Math.max(maxEnd, this.ends[i]);
+				out.writeInt(maxEnd);
+			}
+			for(float[] col : this.values){
+				this.writeColumn(out, col, length, nBins0);
+			}
+		}
+
+		/** Write values of this data column and their summaries.
+		 * */
+		private void writeColumn(DataOutputStream out, float[] col, long length, int nBins0) throws IOException{
+			double[] sums= new double[nBins0];
+			double[] covered= new double[nBins0];
+			for(int i= 0; i < this.n; i++){
+				if(Float.isNaN(col[i]) || this.ends[i] <= this.starts[i]){
+					continue;
+				}
+				for(long bin= this.starts[i] / BASE_BIN; bin * BASE_BIN < this.ends[i]; bin++){
+					long binFrom= bin * BASE_BIN;
+					long overlap= Math.min(this.ends[i], binFrom + BASE_BIN) - Math.max(this.starts[i], binFrom);
+					sums[(int) bin] += (double) col[i] * overlap;
+					covered[(int) bin] += overlap;
+				}
+			}
+			for(int i= 0; i < this.n; i++){
+				out.writeFloat(col[i]);
+			}
+			for(int level= 0; level < N_LEVELS; level++){
+				if(level > 0){
+					double[] s= new double[nBins(length, binSize(level))];
+					double[] c= new double[s.length];
+					for(int i= 0; i < sums.length; i++){
+						s[i / ZOOM_FACTOR] += sums[i];
+						c[i / ZOOM_FACTOR] += covered[i];
+					}
+					sums= s;
+					covered= c;
+				}
+				for(int i= 0; i < sums.length; i++){
+					out.writeFloat((float) sums[i]);
+					out.writeFloat((float) covered[i]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package tracks;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.hash.Hashing;
+
+/** Utilities shared by the files cached in cache_dir across sessions.
+ * Cache files used by open tracks are registered here and never deleted by this session.
+ * While in use, they are touched at regular intervals so that other sessions, which cannot
+ * see this registry, know from the time of last modification that they are still in use.
+ * */
+class CacheFiles {
+
+	/** Files modified more recently than this are considered in use by some session */
+	protected static final long RECENT_MILLIS= 10 * 60 * 1000L;
+	/** Interval between touches of the files in use. Must be well below RECENT_MILLIS */
+	private static final long TOUCH_MILLIS= 60 * 1000L;
+
+	/** Key: Cache file in use in this session. Value: Objects using it, e.g. tracks */
+	private static final Map<File, Set<Object>> users= new HashMap<File, Set<Object>>();
+	/** Key: Cache file in use. Value: Files going with it, e.g. its index */
+	private static final Map<File, File[]> companions= new HashMap<File, File[]>();
+	private static ScheduledExecutorService toucher;
+
+	/* M e t h o d s */
+
+	/** Hash identifying this version of the file, i.e. its full path, size and time of last
+	 * modification. A modified file has a different hash so it is not served from an old cache.
+	 * */
+	protected static String hashFile(File source){
+		File f= source.getAbsoluteFile();
+		String key= f.getAbsolutePath() + "\t" + f.length() + "\t" + f.lastModified();
+		return Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8).toString();
+	}
+
+	/** Register file, and its companion files, as used by user until release(user).
+	 * Only files in cache_dir should be registered since they are touched while in use.
+	 * */
+	protected static synchronized void use(Object user, File file, File... companionFiles){
+		file= file.getAbsoluteFile();
+		if( ! users.containsKey(file)){
+			users.put(file, new HashSet<Object>());
+		}
+		users.get(file).add(user);
+		companions.put(file, companionFiles);
+		touch(file);
+		if(toucher == null){
+			toucher= Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t= new Thread(r);
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+			toucher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					touchInUse();
+				}
+			}, TOUCH_MILLIS, TOUCH_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/** Release all the files used by user.
+	 * */
+	protected static synchronized void release(Object user){
+		Iterator<Map.Entry<File, Set<Object>>> iter= users.entrySet().iterator();
+		while(iter.hasNext()){
+			Map.Entry<File, Set<Object>> entry= iter.next();
+			entry.getValue().remove(user);
+			if(entry.getValue().isEmpty()){
+				companions.remove(entry.getKey());
+				iter.remove();
+			}
+		}
+	}
+
+	/** True if file is used in this session.
+	 * */
+	protected static synchronized boolean isInUse(File file){
+		return users.containsKey(file.getAbsoluteFile());
+	}
+
+	/** True if file is used in this session or, as far as we can tell, in another session.
+	 * */
+	protected static boolean isRecentlyUsed(File file){
+		return isInUse(file) || System.currentTimeMillis() - file.lastModified() < RECENT_MILLIS;
+	}
+
+	/** Delete the least recently used of the cached files, and their companion files, until
+	 * their size is within maxBytes. The file to keep and the files recently used are never deleted.
+	 * @param cached Key: Cached file. Value: Its companion file, e.g. its index, or null.
+	 * */
+	protected static void evict(Map<File, File> cached, long maxBytes, File keep){
+		long size= 0;
+		// Times are taken once since files may be touched while sorting
+		final Map<File, Long> modified= new HashMap<File, Long>();
+		for(File f : cached.keySet()){
+			size += f.length() + (cached.get(f) == null ? 0 : cached.get(f).length());
+			modified.put(f, f.lastModified());
+		}
+		List<File> lru= new ArrayList<File>(cached.keySet());
+		Collections.sort(lru, new Comparator<File>() {
+			@Override
+			public int compare(File x, File y) {
+				return Long.compare(modified.get(x), modified.get(y));
+			}
+		});
+		for(File f : lru){
+			if(size <= maxBytes){
+				break;
+			}
+			if(f.getAbsoluteFile().equals(keep.getAbsoluteFile()) || isRecentlyUsed(f)){
+				continue;
+			}
+			File companion= cached.get(f);
+			size -= f.length() + (companion == null ? 0 : companion.length());
+			f.delete();
+			if(companion != null){
+				companion.delete();
+			}
+		}
+	}
+
+	private static synchronized void touchInUse(){
+		for(File f : users.keySet()){
+			touch(f);
+		}
+	}
+
+	/** Set the time of last modification of file and its companions to now. All get the same
+	 * time so an index does not look older than its file.
+	 * */
+	private static void touch(File file){
+		long now= System.currentTimeMillis();
+		file.setLastModified(now);
+		File[] companionFiles= companions.get(file);
+		for(int i= 0; companionFiles != null && i < companionFiles.length; i++){
+			companionFiles[i].setLastModified(now);
+		}
+	}
+}
@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
 
-import htsjdk.samtools.filter.AlignedFilter;
 import htsjdk.samtools.filter.SamRecordFilter;
 
 /**Group all the filter settings that can be applied to a feature.
@@ -88,13 +87,10 @@ class FeatureFilter {
 		this.mapq = mapq;
 	}
 
-	/** Return filter making sure the AlignedFilter to discard unmapped is set.
+	/** Return filters on sam records. Unmapped reads are always discarded by 
+	 * FilteredSamRecordIterator so there is no need of a filter for them.
 	 * */
 	public List<SamRecordFilter> getSamRecordFilter() { 
-		AlignedFilter unmapped = new AlignedFilter(true);
-		if(!this.samRecordFilter.contains(unmapped)){
-			this.samRecordFilter.add(unmapped); // Unmapped reads are always discarded	
-		}
 		return this.samRecordFilter; 
 	}
 
@@ -0,0 +1,240 @@
+package tracks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import exceptions.InvalidGenomicCoordsException;
+import htsjdk.samtools.util.IntervalTree;
+import htsjdk.variant.vcf.VCFCodec;
+
+/** Lines of an interval feature file cached in tiles of fixed size, as for PileupTileCache.
+ * Each tile holds the raw lines overlapping it, so a feature spanning several tiles is stored
+ * in each of them. Lines are parsed to IntervalFeature only when they are first shown.
+ * Methods are synchronized since tiles may be added by a background thread.
+ * */
+class FeatureTileCache {
+
+	protected static final int TILE_SIZE= 100000;
+
+	private final long maxBytes;
+	/** Key: Chromosome. Value: Tiles cached on this chromosome */
+	private Map<String, IntervalTree<Tile>> tiles= new HashMap<String, IntervalTree<Tile>>();
+	/** Same tiles as above in order of access, least recently used first. Value: Chromosome of the tile */
+	private LinkedHashMap<Tile, String> lru= new LinkedHashMap<Tile, String>(16, 0.75f, true);
+	private long sizeInBytes= 0;
+	private long hits= 0;
+	private long misses= 0;
+	/** Incremented every time the cache is cleared so that tiles read before are discarded */
+	private long epoch= 0;
+
+	/* C o n s t r u c t o r */
+
+	protected FeatureTileCache(long maxBytes){
+		this.maxBytes= maxBytes;
+	}
+
+	/* M e t h o d s */
+
+	/** First position of the tile containing pos.
+	 * */
+	protected static int getTileStart(int pos){
+		return ((pos - 1) / TILE_SIZE) * TILE_SIZE + 1;
+	}
+
+	/** Last position of the tile containing pos.
+	 * */
+	protected static int getTileEnd(int pos){
+		return getTileStart(pos) + TILE_SIZE - 1;
+	}
+
+	/** Intervals of tiles overlapping from-to that are not cached. Intervals are aligned to tiles.
+	 * Each tile found in cache counts as a hit, each tile missing as a miss.
+	 * */
+	protected synchronized List<int[]> getMissingTiles(String chrom, int from, int to){
+		int tileFrom= getTileStart(from);
+		int tileTo= getTileEnd(to);
+		List<int[]> gaps= this.findMissingTiles(chrom, from, to);
+		long nMissing= 0;
+		for(int[] gap : gaps){
+			nMissing += countTiles(gap[0], gap[1]);
+		}
+		this.misses += nMissing;
+		this.hits += countTiles(tileFrom, tileTo) - nMissing;
+		return gaps;
+	}
+
+	/** As getMissingTiles without counting hits and misses, for prefetching.
+	 * */
+	protected synchronized List<int[]> findMissingTiles(String chrom, int from, int to){
+		return PileupTileCache.findGaps(this.getTiles(chrom), getTileStart(from), getTileEnd(to));
+	}
+
+	private static long countTiles(int tileFrom, int tileTo){
+		return ((long) tileTo - tileFrom) / TILE_SIZE + 1;
+	}
+
+	/** Add this tile to the cache, unless the cache has been cleared since epoch.
+	 * The tile must be aligned to TILE_SIZE.
+	 * */
+	protected synchronized void put(String chrom, Tile tile, long epoch){
+		if(tile.getFrom() != getTileStart(tile.getFrom()) || tile.getTo() != getTileEnd(tile.getFrom())){
+			throw new IllegalArgumentException("Tile not aligned: " + tile.getFrom() + "-" + tile.getTo());
+		}
+		if(epoch != this.epoch){
+			return;
+		}
+		Tile old= this.getTiles(chrom).put(tile.getFrom(), tile.getTo(), tile);
+		if(old != null){
+			this.lru.remove(old);
+			this.sizeInBytes -= old.getSizeInBytes();
+		}
+		this.lru.put(tile, chrom);
+		this.sizeInBytes += tile.getSizeInBytes();
+	}
+
+	/** Return the cached tiles overlapping the given interval, sorted by position.
+	 * These tiles become the most recently used.
+	 * */
+	protected synchronized List<Tile> get(String chrom, int from, int to){
+		List<Tile> out= new ArrayList<Tile>();
+		if( ! this.tiles.containsKey(chrom)){
+			return out;
+		}
+		Iterator<IntervalTree.Node<Tile>> iter= this.tiles.get(chrom).overlappers(from, to);
+		while(iter.hasNext()){
+			Tile tile= iter.next().getValue();
+			this.lru.get(tile); // Mark as accessed
+			out.add(tile);
+		}
+		return out;
+	}
+
+	/** Evict least recently used tiles until memory is within budget. Tiles overlapping
+	 * chrom:from-to are never evicted.
+	 * */
+	protected synchronized void evict(String chrom, int from, int to){
+		Iterator<Map.Entry<Tile, String>> iter= this.lru.entrySet().iterator();
+		while(this.sizeInBytes > this.maxBytes && iter.hasNext()){
+			Map.Entry<Tile, String> entry= iter.next();
+			Tile tile= entry.getKey();
+			if(entry.getValue().equals(chrom) && tile.getFrom() <= to && tile.getTo() >= from){
+				continue;
+			}
+			iter.remove();
+			this.tiles.get(entry.getValue()).remove(tile.getFrom(), tile.getTo());
+			this.sizeInBytes -= tile.getSizeInBytes();
+		}
+	}
+
+	protected synchronized void clear(){
+		this.tiles.clear();
+		this.lru.clear();
+		this.sizeInBytes= 0;
+		this.epoch++;
+	}
+
+	protected synchronized long getEpoch(){
+		return this.epoch;
+	}
+
+	private IntervalTree<Tile> getTiles(String chrom){
+		if( ! this.tiles.containsKey(chrom)){
+			this.tiles.put(chrom, new IntervalTree<Tile>());
+		}
+		return this.tiles.get(chrom);
+	}
+
+	protected synchronized long getSizeInBytes(){
+		return this.sizeInBytes;
+	}
+
+	/** Number of tiles requested and found in cache */
+	protected synchronized long getHits(){
+		return this.hits;
+	}
+
+	/** Number of tiles requested and not found in cache */
+	protected synchronized long getMisses(){
+		return this.misses;
+	}
+
+	/** Lines overlapping a tile, in file order, with their 1-based start and end.
+	 * */
+	protected static class Tile {
+
+		private final int from;
+		private final int to;
+		private String[] lines= new String[4];
+		private int[] starts= new int[4];
+		private int[] ends= new int[4];
+		/** Features parsed so far from the lines, null if not parsed yet */
+		private IntervalFeature[] features;
+		private int size= 0;
+		private long sizeInBytes= 100;
+
+		protected Tile(int from, int to){
+			this.from= from;
+			this.to= to;
+		}
+
+		protected void add(String line, int start, int end){
+			if(this.size == this.lines.length){
+				int n= this.size * 2;
+				this.lines= Arrays.copyOf(this.lines, n);
+				this.starts= Arrays.copyOf(this.starts, n);
+				this.ends= Arrays.copyOf(this.ends, n);
+			}
+			this.lines[this.size]= line;
+			this.starts[this.size]= start;
+			this.ends[this.size]= end;
+			this.size++;
+			// Chars of the line, plus the parsed feature, roughly
+			this.sizeInBytes += 4L * line.length() + 300;
+		}
+
+		/** Feature of line i, parsed on first request.
+		 * */
+		protected IntervalFeature getFeature(int i, TrackFormat fmt, VCFCodec codec) throws InvalidGenomicCoordsException{
+			if(this.features == null){
+				this.features= new IntervalFeature[this.size];
+			}
+			if(this.features[i] == null){
+				this.features[i]= new IntervalFeature(this.lines[i], fmt, codec);
+			}
+			return this.features[i];
+		}
+
+		protected int size(){
+			return this.size;
+		}
+
+		protected String getLine(int i){
+			return this.lines[i];
+		}
+
+		protected int getStart(int i){
+			return this.starts[i];
+		}
+
+		protected int getEnd(int i){
+			return this.ends[i];
+		}
+
+		protected int getFrom(){
+			return this.from;
+		}
+
+		protected int getTo(){
+			return this.to;
+		}
+
+		protected long getSizeInBytes(){
+			return this.sizeInBytes;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package tracks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.filter.AggregateFilter;
+import htsjdk.samtools.filter.SamRecordFilter;
+import filter.SamFlagFilter;
+import samTextViewer.Utils;
+
+/** Iterate through the records returned by a SamReader query and return only those
+ * passing all the filters set in FeatureFilter: sam flag and mapq filters, variant reads,
+ * grep and awk. Each record is decoded once and handed to the consumer as soon as
+ * it is known to pass. Flag and mapq filters are compiled in a single SamFlagFilter tested
+ * first: These fields are in the fixed part of a bam record so records failing them 
+ * are discarded before cigar, sequence and qualities are decoded.
+ * Awk is the only filter that cannot be applied record by record since the awk
+ * interpreter runs on a batch of lines. In this case records passing the other filters
+ * are buffered in batches of AWK_BATCH_SIZE and sent to awk in one go.
+ * */
+class FilteredSamRecordIterator implements Iterator<SAMRecord> {
+
+	private static final int AWK_BATCH_SIZE= 10000;
+
+	private Iterator<SAMRecord> sam;
+	private FeatureFilter featureFilter;
+	/** Flag and mapq filters combined. Null if not set */
+	private SamFlagFilter flagFilter;
+	/** Filters other than flag and mapq filters. Null if there are none */
+	private AggregateFilter otherFilters;
+	private boolean hasGrep;
+	private boolean hasAwk;
+	private boolean hasVariantFilter;
+	private LinkedList<SAMRecord> buffer= new LinkedList<SAMRecord>(); // Records ready to be returned
+
+	/* C o n s t r u c t o r */
+
+	/**
+	 * @param sam Iterator as returned by samReader.query(). The caller is responsible
+	 * for closing the reader.
+	 * */
+	protected FilteredSamRecordIterator(Iterator<SAMRecord> sam, FeatureFilter featureFilter){
+		this.sam= sam;
+		this.featureFilter= featureFilter;
+		List<SamRecordFilter> others= new ArrayList<SamRecordFilter>();
+		for(SamRecordFilter filter : featureFilter.getSamRecordFilter()){
+			if(filter instanceof SamFlagFilter){
+				this.flagFilter= this.flagFilter == null ? (SamFlagFilter) filter : this.flagFilter.and((SamFlagFilter) filter);
+			} else {
+				others.add(filter);
+			}
+		}
+		if(others.size() > 0){
+			this.otherFilters= new AggregateFilter(others);
+		}
+		this.hasGrep= ! featureFilter.getShowRegex().pattern().equals(Filter.DEFAULT_SHOW_REGEX.getValue()) ||
+					  ! featureFilter.getHideRegex().pattern().equals(Filter.DEFAULT_HIDE_REGEX.getValue());
+		this.hasAwk= featureFilter.getAwk() != null && ! featureFilter.getAwk().trim().equals(Filter.DEFAULT_AWK.getValue());
+		this.hasVariantFilter= ! featureFilter.getVariantChrom().equals(Filter.DEFAULT_VARIANT_CHROM.getValue());
+	}
+
+	/* M e t h o d s */
+
+	@Override
+	public boolean hasNext() {
+		if(this.buffer.size() == 0){
+			this.fillBuffer();
+		}
+		return this.buffer.size() > 0;
+	}
+
+	@Override
+	public SAMRecord next() {
+		if( ! this.hasNext()){
+			throw new NoSuchElementException();
+		}
+		return this.buffer.removeFirst();
+	}
+
+	/** Move forward the underlying iterator until at least one record passing filters is
+	 * found or the iterator is exhausted.
+	 * */
+	private void fillBuffer(){
+		while(this.buffer.size() == 0 && this.sam.hasNext()){
+			List<SAMRecord> batch= new ArrayList<SAMRecord>();
+			List<String> rawLines= new ArrayList<String>();
+			while(this.sam.hasNext()){
+				SAMRecord rec= this.sam.next();
+				if( ! this.passSamFilters(rec)){
+					continue;
+				}
+				String raw= null;
+				if(this.hasGrep){
+					raw= rec.getSAMString().trim();
+					if( ! this.passGrep(raw)){
+						continue;
+					}
+				}
+				if( ! this.hasAwk){
+					this.buffer.add(rec);
+					return;
+				}
+				if(raw == null){
+					raw= rec.getSAMString().trim();
+				}
+				batch.add(rec);
+				rawLines.add(raw);
+				if(batch.size() >= AWK_BATCH_SIZE){
+					break;
+				}
+			}
+			if(batch.size() == 0){
+				return;
+			}
+			boolean[] awkResults;
+			try {
+				awkResults= Utils.passAwkFilter(rawLines.toArray(new String[rawLines.size()]), this.featureFilter.getAwk());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			for(int i= 0; i < batch.size(); i++){
+				if(awkResults[i]){
+					this.buffer.add(batch.get(i));
+				}
+			}
+			// If all records in this batch have been filtered out, try the next batch.
+		}
+	}
+
+	/** Filters that can be checked on the SAMRecord object, i.e. excluding grep and awk.
+	 * Unmapped reads are always discarded.
+	 * */
+	private boolean passSamFilters(SAMRecord rec){
+		int flags= rec.getFlags();
+		if((flags & 4) != 0 ||
+		   (this.flagFilter != null && ! this.flagFilter.pass(flags, rec.getMappingQuality())) ||
+		   (this.otherFilters != null && this.otherFilters.filterOut(rec)) ||
+		   rec.getAlignmentEnd() < rec.getAlignmentStart()){
+			return false;
+		}
+		// Filter for variant reads: Do it only if there is an intersection between variant interval and current genomic window
+		if(this.hasVariantFilter){
+			return this.isSNVRead(rec, this.featureFilter.isVariantOnly());
+		}
+		return true;
+	}
+
+	private boolean passGrep(String raw){
+		boolean showIt= true;
+		if(! this.featureFilter.getShowRegex().pattern().equals(Filter.DEFAULT_SHOW_REGEX.getValue())){
+			showIt= this.featureFilter.getShowRegex().matcher(raw).find();
+		}
+		boolean hideIt= false;
+		if(! this.featureFilter.getHideRegex().pattern().equals(Filter.DEFAULT_HIDE_REGEX.getValue())){
+			hideIt= this.featureFilter.getHideRegex().matcher(raw).find();
+		}
+		return showIt && ! hideIt;
+	}
+
+	/**Return true if samrecord contains a mismatch or insertion/deletion in the target region.
+	 * */
+	private boolean isSNVRead(SAMRecord rec, boolean variantOnly) {
+		boolean passed= false;
+
+		int varFrom= this.featureFilter.getVariantFrom();
+		int varTo= this.featureFilter.getVariantTo();
+
+		if(this.featureFilter.getVariantChrom().equals(rec.getReferenceName()) &&
+		        varFrom <= rec.getAlignmentEnd() &&
+		        rec.getAlignmentStart() <= varTo){
+			// Variant read filter is set and this read overlaps it.
+			if( ! variantOnly){
+				return true; // No need to check whether read is variant.
+			}
+			int readPos= 0;
+			int refPos= rec.getAlignmentStart();
+			for(CigarElement cigar : rec.getCigar().getCigarElements()){
+				if(cigar.getOperator().equals(CigarOperator.SOFT_CLIP)){
+					readPos += cigar.getLength();
+				}
+				else if(cigar.getOperator().equals(CigarOperator.M) ||
+						cigar.getOperator().equals(CigarOperator.EQ) ||
+						cigar.getOperator().equals(CigarOperator.X)){
+					for(int i= 0; i < cigar.getLength(); i++){
+						if(refPos >= varFrom && refPos <= varTo && rec.getReadLength() > 0){
+							byte readBase= rec.getReadBases()[readPos];
+							byte refBase= this.featureFilter.getFaSeq()[refPos-varFrom];
+							if(readBase != refBase){
+								passed= true;
+								break;
+							}
+						}
+						readPos++;
+						refPos++;
+					}
+				}
+				else if(cigar.getOperator().equals(CigarOperator.DELETION)){ // Consumes ref base, not read base
+					// REF  ACTGTTTTACTG
+					// READ   TG----AC
+					//          ^^^^
+					for(int i= 0; i < cigar.getLength(); i++){
+						if(refPos >= varFrom && refPos <= varTo){
+							passed= true;
+							break;
+						}
+						refPos++;
+					}
+				}
+				else if(cigar.getOperator().equals(CigarOperator.INSERTION)){ // Consumes read, not ref
+					//  REF ACTG----ACTG
+					// READ   TGttttAC
+					//         ^
+					for(int i= 0; i < cigar.getLength(); i++){
+						if(refPos >= varFrom && refPos <= varTo){
+							passed= true;
+							break;
+						}
+						readPos++;
+					}
+				}
+				else if(cigar.getOperator().equals(CigarOperator.HARD_CLIP)){
+					//
+				}
+				else if(cigar.getOperator().equals(CigarOperator.SKIPPED_REGION)){ // Same deletion but it's not a mismatch
+					refPos += cigar.getLength();
+				}
+				else if(cigar.getOperator().equals(CigarOperator.PADDING)){
+					// Not sure what to do with this...
+				}
+				if(passed){
+					break;
+				}
+			}
+		}
+		else {
+			// Variant read filter is set and this read does not overlap it.
+			passed= false;
+		}
+		return passed;
+	}
+}
@@ -16,6 +16,7 @@ import exceptions.InvalidGenomicCoordsException;
 import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFCodec;
+import samTextViewer.ScreenMapping;
 import samTextViewer.Utils;
 
 /**
@@ -40,6 +41,9 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 	private TrackFormat trackFormat= TrackFormat.BED;
 	/** Name to be displayed to the user */
 	private String name= ".";
+	/** Gtf/gff record with parsed attributes, created on first use since most features
+	 * read from file are never shown and their attributes never needed */
+	private Feature gffRecord;
 	/** Use this attribute to as key to assign the name field */
 	private String gtfAttributeForName= null;
 	private int bedFieldName= 3;
@@ -243,6 +247,13 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 	 * width mapping genome coords to screen coords.
 	 * */
 	public void mapToScreen(List<Double> rulerMap) {
+		this.mapToScreen(new ScreenMapping(rulerMap));
+	}
+
+	/** 
+	 * Map interval to screen coordinates, typically from GenomicCoords.getScreenMapping().
+	 * */
+	public void mapToScreen(ScreenMapping screenMapping) {
 
 		int xfrom= this.from;
 		int xto= this.to;
@@ -262,40 +273,19 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 		/*        |============| <- ruler
 		 *   ===                  ===  <- Interval(s) 
 		 */	
-		if((xfrom < rulerMap.get(0) && xto < rulerMap.get(0)) ||
-				(xfrom > rulerMap.get(rulerMap.size()-1)) && xto > rulerMap.get(rulerMap.size()-1)){
+		int[] span= screenMapping.getColumnSpan(xfrom, xto);
+		if(span == null){
 			this.screenFrom= -1;
 			this.screenTo= -1;
 			return;
 		}
-		
-		/*
-		 * Feature fully contains ruler map?
-		 *        |============| <- ruler
-		 *   ===================== <- Interval 
-		 */
-		if(xfrom <= rulerMap.get(0) && this.to >= rulerMap.get(rulerMap.size()-1)){
-			this.screenFrom= 0;
-			this.screenTo= rulerMap.size()-1;
-			return;
-		}
-		
-		// Feature is all or partially contained
-		screenFrom= Utils.getIndexOfclosestValue(xfrom, rulerMap);
-		screenTo= Utils.getIndexOfclosestValue(xto, rulerMap);
+		// Feature all or partially contained. Parts outside the ruler go to the first
+		// and last column.
 		/*        |============|      <- ruler
 		 *   ========   ===    =====  <- Interval(s) 
 		 */	
-		 if(screenFrom == -1){
-			 screenFrom= 0;
-		 }
-		 if(screenTo == -1){
-			 screenTo= rulerMap.size()-1;
-		 }
-		 if(screenFrom == -1 || screenTo == -1){
-			 System.err.println("Unexpected mapping of features to ruler.");
-			 throw new RuntimeException();
-		 }
+		this.screenFrom= span[0];
+		this.screenTo= span[1];
 	}	
 
 	/* For debugging only */
@@ -482,16 +472,17 @@ public class IntervalFeature implements Comparable<IntervalFeature>{
 			return null;
 		}
 		
-		String[] line= this.raw.split("\t");
-		if(line.length < 9){
-			return null;
+		if(this.gffRecord == null){
+			String[] line= this.raw.split("\t");
+			if(line.length < 9){
+				return null;
+			}
+			Location location= new Location(Integer.parseInt(line[3]), Integer.parseInt(line[4]));
+			double score= line[5].equals(".") ? Double.NaN : Double.parseDouble(line[5]);
+			int frame= line[7].equals(".") ? -1 : Integer.parseInt(line[7]);
+			this.gffRecord= new Feature(line[0], line[1], line[2], location, score, frame, line[8]);
 		}
-		Location location= new Location(Integer.parseInt(line[3]), Integer.parseInt(line[4]));
-		double score= line[5].equals(".") ? Double.NaN : Double.parseDouble(line[5]);
-		int frame= line[7].equals(".") ? -1 : Integer.parseInt(line[7]);
-		
-		Feature gff= new Feature(line[0], line[1], line[2], location, score, frame, line[8]);
-		String x= gff.getAttribute(attributeName);
+		String x= this.gffRecord.getAttribute(attributeName);
 		if(x != null ){
 			x= x.trim();
 		}
@@ -0,0 +1,225 @@
+package tracks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+
+/** Collect counts of read bases over a contiguous interval of a chromosome.
+ * Counts are stored in a dense array of ints indexed by offset from the start of the interval.
+ * Each position has one counter for each combination of base (A, C, G, T, N and deletion),
+ * strand and mate so no object is created for each aligned base.
+ * */
+class PileupAccumulator {
+
+	private static final char[] SYMBOLS= {'A', 'C', 'G', 'T', 'N', 'D'};
+	/** Order in which symbols with the same count are ranked when calling the consensus */
+	private static final int[] TIE_ORDER= {0, 1, 3, 5, 2, 4}; // A C T D G N
+	private static final int N_SLOTS= SYMBOLS.length * 4; // 4 = 2 strands x 2 mates
+
+	private static final int MIN_DEPTH_ALT= 3; // Min read depth for alternative allele to be taken into account
+	private static final double MIN_PCT_ALT= 0.01; // Min % of alternative allele to be taken into account
+	private static final double MIN_PCT_TOT= 0.98; // % (Reference + Alternative) must be above this otherwise set consensus to N.
+
+	private final int from;
+	private final int to;
+	private final int[] counts;
+	private final int[] depth; // Depth at each position. Same as summing counts but faster to get.
+
+	/*   C O N S T R U C T O R   */
+
+	/** Accumulator for positions from-to, 1-based, both included.
+	 * */
+	protected PileupAccumulator(int from, int to) {
+		if(to < from){
+			throw new IllegalArgumentException("Invalid interval: " + from + "-" + to);
+		}
+		this.from= from;
+		this.to= to;
+		this.counts= new int[(to - from + 1) * N_SLOTS];
+		this.depth= new int[to - from + 1];
+	}
+
+	/*  M E T H O D S  */
+
+	/** Update counts with the information in this record. Only positions
+	 * inside this accumulator are considered.
+	 * */
+	protected void add(SAMRecord samRecord){
+
+		// Is this read forward or reverse? First or second in pair?
+		boolean isFirstOFPair= ! samRecord.getFirstOfPairFlag();
+		boolean isReverse= samRecord.getReadNegativeStrandFlag();
+
+		List<AlignmentBlock> alnBlocks = samRecord.getAlignmentBlocks();
+		if(alnBlocks.size() == 0){
+			// Nothing to be done. This may happen with e.g. fully clipped reads
+			return;
+		}
+		byte[] readBases= samRecord.getReadBases();
+		for(AlignmentBlock block : alnBlocks){
+
+			int blockFrom= Math.max(block.getReferenceStart(), this.from);
+			int blockTo= Math.min(block.getReferenceStart() + block.getLength() - 1, this.to);
+			// readPos is 0-based offset on the read. Block's read start is 1-based
+			int readPos= block.getReadStart() - 1 + (blockFrom - block.getReferenceStart());
+			for(int refPos= blockFrom; refPos <= blockTo; refPos++){
+				// What read base do we have at this position?
+				char base= readBases.length == 0 ? 'N' : (char) readBases[readPos];
+				this.add(refPos, base, isReverse, isFirstOFPair);
+				readPos++;
+			}
+		}
+		// Now we need to increment counts corresponding to deletions in the reference
+		List<int[]>deletedBlocks= this.getRefPositionOfDeletedBlocks(samRecord);
+		for(int[] block : deletedBlocks){
+			int blockFrom= Math.max(block[0], this.from);
+			int blockTo= Math.min(block[1], this.to);
+			for(int refPos= blockFrom; refPos <= blockTo; refPos++){
+				this.add(refPos, 'D', isReverse, isFirstOFPair);
+			}
+		}
+	}
+
+	/** Increment count for base at position pos. Base is one of A, C, G, T, N or D for deletion.
+	 * */
+	protected void add(int pos, char base, boolean isReverse, boolean isFirstOFPair) {
+		int offset= pos - this.from;
+		int slot= offset * N_SLOTS + symbolIndex(base) * 4 + (isFirstOFPair ? 0 : 2) + (isReverse ? 1 : 0);
+		this.counts[slot]++;
+		this.depth[offset]++;
+	}
+
+	private static int symbolIndex(char base){
+		switch(Character.toUpperCase(base)){
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			case 'N': return 4;
+			case 'D': return 5;
+			default: throw new RuntimeException("Unexpected base: " + base);
+		}
+	}
+
+	/**
+	 * MEMO: Deletion does not consume read bases. It consumes reference bases:
+	 * ref  NNNNNNNN
+	 * read NNN---NN
+	 * */
+	private List<int[]> getRefPositionOfDeletedBlocks(SAMRecord samRecord){
+
+		int ndel= StringUtils.countMatches(samRecord.getCigarString().toUpperCase(), 'D');
+		List<int[]> deletedBlocks= new ArrayList<int[]>(ndel); // int array contains start and end of deletion
+		if( ndel == 0 ){
+			return deletedBlocks; // No deletetions, nothing to be done.
+		}
+
+		// 1S 2M 3D 4M 5D 6M 7S
+		// Walk along the cigar string. When an operator consumes read bases, advance the position tracker
+		// When you hit a deletion record the start and end of the deleted block in ref coordinates.
+		List<CigarElement> cigarOps = samRecord.getCigar().getCigarElements();
+		int readTracker= 0;
+		int[] deletedBlock= new int[2]; // Length 2 because it contains start and end of deleted block
+		for(CigarElement op : cigarOps){
+			if(op.getOperator().equals(CigarOperator.DELETION)){
+				deletedBlock[0]= samRecord.getReferencePositionAtReadPosition(readTracker) + 1;
+				deletedBlock[1]= samRecord.getReferencePositionAtReadPosition(readTracker + 1) - 1;
+				deletedBlocks.add(deletedBlock);
+				deletedBlock= new int[2];
+				if(deletedBlocks.size() == ndel){
+					// We have accumulated all the deleted blocks. No need to process this read any more.
+					return deletedBlocks;
+				}
+			}
+			if(op.getOperator().consumesReadBases()){
+				readTracker += op.getLength();
+			}
+		}
+		return deletedBlocks;
+	}
+
+	protected int getDepth(int pos){
+		return this.depth[pos - this.from];
+	}
+
+	/** Count of the given base at pos, summed across strands and mates.
+	 * */
+	protected int getCount(int pos, char base){
+		int slot= (pos - this.from) * N_SLOTS + symbolIndex(base) * 4;
+		return this.counts[slot] + this.counts[slot + 1] + this.counts[slot + 2] + this.counts[slot + 3];
+	}
+
+	/** Call consensus base at position pos. Return ' ' if there is no coverage.
+	 * */
+	protected char getConsensus(int pos){
+
+		int depth= this.getDepth(pos);
+		if(depth == 0){
+			return ' ';
+		}
+
+		// Find the first and second most frequent symbols
+		int allele1= -1;
+		int allele2= -1;
+		int count1= -1;
+		int count2= -1;
+		for(int idx : TIE_ORDER){
+			int n= this.getCount(pos, SYMBOLS[idx]);
+			if(n > count1){
+				allele2= allele1; count2= count1;
+				allele1= idx; count1= n;
+			} else if(n > count2){
+				allele2= idx; count2= n;
+			}
+		}
+
+		// Is allele2 supported by at least n calls?
+		// Is allele2 making up more than x % of the total?
+		char consensus;
+		if((float)(count1 + count2)/depth < MIN_PCT_TOT){
+			consensus= 'N';
+		} else if(count2 >= MIN_DEPTH_ALT && (float)count2/depth >= MIN_PCT_ALT ){
+			consensus= iupacAmbiguity(SYMBOLS[allele1], SYMBOLS[allele2]);
+		} else {
+			consensus= SYMBOLS[allele1];
+		}
+		return consensus;
+	}
+
+	private static char iupacAmbiguity(char x, char y){
+
+		if((x == 'A' && y == 'G') || (x == 'G' && y == 'A')){ return 'R'; }
+		if((x == 'C' && y == 'T') || (x == 'T' && y == 'C')){ return 'Y'; }
+		if((x == 'G' && y == 'C') || (x == 'C' && y == 'G')){ return 'S'; }
+		if((x == 'A' && y == 'T') || (x == 'T' && y == 'A')){ return 'W'; }
+		if((x == 'G' && y == 'T') || (x == 'T' && y == 'G')){ return 'K'; }
+		if((x == 'A' && y == 'C') || (x == 'C' && y == 'A')){ return 'M'; }
+		return 'N';
+	}
+
+	protected int getFrom(){
+		return this.from;
+	}
+
+	protected int getTo(){
+		return this.to;
+	}
+
+	/** Approximate memory used by the counts of this accumulator
+	 * */
+	protected long getSizeInBytes(){
+		return getSizeInBytes(this.to - this.from + 1);
+	}
+
+	/** Approximate memory used by the counts of an accumulator of this many positions
+	 * */
+	protected static long getSizeInBytes(int nPositions){
+		return 4L * nPositions * (N_SLOTS + 1);
+	}
+}
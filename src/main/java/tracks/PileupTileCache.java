@@ -0,0 +1,170 @@
+package tracks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.util.IntervalTree;
+
+/** Pileup counts cached in tiles of fixed size. Tiles start at 1 + n * TILE_SIZE so
+ * the same tile is reused by any window overlapping it. When the memory used by the tiles
+ * exceeds the budget, the least recently used tiles are evicted first.
+ * */
+class PileupTileCache {
+
+	protected static final int TILE_SIZE= 16384;
+
+	private final long maxBytes;
+	/** Key: Chromosome. Value: Tiles cached on this chromosome */
+	private Map<String, IntervalTree<PileupAccumulator>> tiles= new HashMap<String, IntervalTree<PileupAccumulator>>();
+	/** Same tiles as above in order of access, least recently used first. Value: Chromosome of the tile */
+	private LinkedHashMap<PileupAccumulator, String> lru= new LinkedHashMap<PileupAccumulator, String>(16, 0.75f, true);
+	private long sizeInBytes= 0;
+	private long hits= 0;
+	private long misses= 0;
+
+	/* C o n s t r u c t o r */
+
+	protected PileupTileCache(long maxBytes){
+		this.maxBytes= maxBytes;
+	}
+
+	/* M e t h o d s */
+
+	/** First position of the tile containing pos.
+	 * */
+	protected static int getTileStart(int pos){
+		return ((pos - 1) / TILE_SIZE) * TILE_SIZE + 1;
+	}
+
+	/** Last position of the tile containing pos.
+	 * */
+	protected static int getTileEnd(int pos){
+		return getTileStart(pos) + TILE_SIZE - 1;
+	}
+
+	/** Intervals of tiles overlapping from-to that are not cached. Intervals are aligned to tiles.
+	 * Each tile found in cache counts as a hit, each tile missing as a miss.
+	 * */
+	protected List<int[]> getMissingTiles(String chrom, int from, int to){
+		int tileFrom= getTileStart(from);
+		int tileTo= getTileEnd(to);
+		List<int[]> gaps= findGaps(this.getTiles(chrom), tileFrom, tileTo);
+		long nMissing= 0;
+		for(int[] gap : gaps){
+			nMissing += (gap[1] - gap[0] + 1) / TILE_SIZE;
+		}
+		this.misses += nMissing;
+		this.hits += (tileTo - tileFrom + 1) / TILE_SIZE - nMissing;
+		return gaps;
+	}
+
+	/** Add this tile to the cache. The tile must be aligned to TILE_SIZE.
+	 * */
+	protected void put(String chrom, PileupAccumulator tile){
+		if(tile.getFrom() != getTileStart(tile.getFrom()) || tile.getTo() != getTileEnd(tile.getFrom())){
+			throw new IllegalArgumentException("Accumulator not aligned to tiles: " + tile.getFrom() + "-" + tile.getTo());
+		}
+		PileupAccumulator old= this.getTiles(chrom).put(tile.getFrom(), tile.getTo(), tile);
+		if(old != null){
+			this.lru.remove(old);
+			this.sizeInBytes -= old.getSizeInBytes();
+		}
+		this.lru.put(tile, chrom);
+		this.sizeInBytes += tile.getSizeInBytes();
+	}
+
+	/** Return the cached tiles overlapping the given interval, sorted by position.
+	 * These tiles become the most recently used.
+	 * */
+	protected List<PileupAccumulator> get(String chrom, int from, int to){
+		List<PileupAccumulator> accumulators= new ArrayList<PileupAccumulator>();
+		if( ! this.tiles.containsKey(chrom)){
+			return accumulators;
+		}
+		Iterator<IntervalTree.Node<PileupAccumulator>> iter= this.tiles.get(chrom).overlappers(from, to);
+		while(iter.hasNext()){
+			PileupAccumulator tile= iter.next().getValue();
+			this.lru.get(tile); // Mark as accessed
+			accumulators.add(tile);
+		}
+		return accumulators;
+	}
+
+	/** True if the tiles overlapping from-to fit in the memory budget. If not, the caller should
+	 * rather estimate the window than read it, since the tiles of the current window are not evicted.
+	 * */
+	protected boolean canHold(int from, int to){
+		long nTiles= ((long) getTileEnd(to) - getTileStart(from) + 1) / TILE_SIZE;
+		return nTiles * PileupAccumulator.getSizeInBytes(TILE_SIZE) <= this.maxBytes;
+	}
+
+	/** Evict least recently used tiles until memory is within budget. Tiles overlapping
+	 * chrom:from-to are never evicted, so the current window stays cached even if it alone
+	 * exceeds the budget. See canHold() to avoid reading such window.
+	 * */
+	protected void evict(String chrom, int from, int to){
+		Iterator<Map.Entry<PileupAccumulator, String>> iter= this.lru.entrySet().iterator();
+		while(this.sizeInBytes > this.maxBytes && iter.hasNext()){
+			Map.Entry<PileupAccumulator, String> entry= iter.next();
+			PileupAccumulator tile= entry.getKey();
+			if(entry.getValue().equals(chrom) && tile.getFrom() <= to && tile.getTo() >= from){
+				continue;
+			}
+			iter.remove();
+			this.tiles.get(entry.getValue()).remove(tile.getFrom(), tile.getTo());
+			this.sizeInBytes -= tile.getSizeInBytes();
+		}
+	}
+
+	protected void clear(){
+		this.tiles.clear();
+		this.lru.clear();
+		this.sizeInBytes= 0;
+	}
+
+	private IntervalTree<PileupAccumulator> getTiles(String chrom){
+		if( ! this.tiles.containsKey(chrom)){
+			this.tiles.put(chrom, new IntervalTree<PileupAccumulator>());
+		}
+		return this.tiles.get(chrom);
+	}
+
+	/** Intervals in from-to, 1-based and closed, not covered by any interval in visited.
+	 * Gaps are found by walking the intervals overlapping from-to in order of start, so the
+	 * cost depends on the number of intervals, not on the size of the window.
+	 * */
+	protected static List<int[]> findGaps(IntervalTree<?> visited, int from, int to){
+		List<int[]> gaps= new ArrayList<int[]>();
+		int pos= from; // First position not known to be visited
+		Iterator<? extends IntervalTree.Node<?>> iter= visited.overlappers(from, to);
+		while(iter.hasNext() && pos <= to){
+			IntervalTree.Node<?> node= iter.next();
+			if(node.getStart() > pos){
+				gaps.add(new int[] {pos, node.getStart() - 1});
+			}
+			pos= Math.max(pos, node.getEnd() + 1);
+		}
+		if(pos <= to){
+			gaps.add(new int[] {pos, to});
+		}
+		return gaps;
+	}
+
+	protected long getSizeInBytes(){
+		return this.sizeInBytes;
+	}
+
+	/** Number of tiles requested and found in cache */
+	protected long getHits(){
+		return this.hits;
+	}
+
+	/** Number of tiles requested and not found in cache */
+	protected long getMisses(){
+		return this.misses;
+	}
+}
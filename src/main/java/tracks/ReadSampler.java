@@ -0,0 +1,141 @@
+package tracks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import htsjdk.samtools.SAMRecord;
+import samTextViewer.Utils;
+
+/** Downsample reads in a single pass, keeping at most maxReads reads.
+ * Each read is given a hash of its template name, so mates have the same hash. The sample is made
+ * of the reads with the smallest hashes (bottom-k sampling), which is a uniform sample of templates
+ * and is the same whatever the order of the reads. Mates are either both in or both out of the sample.
+ * A read is kept only while its hash is below the largest hash in the sample, so reads that can't
+ * enter the sample are discarded without further processing.
+ * */
+class ReadSampler {
+
+	private final int maxReads;
+	private final long seed;
+	/** Reads in the sample with the largest hash at the top */
+	private PriorityQueue<SampledRead> sample= new PriorityQueue<SampledRead>(11, new Comparator<SampledRead>() {
+		@Override
+		public int compare(SampledRead x, SampledRead y) {
+			return Long.compare(y.hash, x.hash);
+		}
+	});
+	private long count= 0;
+	/** Reads with hash above this are not sampled */
+	private long maxHash;
+	/** Smallest hash of the reads not in the sample */
+	private long minRejectedHash= Long.MAX_VALUE;
+
+	/* C o n s t r u c t o r */
+
+	/**
+	 * @param seed Changing the seed gives a different sample.
+	 * */
+	protected ReadSampler(int maxReads, long seed){
+		this(maxReads, seed, Long.MAX_VALUE);
+	}
+
+	/** Sampler continuing a previous sample: Only reads with hash not above maxHash are sampled, 
+	 * so reads added to a sample taken with the same seed have the same sampling rate.
+	 * @param maxHash Typically from getMaxHash() of a previous sampler.
+	 * */
+	protected ReadSampler(int maxReads, long seed, long maxHash){
+		this.maxReads= maxReads;
+		this.seed= seed;
+		this.maxHash= maxHash;
+	}
+
+	/* M e t h o d s */
+
+	protected void add(SAMRecord rec){
+		this.count++;
+		if(this.maxReads <= 0){
+			return;
+		}
+		long hash= this.templateHash(rec.getReadName());
+		if(hash > this.maxHash || (this.sample.size() >= this.maxReads && hash > this.sample.peek().hash)){
+			this.minRejectedHash= Math.min(this.minRejectedHash, hash);
+			return;
+		}
+		this.sample.add(new SampledRead(rec, hash, this.count));
+		if(this.sample.size() > this.maxReads){
+			// Remove all the reads with the largest hash, so mates are removed together
+			long top= this.sample.peek().hash;
+			while(this.sample.size() > 0 && this.sample.peek().hash == top){
+				this.sample.poll();
+			}
+			this.minRejectedHash= Math.min(this.minRejectedHash, top);
+		}
+	}
+
+	/** Largest hash a read can have to be in the sample. All the reads added so far with hash 
+	 * not above this value are in the sample.
+	 * */
+	protected long getMaxHash(){
+		if(this.minRejectedHash == Long.MAX_VALUE){
+			return this.maxHash;
+		}
+		return Math.min(this.maxHash, this.minRejectedHash - 1);
+	}
+
+	/** Number of reads in the sample
+	 * */
+	protected int size(){
+		return this.sample.size();
+	}
+
+	/** Number of reads seen so far, sampled or not.
+	 * */
+	protected long getCount(){
+		return this.count;
+	}
+
+	/** Sampled reads in the order they have been added.
+	 * */
+	protected List<SAMRecord> getSample(){
+		List<SampledRead> sorted= new ArrayList<SampledRead>(this.sample);
+		Collections.sort(sorted, new Comparator<SampledRead>() {
+			@Override
+			public int compare(SampledRead x, SampledRead y) {
+				return Long.compare(x.order, y.order);
+			}
+		});
+		List<SAMRecord> recs= new ArrayList<SAMRecord>(sorted.size());
+		for(SampledRead x : sorted){
+			recs.add(x.rec);
+		}
+		return recs;
+	}
+
+	/** 64 bit hash of the template name of this read, mixed with the seed.
+	 * Mixing uses the finalizer of MurmurHash3 so similar names give unrelated hashes.
+	 * */
+	private long templateHash(String readName){
+		long h= this.seed ^ Utils.templateNameFromSamReadName(readName).hashCode();
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static class SampledRead {
+		private final SAMRecord rec;
+		private final long hash;
+		private final long order;
+
+		private SampledRead(SAMRecord rec, long hash, long order){
+			this.rec= rec;
+			this.hash= hash;
+			this.order= order;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package tracks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.samtools.SAMRecord;
+
+/** Reads of the window currently shown by a TrackReads, kept so that moving the window
+ * by a fraction of its size only requires reading the newly exposed slice.
+ * For all the reads passing filters only start and end positions are kept, to count the
+ * reads in the window. The records themselves are kept only for the sampled reads.
+ * */
+class ReadWindow {
+
+	private final String chrom;
+	private final int from;
+	private final int to;
+	/** Start and end position of each read passing filters, in the order they have been added */
+	private int[] starts= new int[1024];
+	private int[] ends= new int[1024];
+	private int size= 0;
+	private List<SAMRecord> sample= new ArrayList<SAMRecord>();
+	private long maxHash= Long.MAX_VALUE;
+
+	/* C o n s t r u c t o r */
+
+	protected ReadWindow(String chrom, int from, int to){
+		this.chrom= chrom;
+		this.from= from;
+		this.to= to;
+	}
+
+	/* M e t h o d s */
+
+	/** Return true if the window chrom:from-to can be obtained from this one by reading only
+	 * the positions outside this window. That is, the new window has the same size as this one
+	 * and overlaps it.
+	 * */
+	protected boolean isPanTo(String chrom, int from, int to){
+		return this.chrom.equals(chrom) &&
+				(to - from) == (this.to - this.from) &&
+				from != this.from &&
+				from <= this.to && to >= this.from;
+	}
+
+	/** Window for chrom:from-to holding the reads of this window overlapping it.
+	 * The sample of the new window is still to be set.
+	 * */
+	protected ReadWindow panTo(int from, int to){
+		ReadWindow pan= new ReadWindow(this.chrom, from, to);
+		for(int i= 0; i < this.size; i++){
+			if(this.starts[i] <= to && this.ends[i] >= from){
+				pan.add(this.starts[i], this.ends[i]);
+			}
+		}
+		return pan;
+	}
+
+	/** Sampled records of this window overlapping from-to.
+	 * */
+	protected List<SAMRecord> getSampleOverlapping(int from, int to){
+		List<SAMRecord> overlapping= new ArrayList<SAMRecord>();
+		for(SAMRecord rec : this.sample){
+			if(rec.getAlignmentStart() <= to && rec.getAlignmentEnd() >= from){
+				overlapping.add(rec);
+			}
+		}
+		return overlapping;
+	}
+
+	/** Add a read passing filters.
+	 * */
+	protected void add(SAMRecord rec){
+		this.add(rec.getAlignmentStart(), rec.getAlignmentEnd());
+	}
+
+	private void add(int start, int end){
+		if(this.size == this.starts.length){
+			this.starts= Arrays.copyOf(this.starts, this.size * 2);
+			this.ends= Arrays.copyOf(this.ends, this.size * 2);
+		}
+		this.starts[this.size]= start;
+		this.ends[this.size]= end;
+		this.size++;
+	}
+
+	/** Number of reads passing filters in this window
+	 * */
+	protected int getCount(){
+		return this.size;
+	}
+
+	protected String getChrom(){
+		return this.chrom;
+	}
+
+	protected int getFrom(){
+		return this.from;
+	}
+
+	protected int getTo(){
+		return this.to;
+	}
+
+	protected List<SAMRecord> getSample(){
+		return this.sample;
+	}
+
+	/** Set the sampled reads and the largest sampling hash, as from ReadSampler.getMaxHash().
+	 * */
+	protected void setSample(List<SAMRecord> sample, long maxHash){
+		this.sample= sample;
+		this.maxHash= maxHash;
+	}
+
+	protected long getMaxHash(){
+		return this.maxHash;
+	}
+}
@@ -16,6 +16,12 @@ public class ScreenWiggleLocusInfo {
 		sumScore += score;
 	}
 
+	/** Increment attributes as for nLoci genomic loci with the same score */
+	public void increment(float score, int nLoci){
+		cntGenomicLoci += nLoci;
+		sumScore += score * nLoci;
+	}
+
 	public String toString(){
 		String str= "cntGenomicLoci: " + this.cntGenomicLoci + "; sumScores: " + this.sumScore;
 		return str;
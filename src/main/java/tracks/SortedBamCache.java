@@ -0,0 +1,119 @@
+package tracks;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import coloring.Config;
+import coloring.ConfigKey;
+import htsjdk.samtools.util.FileExtensions;
+import samTextViewer.Utils;
+import sortBgzipIndex.SamSorter;
+
+/** Sorted and indexed copies of sam and bam files without index, kept in cache_dir and
+ * shared by all the tracks and sessions opening the same file.
+ * A copy is named after the path, size and modification time of the original file, so a
+ * modified file is sorted again. When the copies exceed sorted_bam_cache_mb, the least
+ * recently used are deleted.
+ * */
+class SortedBamCache {
+
+	private static final String SUFFIX= ".sorted.bam";
+
+	/* M e t h o d s */
+
+	/** Return the path to a sorted and indexed copy of this sam or bam file. The copy is taken
+	 * from the cache if available, otherwise it is created and added to the cache. If caching
+	 * is disabled or not possible, e.g. for URLs, the copy is a temporary file deleted on exit.
+	 * A copy from cache is registered as used by user until CacheFiles.release(user).
+	 * */
+	protected static synchronized String getSortedBam(String samOrBam, Object user) throws IOException{
+
+		long maxBytes= getMaxBytes();
+		File source= new File(samOrBam);
+		if(maxBytes <= 0 || ! source.isFile()){
+			File temp= Utils.createTempFile(".asciigenome.", ".bam", true);
+			Utils.sortAndIndexSamOrBam(samOrBam, temp.getAbsolutePath(), true);
+			return temp.getAbsolutePath();
+		}
+
+		File cacheDir= new File(Utils.tildeToHomeDir(Config.get(ConfigKey.cache_dir)));
+		File cached= new File(cacheDir, getCacheName(source));
+		if(cached.isFile() && getIndex(cached).isFile()){
+			// Mark as recently used
+			cached.setLastModified(System.currentTimeMillis());
+		} else {
+			cacheDir.mkdirs();
+			// Sort to a temporary file and move in place so other sessions never see a partial file.
+			// Index goes first since a bam file in cache implies its index is there too.
+			File tmp= File.createTempFile(".asciigenome.", ".bam", cacheDir);
+			tmp.deleteOnExit();
+			SamSorter.getBaiFile(tmp).deleteOnExit();
+			SamSorter.getCsiFile(tmp).deleteOnExit();
+			Utils.sortAndIndexSamOrBam(samOrBam, tmp.getAbsolutePath(), false);
+			// The index is either bai or csi, remove a stale index of the other type
+			File index= getIndex(tmp);
+			getIndex(cached).delete();
+			File cachedIndex= index.getName().endsWith(FileExtensions.CSI) ? SamSorter.getCsiFile(cached) : SamSorter.getBaiFile(cached);
+			Files.move(index.toPath(), cachedIndex.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		CacheFiles.use(user, cached, getIndex(cached));
+		evict(cacheDir, maxBytes, cached);
+		return cached.getAbsolutePath();
+	}
+
+	/** Delete the least recently used sorted files in cacheDir, and their indexes, until their
+	 * size is within maxBytes. The file to keep and the files in use, in this session or possibly
+	 * in others, are never deleted.
+	 * */
+	protected static void evict(File cacheDir, long maxBytes, File keep){
+		Map<File, File> cached= new HashMap<File, File>();
+		for(File f : listCached(cacheDir)){
+			cached.put(f, getIndex(f));
+		}
+		CacheFiles.evict(cached, maxBytes, keep);
+	}
+
+	/** Sorted files in cacheDir, without their index.
+	 * */
+	protected static File[] listCached(File cacheDir){
+		File[] cached= cacheDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().endsWith(SUFFIX);
+			}
+		});
+		if(cached == null){
+			return new File[0];
+		}
+		return cached;
+	}
+
+	/** Name of the sorted copy of this file. It depends on full path, size and time of last
+	 * modification of the file.
+	 * */
+	private static String getCacheName(File source){
+		File f= source.getAbsoluteFile();
+		String hash= CacheFiles.hashFile(f);
+		return f.getName() + "." + hash + SUFFIX;
+	}
+
+	/** Index file as written by Utils.sortAndIndexSamOrBam
+	 * */
+	protected static File getIndex(File bam){
+		return SamSorter.getIndexFile(bam);
+	}
+
+	private static long getMaxBytes(){
+		String mb= Config.get(ConfigKey.sorted_bam_cache_mb);
+		if(mb == null){
+			return 0;
+		}
+		return 1024L * 1024L * Long.parseLong(mb);
+	}
+}
@@ -5,16 +5,16 @@ import java.io.IOException;
 import org.broad.igv.bbfile.BBFileReader;
 import org.broad.igv.bbfile.BedFeature;
 
-import htsjdk.tribble.readers.TabixReader;
 import htsjdk.tribble.readers.TabixReader.Iterator;
 import org.broad.igv.bbfile.BigBedIterator;
+import sortBgzipIndex.TabixCsiReader;
 
 public class TabixBigBedIterator {
 
 	Iterator tabixIterator;
 	BigBedIterator bigBedIterator;
 	
-	protected TabixBigBedIterator(TabixReader reader, String chrom, int start, int end){
+	protected TabixBigBedIterator(TabixCsiReader reader, String chrom, int start, int end){
 		this.tabixIterator= reader.query(chrom, start, end);
 	}
 
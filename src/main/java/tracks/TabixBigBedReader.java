@@ -4,16 +4,16 @@ import java.util.HashSet;
 import java.util.Set;
 
 import org.broad.igv.bbfile.BBFileReader;
-import htsjdk.tribble.readers.TabixReader;
+import sortBgzipIndex.TabixCsiReader;
 
 /** Adapter to make tabixReader and bigBed behave in the same way.
  * */
 public class TabixBigBedReader {
 
-	private TabixReader tabixReader; 
+	private TabixCsiReader tabixReader; 
 	private BBFileReader bigBedReader;
 	
-	protected TabixBigBedReader(TabixReader tabixReader){
+	protected TabixBigBedReader(TabixCsiReader tabixReader){
 		this.tabixReader= tabixReader;
 	};
 	
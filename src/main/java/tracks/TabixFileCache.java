@@ -0,0 +1,134 @@
+package tracks;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import coloring.Config;
+import coloring.ConfigKey;
+import exceptions.InvalidRecordException;
+import htsjdk.samtools.util.FileExtensions;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import samTextViewer.Utils;
+import sortBgzipIndex.MakeTabixIndex;
+
+/** Sorted, block compressed and tabix indexed copies of interval files (bed, gtf, vcf, etc.)
+ * without index, kept in cache_dir and shared by all the tracks and sessions opening the same file.
+ * A copy is named after the path, size and modification time of the original file, so a
+ * modified file is indexed again. The name of the copy ends with the name of the original file
+ * so that the file type can be still recognized from the extension. When the copies exceed
+ * tabix_cache_mb, the least recently used are deleted.
+ * */
+class TabixFileCache {
+
+	/** Cached files start with the hash of the source file */
+	private static final Pattern CACHE_NAME= Pattern.compile("^[0-9a-f]{32}\\..+\\.gz$");
+
+	/* M e t h o d s */
+
+	/** Return the path to a sorted, compressed and indexed copy of this file. The copy is taken
+	 * from the cache if available, otherwise it is created and added to the cache. If caching
+	 * is disabled or not possible, e.g. for URLs, the copy is a temporary file deleted on exit.
+	 * A copy from cache is registered as used by user until CacheFiles.release(user).
+	 * */
+	protected static synchronized String getTabixFile(String filename, TabixFormat fmt, Object user) throws IOException, InvalidRecordException, ClassNotFoundException, SQLException{
+
+		long maxBytes= getMaxBytes();
+		File source= new File(filename);
+		if(maxBytes <= 0 || ! source.isFile()){
+			String suffix= source.getName();
+			if( ! suffix.endsWith(".gz")){
+				suffix += ".gz";
+			}
+			File tmp= Utils.createTempFile(".asciigenome.", "." + suffix, true);
+			new File(tmp.getAbsolutePath() + FileExtensions.TABIX_INDEX).deleteOnExit();
+			new File(tmp.getAbsolutePath() + FileExtensions.CSI).deleteOnExit();
+			new MakeTabixIndex(filename, tmp, fmt);
+			return tmp.getAbsolutePath();
+		}
+
+		File cacheDir= new File(Utils.tildeToHomeDir(Config.get(ConfigKey.cache_dir)));
+		File cached= new File(cacheDir, getCacheName(source));
+		if(cached.isFile() && getIndex(cached).isFile()){
+			// Mark as recently used
+			cached.setLastModified(System.currentTimeMillis());
+		} else {
+			cacheDir.mkdirs();
+			// Index to a temporary file and move in place so other sessions never see a partial file.
+			// Index goes first since a file in cache implies its index is there too.
+			File tmp= File.createTempFile(".asciigenome.", ".tmp.gz", cacheDir);
+			tmp.deleteOnExit();
+			new File(tmp.getAbsolutePath() + FileExtensions.TABIX_INDEX).deleteOnExit();
+			new File(tmp.getAbsolutePath() + FileExtensions.CSI).deleteOnExit();
+			new MakeTabixIndex(filename, tmp, fmt);
+			// The index is either tbi or csi, remove a stale index of the other type
+			File index= getIndex(tmp);
+			String ext= index.getName().substring(tmp.getName().length());
+			getIndex(cached).delete();
+			Files.move(index.toPath(), new File(cached.getAbsolutePath() + ext).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		CacheFiles.use(user, cached, getIndex(cached));
+		evict(cacheDir, maxBytes, cached);
+		return cached.getAbsolutePath();
+	}
+
+	/** Delete the least recently used indexed files in cacheDir, and their indexes, until their
+	 * size is within maxBytes. The file to keep and the files in use, in this session or possibly
+	 * in others, are never deleted.
+	 * */
+	protected static void evict(File cacheDir, long maxBytes, File keep){
+		Map<File, File> cached= new HashMap<File, File>();
+		for(File f : listCached(cacheDir)){
+			cached.put(f, getIndex(f));
+		}
+		CacheFiles.evict(cached, maxBytes, keep);
+	}
+
+	/** Indexed files in cacheDir, without their index.
+	 * */
+	protected static File[] listCached(File cacheDir){
+		File[] cached= cacheDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.isFile() && CACHE_NAME.matcher(f.getName()).matches() && getIndex(f).isFile();
+			}
+		});
+		if(cached == null){
+			return new File[0];
+		}
+		return cached;
+	}
+
+	/** Name of the indexed copy of this file. It depends on full path, size and time of last
+	 * modification of the file.
+	 * */
+	private static String getCacheName(File source){
+		File f= source.getAbsoluteFile();
+		String hash= CacheFiles.hashFile(f);
+		String name= f.getName();
+		if( ! name.endsWith(".gz")){
+			name += ".gz";
+		}
+		return hash + "." + name;
+	}
+
+	/** The tbi or csi index of this file */
+	protected static File getIndex(File bgzf){
+		return MakeTabixIndex.getIndexFile(bgzf);
+	}
+
+	private static long getMaxBytes(){
+		String mb= Config.get(ConfigKey.tabix_cache_mb);
+		if(mb == null){
+			return 0;
+		}
+		return 1024L * 1024L * Long.parseLong(mb);
+	}
+}
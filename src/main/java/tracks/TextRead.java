@@ -151,7 +151,7 @@ class TextRead extends IntervalFeature{
 			this.textStart= 1;
 			return;
 		}		
-		this.textStart= Utils.getIndexOfclosestValue(alnStart, gc.getMapping()) + 1;
+		this.textStart= gc.getScreenMapping().getColumn(alnStart) + 1;
 		return;
 	}
 	
@@ -190,7 +190,7 @@ class TextRead extends IntervalFeature{
 		} else {
 			alnEnd= samRecord.getAlignmentEnd();
 		}	
-		this.textEnd= Utils.getIndexOfclosestValue(alnEnd, gc.getMapping()) + 1;
+		this.textEnd= gc.getScreenMapping().getColumn(alnEnd) + 1;
 		return;
 	}
 
@@ -237,8 +237,8 @@ class TextRead extends IntervalFeature{
 			if(el.getOperator().equals(CigarOperator.SKIPPED_REGION)){
 				int[] textPositions= new int[2];
 				// +1 because textPosition is 1-based
-				textPositions[0]= Utils.getIndexOfclosestValue(genomicPosition, this.gc.getMapping()) + 1; 
-				textPositions[1]= Utils.getIndexOfclosestValue(genomicPosition + el.getLength(), this.gc.getMapping()) + 1;
+				textPositions[0]= this.gc.getScreenMapping().getColumn(genomicPosition) + 1; 
+				textPositions[1]= this.gc.getScreenMapping().getColumn(genomicPosition + el.getLength()) + 1;
 				this.textPositionsOfSkippedBases.add(textPositions);
 			};
 			if(el.getOperator().consumesReferenceBases()){
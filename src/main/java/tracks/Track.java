@@ -36,11 +36,8 @@ import exceptions.InvalidColourException;
 import exceptions.InvalidCommandLineException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
-import htsjdk.samtools.CigarElement;
-import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
-import htsjdk.samtools.filter.AggregateFilter;
 import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 import htsjdk.variant.variantcontext.VariantContext;
@@ -923,169 +920,13 @@ public abstract class Track {
 		return title + track; 
 	}
 	
-	public List<Boolean> filterReads(SamReader samReader, String chrom, int from, int to) throws IOException {
-
-		Iterator<SAMRecord> filterSam= samReader.query(chrom, from, to, false);
-		
-		AggregateFilter aggregateFilter= new AggregateFilter(this.getFeatureFilter().getSamRecordFilter());
-
-		// This array will contain true/false to indicate whether a record passes the 
-		// sam filters AND the awk filter (if given).
-		// boolean[] results= new boolean[(int) this.nRecsInWindow];
-		List<Boolean> results= new ArrayList<Boolean>();
-
-		List<String> awkDataInput= new ArrayList<String>();
-		while(filterSam.hasNext()){ 
-			// Record whether a read passes the sam filters. If necessary, we also 
-			// store the raw reads for awk.
-			SAMRecord rec= filterSam.next();
-			boolean passed;
-			if(!rec.getReadUnmappedFlag() && 
-			        !aggregateFilter.filterOut(rec) &&
-			        rec.getAlignmentEnd() >= rec.getAlignmentStart()){
-				passed= true;
-			} else {
-				passed= false;
-			}
-
-			// Filter for variant reads: Do it only if there is an intersection between variant interval and current genomic window
-			if(this.getFeatureFilter().getVariantChrom().equals(Filter.DEFAULT_VARIANT_CHROM.getValue())){
-				// Variant read filter is not set. Nothing to do.
-			}
-			else if(passed){ 
-				// Memo: Test filter(s) only if a read is passed==true. 
-				passed= this.isSNVRead(rec, this.getFeatureFilter().isVariantOnly());
-			}
-			
-			String raw= null;
-
-			if(passed && (! this.getFeatureFilter().getShowRegex().equals(Filter.DEFAULT_SHOW_REGEX.getValue()) || 
-					      ! this.getFeatureFilter().getHideRegex().equals(Filter.DEFAULT_HIDE_REGEX.getValue()))){
-				// grep
-				raw= rec.getSAMString().trim();
-				boolean showIt= true;
-				if(! this.getFeatureFilter().getShowRegex().equals(Filter.DEFAULT_SHOW_REGEX.getValue())){
-					showIt= this.getFeatureFilter().getShowRegex().matcher(raw).find();
-				}
-				boolean hideIt= false;
-				if(! this.getFeatureFilter().getHideRegex().equals(Filter.DEFAULT_HIDE_REGEX.getValue())){
-					hideIt= this.getFeatureFilter().getHideRegex().matcher(raw).find();	
-				}
-				if(!showIt || hideIt){
-					passed= false;
-				}
-			}
-			results.add(passed);
-			if(passed && this.getAwk() != null && ! this.getAwk().isEmpty()){
-				// We pass to awk only records that have been kept so far.
-				if(raw == null){
-					raw= rec.getSAMString().trim();
-				}
-				awkDataInput.add(raw);
-			}
-		} // End loop through reads
-
-		// Apply the awk filter, if given
-		if(this.getAwk() != null && ! this.getAwk().equals(Filter.DEFAULT_AWK.getValue())){
-			String[] rawLines= new String[awkDataInput.size()];
-			rawLines= awkDataInput.toArray(rawLines);
-			boolean[] awkResults= Utils.passAwkFilter(rawLines, this.getAwk());
-			// Compare the results array with awk filtered. Flip as appropriate the results array
-			int awkIdx= 0;
-			int i= 0;
-			for(boolean isPassed : results){
-				if(isPassed){
-					if( ! awkResults[awkIdx]){
-						results.set(i, false);
-					}
-					awkIdx++;
-				}
-				i++;
-			}
-		}
-		return results;
-	}
-
-	/**Return true if samrecord contains a mismatch or insertion/deletion in the target region.
+	/**Query the reads in chrom:from-to and return an iterator over the records passing
+	 * all the filters set for this track. Records are read from the bam file only once.
+	 * The caller is responsible for closing the samReader once done with the iterator.
 	 * */
-	private boolean isSNVRead(SAMRecord rec, boolean variantOnly) {
-		boolean passed= false;
-		
-		int varFrom= this.getFeatureFilter().getVariantFrom();
-		int varTo= this.getFeatureFilter().getVariantTo();
-
-		if(this.getFeatureFilter().getVariantChrom().equals(rec.getReferenceName()) &&
-		        varFrom <= rec.getAlignmentEnd() &&
-		        rec.getAlignmentStart() <= varTo){
-			// Variant read filter is set and this read overlaps it. 
-			if( ! variantOnly){
-				return true; // No need to check whether read is variant.
-			}
-			int readPos= 0;
-			int refPos= rec.getAlignmentStart();
-			for(CigarElement cigar : rec.getCigar().getCigarElements()){
-				if(cigar.getOperator().equals(CigarOperator.SOFT_CLIP)){
-					readPos += cigar.getLength();
-				}
-				else if(cigar.getOperator().equals(CigarOperator.M) ||
-						cigar.getOperator().equals(CigarOperator.EQ) || 
-						cigar.getOperator().equals(CigarOperator.X)){
-					for(int i= 0; i < cigar.getLength(); i++){
-						if(refPos >= varFrom && refPos <= varTo && rec.getReadLength() > 0){
-							byte readBase= rec.getReadBases()[readPos];
-							byte refBase= this.getFeatureFilter().getFaSeq()[refPos-varFrom];
-							if(readBase != refBase){
-								passed= true;
-								break;
-							}
-						}
-						readPos++;
-						refPos++;
-					}
-				}
-				else if(cigar.getOperator().equals(CigarOperator.DELETION)){ // Consumes ref base, not read base
-					// REF  ACTGTTTTACTG
-					// READ   TG----AC
-					//          ^^^^
-					for(int i= 0; i < cigar.getLength(); i++){
-						if(refPos >= varFrom && refPos <= varTo){
-							passed= true;
-							break;
-						}
-						refPos++;							
-					}
-				}
-				else if(cigar.getOperator().equals(CigarOperator.INSERTION)){ // Consumes read, not ref 
-					//  REF ACTG----ACTG
-					// READ   TGttttAC
-					//         ^    
-					for(int i= 0; i < cigar.getLength(); i++){
-						if(refPos >= varFrom && refPos <= varTo){
-							passed= true;
-							break;
-						}
-						readPos++;							
-					}
-				} 
-				else if(cigar.getOperator().equals(CigarOperator.HARD_CLIP)){ 
-					//
-				} 
-				else if(cigar.getOperator().equals(CigarOperator.SKIPPED_REGION)){ // Same deletion but it's not a mismatch 
-					refPos += cigar.getLength();
-				} 
-				else if(cigar.getOperator().equals(CigarOperator.PADDING)){ 
-					// Not sure what to do with this...
-				} 
-				if(passed){
-					break;
-				}
-			}
-		} 
-		else {
-			// Variant read filter is set and this read does not overlap it.
-			passed= false;
-		}
-		return passed;
+	protected Iterator<SAMRecord> filterReads(SamReader samReader, String chrom, int from, int to) {
+		Iterator<SAMRecord> sam= samReader.query(chrom, from, to, false);
+		return new FilteredSamRecordIterator(sam, this.getFeatureFilter());
 	}
 
 	protected void setColorForRegex(List<Argument> xcolorForRegex) {
@@ -21,10 +21,10 @@ import com.google.common.collect.Lists;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
 import htsjdk.tribble.index.tabix.TabixFormat;
-import htsjdk.tribble.readers.TabixReader;
 import samTextViewer.GenomicCoords;
 import samTextViewer.Utils;
 import sortBgzipIndex.MakeTabixIndex;
+import sortBgzipIndex.TabixCsiReader;
 
 public class TrackBookmark extends TrackIntervalFeature {
 	
@@ -46,13 +46,14 @@ public class TrackBookmark extends TrackIntervalFeature {
 		File bookmark= new File(bookmarkPlain + ".gz");
 		bookmark.deleteOnExit();
 		(new File(bookmark.getAbsolutePath() + ".tbi")).deleteOnExit();
+		(new File(bookmark.getAbsolutePath() + ".csi")).deleteOnExit();
 		this.setFilename(bookmark.getAbsolutePath());
 		this.setWorkFilename(bookmark.getAbsolutePath());
 		
 		new MakeTabixIndex(bookmarkPlain.getAbsolutePath(), bookmark, TabixFormat.GFF);
 		bookmarkPlain.delete();
 		
-		this.setTabixReader(new TabixReader(bookmark.getAbsolutePath()));
+		this.setTabixReader(new TabixCsiReader(bookmark.getAbsolutePath()));
 		this.setTrackFormat(TrackFormat.GTF);
 		this.setGc(gc);
 	}
@@ -94,7 +95,7 @@ public class TrackBookmark extends TrackIntervalFeature {
 		// Recompress and index replacing the original bgzip file
 		new MakeTabixIndex(plainNew.getAbsolutePath(), new File(this.getWorkFilename()), TabixFormat.GFF);
 		plainNew.delete();
-		this.tabixReader= new TabixReader(this.getWorkFilename());
+		this.setTabixReader(new TabixCsiReader(this.getWorkFilename()));
 		// Update track.
 		this.update();
 	}
@@ -153,7 +154,7 @@ public class TrackBookmark extends TrackIntervalFeature {
 		// Recompress and index replacing the original bgzip file
 		new MakeTabixIndex(plainNew.getAbsolutePath(), new File(this.getWorkFilename()), TabixFormat.GFF);
 		plainNew.delete();
-		this.tabixReader= new TabixReader(this.getWorkFilename());
+		this.setTabixReader(new TabixCsiReader(this.getWorkFilename()));
 		// Update track.
 		this.update();
 	}
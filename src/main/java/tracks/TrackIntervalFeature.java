@@ -11,6 +11,10 @@ import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
@@ -20,35 +24,49 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 
+import coloring.Config;
+import coloring.ConfigKey;
 import coloring.Xterm256;
 import exceptions.InvalidColourException;
 import exceptions.InvalidCommandLineException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
-import htsjdk.samtools.util.FileExtensions;
 import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.tabix.TabixFormat;
 import htsjdk.tribble.readers.LineIterator;
-import htsjdk.tribble.readers.TabixReader;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
 import samTextViewer.GenomicCoords;
+import samTextViewer.ScreenMapping;
 import samTextViewer.Utils;
-import sortBgzipIndex.MakeTabixIndex;
+import sortBgzipIndex.PositionParser;
+import sortBgzipIndex.TabixCsiReader;
 
 public class TrackIntervalFeature extends Track {
  
 	protected List<IntervalFeature> intervalFeatureList= new ArrayList<IntervalFeature>();  
 	/**For GTF/GFF data: Use this attribute to get the feature names 
 	 * */
-	protected TabixReader tabixReader; // Leave *protected* for TrackBookmark to work
+	protected TabixCsiReader tabixReader; // Leave *protected* for TrackBookmark to work
 	private BBFileReader bigBedReader;
 	
 	private List<Argument> colorForRegex= null;
 	private VCFCodec vcfCodec;
 	private String gtfAttributeForName= null;
 	private int bedFieldForName= 3; // 0-based!
+	/** Features read so far, null if caching is disabled */
+	private FeatureTileCache featureCache= newFeatureCache();
+	/** Incremented at each prefetch request so that older requests are dropped */
+	private volatile long prefetchGeneration= 0;
+	private static ExecutorService prefetchExecutor;
+	/** Readers used by prefetching only, opened on first use and kept until the track is closed
+	 * or reloaded. Guarded by prefetchLock */
+	private TabixCsiReader prefetchTabix;
+	private BBFileReader prefetchBigBed;
+	private final Object prefetchLock= new Object();
 	
 	/* C o n s t r u c t o r */
 
@@ -67,25 +85,16 @@ public class TrackIntervalFeature extends Track {
 			this.setTrackFormat(TrackFormat.BIGBED);
 			
 		} else if( ! Utils.hasTabixIndex(filename)){
-			// Tabix index not found for this file. Sort and index input to tmp.
-
-			String suffix= new File(filename).getName();
-			if( ! suffix.endsWith(".gz")){
-				suffix += ".gz";
-			}
-			String tmpWorkFile= Utils.createTempFile(".asciigenome.", "." + suffix, true).getAbsolutePath();
-			new File(tmpWorkFile + FileExtensions.TABIX_INDEX).deleteOnExit();
-			this.setWorkFilename(tmpWorkFile);
-
+			// Tabix index not found for this file. Sort and index input to cache or tmp.
 			this.setTrackFormat(Utils.getFileTypeFromName(new File(filename).getName()));
-			new MakeTabixIndex(filename, new File(this.getWorkFilename()), Utils.trackFormatToTabixFormat(this.getTrackFormat()));	
+			this.setWorkFilename(TabixFileCache.getTabixFile(filename, Utils.trackFormatToTabixFormat(this.getTrackFormat()), this));
 			
 			this.tabixReader= this.getTabixReader(this.getWorkFilename());
 			
 		} else { // This means the input is tabix indexed.
 			this.setWorkFilename(filename);
 			this.setTrackFormat(Utils.getFileTypeFromName(new File(filename).getName()));
-			this.tabixReader= new TabixReader(this.getWorkFilename());
+			this.tabixReader= new TabixCsiReader(this.getWorkFilename());
 		}
 		this.setGc(gc);
 
@@ -99,12 +108,14 @@ public class TrackIntervalFeature extends Track {
 
 	@Override
 	public void close(){
+		this.closePrefetchReader();
 		if(this.tabixReader != null){
 			this.tabixReader.close();
 		}
 		if(this.bigBedReader != null){
 			this.bigBedReader.close();
 		}
+		CacheFiles.release(this);
 	}
 	
 	@Override
@@ -121,8 +132,9 @@ public class TrackIntervalFeature extends Track {
 				this.getGc().getChrom(), this.getGc().getFrom(), this.getGc().getTo());
 
 		for(IntervalFeature ift : this.intervalFeatureList){
-			ift.mapToScreen(this.getGc().getMapping());
+			ift.mapToScreen(this.getGc().getScreenMapping());
 		}	
+		this.prefetch(this.getGc().getChrom(), this.getGc().getFrom(), this.getGc().getTo());
 	}
 	
 	protected List<IntervalFeature> getFeaturesInInterval(String chrom, int from, int to) throws IOException, InvalidGenomicCoordsException{
@@ -140,60 +152,308 @@ public class TrackIntervalFeature extends Track {
 			throw new InvalidGenomicCoordsException();
 		}		
 		
-		List<IntervalFeature> xFeatures= new ArrayList<IntervalFeature>();
+		PositionParser parser= this.getPositionParser();
+		if(this.featureCache == null || parser == null || to > Integer.MAX_VALUE - FeatureTileCache.TILE_SIZE){
+			return this.queryFeatures(chrom, from, to);
+		}
 		
-		if(this.getTrackFormat().equals(TrackFormat.VCF)){
-			xFeatures= getFeaturesInVCFInterval(chrom, from, to);
-		} 
-		else { 
-			TabixBigBedIterator qry= this.getReader().query(chrom, from-1, to);
-			while(true){
-				String q = qry.next();
-				if(q == null){
-					break;
+		// Read only the tiles not in cache, then collect the lines in the window from the tiles.
+		// A line spanning several tiles is taken from the first tile of the window containing it. 
+		// Hold the lock so that prefetching cannot evict tiles before they are collected.
+		List<FeatureTileCache.Tile> tiles;
+		synchronized(this.featureCache){
+			long epoch= this.featureCache.getEpoch();
+			for(int[] gap : this.featureCache.getMissingTiles(chrom, from, to)){
+				for(FeatureTileCache.Tile tile : this.readTiles(this.getReader(), parser, chrom, gap[0], gap[1])){
+					this.featureCache.put(chrom, tile, epoch);
 				}
-				IntervalFeature intervalFeature= new IntervalFeature(q, this.getTrackFormat(), null);
-				xFeatures.add(intervalFeature);
-			} 
-		}
-		// Remove hidden features
-		List<IntervalFeature> xFeaturesFiltered= new ArrayList<IntervalFeature>();
-		for(IntervalFeature x : xFeatures){
-			if(this.featureIsVisible(x.getRaw())){
-				xFeaturesFiltered.add(x);
 			}
+			tiles= this.featureCache.get(chrom, from, to);
+			this.featureCache.evict(chrom, from, to);
 		}
-		return xFeaturesFiltered;
-	}
 
-	private List<IntervalFeature> getFeaturesInVCFInterval(String chrom, int from, int to) throws IOException, InvalidGenomicCoordsException{
-
-		// Get header if not set yet
-		if(this.getVcfHeader() == null){
-			if( Utils.urlFileExists(this.getFilename()) ){
-				URL url= new URL(this.getFilename());
-				AbstractFeatureReader<VariantContext, LineIterator> reader = AbstractFeatureReader.getFeatureReader(url.toExternalForm(), new VCFCodec(), false);
-				this.setVcfHeader((VCFHeader) reader.getHeader());
-			} else {
-				VCFFileReader reader = new VCFFileReader(new File(this.getWorkFilename()));
-				this.setVcfHeader(reader.getFileHeader());
-				reader.close();
+		List<String> lines= new ArrayList<String>();
+		List<FeatureTileCache.Tile> lineTile= new ArrayList<FeatureTileCache.Tile>();
+		List<Integer> lineIdx= new ArrayList<Integer>();
+		for(int t= 0; t < tiles.size(); t++){
+			FeatureTileCache.Tile tile= tiles.get(t);
+			for(int i= 0; i < tile.size(); i++){
+				if(tile.getStart(i) <= to && tile.getEnd(i) >= from && (t == 0 || tile.getStart(i) >= tile.getFrom())){
+					lines.add(tile.getLine(i));
+					lineTile.add(tile);
+					lineIdx.add(i);
+				}
 			}
 		}
-
-		// Collect feature
+		boolean[] visible= this.getVisibleLines(lines);
+		VCFCodec vcfCodec= this.getCodecForParsing();
 		List<IntervalFeature> xFeatures= new ArrayList<IntervalFeature>();
+		for(int i= 0; i < visible.length; i++){
+			if(visible[i]){
+				xFeatures.add(lineTile.get(i).getFeature(lineIdx.get(i), this.getTrackFormat(), vcfCodec));
+			}
+		}
+		return xFeatures;
+	}
+
+	/** Query the file for the features in the interval without going through the cache.
+	 * */
+	private List<IntervalFeature> queryFeatures(String chrom, int from, int to) throws IOException, InvalidGenomicCoordsException{
+		// Filter the raw lines first so that hidden features are never parsed
+		List<String> lines= new ArrayList<String>();
 		TabixBigBedIterator qry= this.getReader().query(chrom, from-1, to);
 		while(true){
 			String q = qry.next();
 			if(q == null){
 				break;
 			}
-			IntervalFeature intervalFeature= new IntervalFeature(q, TrackFormat.VCF, this.getVCFCodec());
-			xFeatures.add(intervalFeature);
-		} 
+			lines.add(q.trim());
+		}
+		boolean[] visible= this.getVisibleLines(lines);
+		VCFCodec vcfCodec= this.getCodecForParsing();
+		List<IntervalFeature> xFeatures= new ArrayList<IntervalFeature>(lines.size());
+		for(int i= 0; i < visible.length; i++){
+			if(visible[i]){
+				xFeatures.add(new IntervalFeature(lines.get(i), this.getTrackFormat(), vcfCodec));
+			}
+		}
 		return xFeatures;
 	}
+
+	/** Codec to parse the lines of this track, null if the track is not vcf. 
+	 * */
+	private VCFCodec getCodecForParsing() throws IOException{
+		if( ! this.getTrackFormat().equals(TrackFormat.VCF)){
+			return null;
+		}
+		this.initVcfHeader();
+		return this.getVCFCodec();
+	}
+
+	/** Read the lines in the interval from-to, aligned to tiles, and split them in tiles. Lines 
+	 * without valid position are skipped, as they cannot be indexed anyway. 
+	 * */
+	private List<FeatureTileCache.Tile> readTiles(TabixBigBedReader reader, PositionParser parser, String chrom, int from, int to) throws IOException{
+		List<FeatureTileCache.Tile> tiles= new ArrayList<FeatureTileCache.Tile>();
+		for(int tileFrom= from; tileFrom <= to; tileFrom += FeatureTileCache.TILE_SIZE){
+			tiles.add(new FeatureTileCache.Tile(tileFrom, tileFrom + FeatureTileCache.TILE_SIZE - 1));
+		}
+		TabixBigBedIterator qry= reader.query(chrom, from-1, to);
+		while(true){
+			String q = qry.next();
+			if(q == null){
+				break;
+			}
+			q= q.trim();
+			Feature pos;
+			try{
+				pos= parser.parse(q);
+			} catch(IllegalArgumentException e){
+				continue;
+			}
+			int end= Math.max(pos.getStart(), pos.getEnd());
+			int first= (Math.max(pos.getStart(), from) - from) / FeatureTileCache.TILE_SIZE;
+			int last= (Math.min(end, to) - from) / FeatureTileCache.TILE_SIZE;
+			for(int i= first; i <= last; i++){
+				tiles.get(i).add(q, pos.getStart(), end);
+			}
+		}
+		return tiles;
+	}
+
+	/** Parser for the position of the lines in the format of this track or null if
+	 * positions cannot be parsed. 
+	 * */
+	private PositionParser getPositionParser(){
+		TabixFormat fmt;
+		switch(this.getTrackFormat()){
+		case BED: case BIGBED: case BEDGRAPH: case NARROWPEAK:
+			fmt= TabixFormat.BED; break;
+		case GFF: case GTF:
+			fmt= TabixFormat.GFF; break;
+		case VCF:
+			fmt= TabixFormat.VCF; break;
+		default:
+			return null;
+		}
+		try {
+			return new PositionParser(fmt);
+		} catch (InvalidRecordException e) {
+			return null;
+		}
+	}
+
+	/** Fill the cache with the tiles around the interval, i.e. those on the left and right
+	 * and those shown after zooming out once. Tiles are read in a background thread with
+	 * a separate file reader. The task is dropped if the track has moved in the meantime.
+	 * Remote files are not prefetched since each move would download more data than shown.
+	 * */
+	private void prefetch(final String chrom, final int from, final int to){
+		final PositionParser parser= this.getPositionParser();
+		if(this.featureCache == null || parser == null || ! new File(this.getWorkFilename()).isFile()){
+			return;
+		}
+		long span= (long) to - from + 1;
+		final int pfFrom= (int) Math.max(1, from - span);
+		final int pfTo= (int) Math.min(Integer.MAX_VALUE - FeatureTileCache.TILE_SIZE, to + span);
+		if(pfFrom > pfTo){
+			return;
+		}
+		final long generation= ++this.prefetchGeneration;
+		final long epoch= this.featureCache.getEpoch();
+		final FeatureTileCache cache= this.featureCache;
+		final boolean isBigBed= this.bigBedReader != null;
+		final String workFilename= this.getWorkFilename();
+		getPrefetchExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				if(generation != prefetchGeneration){
+					return;
+				}
+				List<int[]> gaps= cache.findMissingTiles(chrom, pfFrom, pfTo);
+				if(gaps.size() == 0){
+					return;
+				}
+				synchronized(prefetchLock){
+					if(generation != prefetchGeneration){
+						return;
+					}
+					try {
+						TabixBigBedReader reader= getPrefetchReader(workFilename, isBigBed);
+						for(int[] gap : gaps){
+							if(generation != prefetchGeneration){
+								break;
+							}
+							for(FeatureTileCache.Tile tile : readTiles(reader, parser, chrom, gap[0], gap[1])){
+								cache.put(chrom, tile, epoch);
+							}
+						}
+						// Only the current window is protected so prefetched tiles never exceed the budget
+						cache.evict(chrom, from, to);
+					} catch (Exception e) {
+						// Prefetching is only an optimization: The file may have been replaced or 
+						// deleted, in which case the tiles are read again when needed. 
+						closePrefetchReader();
+					}
+				}
+			}
+		});
+	}
+
+	/** Reader of the work file for prefetching, opened once so that the index is not parsed 
+	 * at every move. Call with prefetchLock held.
+	 * */
+	private TabixBigBedReader getPrefetchReader(String workFilename, boolean isBigBed) throws IOException{
+		if(isBigBed){
+			if(this.prefetchBigBed == null){
+				this.prefetchBigBed= new BBFileReader(workFilename);
+			}
+			return new TabixBigBedReader(this.prefetchBigBed);
+		}
+		if(this.prefetchTabix == null){
+			this.prefetchTabix= new TabixCsiReader(workFilename);
+		}
+		return new TabixBigBedReader(this.prefetchTabix);
+	}
+
+	/** For testing: Wait for the prefetch tasks submitted so far and return the tabix reader 
+	 * used for prefetching, null if not open.
+	 * */
+	protected TabixCsiReader awaitPrefetchTabix() throws InterruptedException, ExecutionException{
+		getPrefetchExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				// Tasks run in order on a single thread
+			}
+		}).get();
+		synchronized(this.prefetchLock){
+			return this.prefetchTabix;
+		}
+	}
+
+	/** Close the prefetch readers, if open, and drop the pending prefetch tasks.
+	 * */
+	private void closePrefetchReader(){
+		this.prefetchGeneration++;
+		synchronized(this.prefetchLock){
+			if(this.prefetchTabix != null){
+				this.prefetchTabix.close();
+				this.prefetchTabix= null;
+			}
+			if(this.prefetchBigBed != null){
+				this.prefetchBigBed.close();
+				this.prefetchBigBed= null;
+			}
+		}
+	}
+
+	private static synchronized ExecutorService getPrefetchExecutor(){
+		if(prefetchExecutor == null){
+			// A single thread so that prefetching never competes much with the foreground
+			prefetchExecutor= Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t= new Thread(r);
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return prefetchExecutor;
+	}
+
+	/** Cache of features sized as set in config, null if disabled 
+	 * */
+	private static FeatureTileCache newFeatureCache(){
+		String mb= Config.get(ConfigKey.feature_cache_mb);
+		if(mb == null || Integer.parseInt(mb) <= 0){
+			return null;
+		}
+		return new FeatureTileCache(1024L * 1024L * Integer.parseInt(mb));
+	}
+
+	/** Read the vcf header, if not set yet. */
+	private void initVcfHeader() throws IOException{
+		if(this.getVcfHeader() != null){
+			return;
+		}
+		if( Utils.urlFileExists(this.getFilename()) ){
+			URL url= new URL(this.getFilename());
+			AbstractFeatureReader<VariantContext, LineIterator> reader = AbstractFeatureReader.getFeatureReader(url.toExternalForm(), new VCFCodec(), false);
+			this.setVcfHeader((VCFHeader) reader.getHeader());
+		} else {
+			VCFFileReader reader = new VCFFileReader(new File(this.getWorkFilename()));
+			this.setVcfHeader(reader.getFileHeader());
+			reader.close();
+		}
+	}
+
+	/** Return which lines pass the regex filters and the awk script. 
+	 * The awk script is applied once to all the lines passing the regexes, rather than line by line.
+	 * */
+	private boolean[] getVisibleLines(List<String> lines) throws InvalidGenomicCoordsException, IOException{
+		boolean[] visible= new boolean[lines.size()];
+		List<String> shown= new ArrayList<String>();
+		for(int i= 0; i < visible.length; i++){
+			visible[i]= this.passRegexFilters(lines.get(i));
+			if(visible[i]){
+				shown.add(lines.get(i));
+			}
+		}
+		if(shown.size() == 0 || this.getAwk() == null || this.getAwk().trim().isEmpty()){
+			return visible;
+		}
+		boolean[] pass= this.passAwkFilter(shown.toArray(new String[shown.size()]));
+		int j= 0;
+		for(int i= 0; i < visible.length; i++){
+			if(visible[i]){
+				visible[i]= pass[j];
+				j++;
+			}
+		}
+		return visible;
+	}
 	
 	/** Return true if string is visible, i.e. it
 	 * passes the regex filters. Note that regex filters are applied to the raw string.
@@ -201,7 +461,13 @@ public class TrackIntervalFeature extends Track {
 	 * @throws IOException 
 	 * */
 	protected Boolean featureIsVisible(String x) throws InvalidGenomicCoordsException, IOException{
-		
+		if( ! this.passRegexFilters(x)){
+			return false; // If feature is not visible, no need to go on as there is no way to bring it back.
+		}
+		return this.passAwkFilter(new String[] {x})[0];
+	}
+
+	private boolean passRegexFilters(String x){
 		boolean showIt= true;
 		if(this.getShowRegex() != null && 
 		   ! this.getShowRegex().equals(Pattern.compile(Filter.DEFAULT_SHOW_REGEX.getValue()))){
@@ -212,17 +478,12 @@ public class TrackIntervalFeature extends Track {
 		if(!this.getHideRegex().pattern().isEmpty()){
 			hideIt= this.getHideRegex().matcher(x).find();	
 		}
+		return showIt && !hideIt;
+	}
 
-		Boolean isVisible= false;
-		if(showIt && !hideIt){
-			isVisible= true;
-		} else {
-			return false; // If feature is not visible, no need to go on as there is no way to bring it back.
-		}
-		
-		// Awk
+	private boolean[] passAwkFilter(String[] x) throws InvalidGenomicCoordsException, IOException{
 		try {
-			isVisible= Utils.passAwkFilter(new String[] {x}, this.getAwk())[0];
+			return Utils.passAwkFilter(x, this.getAwk());
 		} catch (Exception e) {
 			System.err.print(Utils.padEndMultiLine("Invalid awk script.", this.getGc().getUserWindowSize()));
 			try {
@@ -232,7 +493,6 @@ public class TrackIntervalFeature extends Track {
 			}
 			throw new InvalidGenomicCoordsException();
 		}
-		return isVisible;
 	}
 
 	/**Return the coordinates of the next feature so that the start coincide with the start of the feature and
@@ -442,11 +702,8 @@ public class TrackIntervalFeature extends Track {
 				String line= iter.next();
 				if(line == null) break;
 				boolean matched= pattern.matcher(line).find();
-				if(matched){
-					IntervalFeature x= new IntervalFeature(line, this.getTrackFormat(), this.getVCFCodec());
-					if(this.featureIsVisible(x.getRaw())){
-						matchedFeatures.add(x);
-					}
+				if(matched && this.featureIsVisible(line.trim())){
+					matchedFeatures.add(new IntervalFeature(line, this.getTrackFormat(), this.getVCFCodec()));
 				}
 			}
 			if(matchedFeatures.size() > 0){
@@ -615,7 +872,7 @@ public class TrackIntervalFeature extends Track {
 		
 		List<IntervalFeature> flatList= new ArrayList<IntervalFeature>(); 
 
-		List<Double> mapToScreen = this.getGc().getMapping();
+		ScreenMapping mapToScreen = this.getGc().getScreenMapping();
 		
 		if(this.getTrackFormat().equals(TrackFormat.GFF) || this.getTrackFormat().equals(TrackFormat.GTF)){
 
@@ -868,7 +1125,7 @@ public class TrackIntervalFeature extends Track {
 	 * @throws InvalidGenomicCoordsException 
 	 * @throws InvalidColourException 
 	 * */
-	private IntervalFeature collapseGFFTranscript(List<IntervalFeature> txFeatures, List<Double> mapToScreen) throws InvalidGenomicCoordsException, InvalidColourException{
+	private IntervalFeature collapseGFFTranscript(List<IntervalFeature> txFeatures, ScreenMapping mapToScreen) throws InvalidGenomicCoordsException, InvalidColourException{
 		
 		if(txFeatures.size() == 0){
 			System.err.println("Unexpected transcript: Length zero!");
@@ -992,18 +1249,29 @@ public class TrackIntervalFeature extends Track {
 		}
 	}
 
-	private TabixReader getTabixReader(String tabixFile) throws IOException {
-		return new TabixReader(new File(tabixFile).getAbsolutePath());
+	private TabixCsiReader getTabixReader(String tabixFile) throws IOException {
+		return new TabixCsiReader(new File(tabixFile).getAbsolutePath());
 	}
 	
 	/** This setter is for TrackBookmark to work.*/
-	protected void setTabixReader(TabixReader tabixReader) {
+	protected void setTabixReader(TabixCsiReader tabixReader) {
 		this.tabixReader = tabixReader;
+		this.clearFeatureCache();
 	}
-	protected TabixReader getTabixReader() {
+	protected TabixCsiReader getTabixReader() {
 		return this.tabixReader;
 	}
 
+	private void clearFeatureCache(){
+		if(this.featureCache != null){
+			this.featureCache.clear();
+		}
+	}
+
+	protected FeatureTileCache getFeatureCache(){
+		return this.featureCache;
+	}
+
 	@Override
 	protected List<String> getRecordsAsStrings() {
 		
@@ -1099,14 +1367,17 @@ public class TrackIntervalFeature extends Track {
 	
 	@Override
 	public void reload() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
+		this.closePrefetchReader();
 		if( ! Files.isSameFile(Paths.get(this.getWorkFilename()), Paths.get(this.getFilename()))){
-			TrackIntervalFeature tr= new TrackIntervalFeature(this.getFilename(), this.getGc());
-			String fname= this.getWorkFilename();
-			Files.move(Paths.get(tr.getWorkFilename()), Paths.get(fname), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-			Files.move(Paths.get(tr.getWorkFilename() + FileExtensions.TABIX_INDEX), 
-					Paths.get(fname + FileExtensions.TABIX_INDEX), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			// The work file may be shared with other tracks via the cache so switch to the new one
+			// rather than overwriting it.
+			CacheFiles.release(this);
+			this.setWorkFilename(TabixFileCache.getTabixFile(this.getFilename(), Utils.trackFormatToTabixFormat(this.getTrackFormat()), this));
+		}
+		if(this.tabixReader != null){
+			this.tabixReader.close();
 		}
-		this.tabixReader= this.getTabixReader(this.getWorkFilename());
+		this.setTabixReader(this.getTabixReader(this.getWorkFilename()));
 		this.update();
 	}
 
@@ -7,48 +7,57 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
-import org.apache.commons.lang3.StringUtils;
-
 import coloring.Config;
 import coloring.ConfigKey;
 import exceptions.InvalidColourException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
-import htsjdk.samtools.AlignmentBlock;
-import htsjdk.samtools.CigarElement;
-import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
-import htsjdk.samtools.util.IntervalTree;
 import samTextViewer.GenomicCoords;
+import samTextViewer.ScreenMapping;
 import samTextViewer.Utils;
 
 /** Collect depth and coverage info over a region of a chromosome
  * */
 public class TrackPileup extends TrackWiggles {
 
-	/** Key: Position of the locus. Value: information at this position. 
-	 * NB: This is a hashmap so positions are not returned in order. The method(s)
-	 * getDepth(), etc should return a TreeMap for positions to be sorted. Here we use
-	 * HashMap because is faster to build. 
+	/** Number of threads used to read the bam file */
+	private static final int N_THREADS= Math.max(1, Math.min(16, Runtime.getRuntime().availableProcessors()));
+	/** Intervals smaller than this are not split between threads */
+	private static final int MIN_CHUNK_SIZE= 20000;
+	private static ExecutorService executor;
+	
+	/** Pileup counts over the tiles visited so far. Each tile spans the whole interval queried 
+	 * from the bam file, including positions with zero depth. So the tiles in cache are also the 
+	 * positions that do not need to be visited again.  
 	 * */
-	private Map<String, Map<Integer, Locus>> loci= new HashMap<String, Map<Integer, Locus>>();
-	@SuppressWarnings("rawtypes")
-	private Map<String, IntervalTree> zeroDepthIntervals= new HashMap<String, IntervalTree>(); 
+	private PileupTileCache loci= new PileupTileCache(1024L * 1024L * Integer.parseInt(Config.get(ConfigKey.pileup_cache_mb)));
 	
 	private List<ScreenWiggleLocusInfo> screenWiggleLocusInfoList= new ArrayList<ScreenWiggleLocusInfo>();
 	private long alnRecCnt= -1;
+	/** Used to estimate depth when the window is too large to read all the records. Null if 
+	 * the file is not suitable for estimation. */
+	private BamIndexCoverage indexCoverage;
+	private boolean isIndexEstimate= false;
+	/** Depth at low resolution cached across sessions. Null if caching is not enabled. */
+	private BamCoveragePyramid coveragePyramid;
 	
 	/*        C O N S T R U C T O R         */
 
@@ -67,18 +76,42 @@ public class TrackPileup extends TrackWiggles {
 		this.setTrackFormat(TrackFormat.BAM);
 		
 		if(!Utils.bamHasIndex(bam)){
-			File temp= Utils.createTempFile(".asciigenome.", ".bam", true);
-			Utils.sortAndIndexSamOrBam(bam, temp.getAbsolutePath(), true);
-			this.setWorkFilename(temp.getAbsolutePath());
+			this.setWorkFilename(SortedBamCache.getSortedBam(bam, this));
 		} else {
 			this.setWorkFilename(bam);
 		}
 		this.setFilename(bam);
+		this.openIndexCoverage();
+		this.openCoveragePyramid();
 		this.setGc(gc);
 		// this.alnRecCnt= Utils.getAlignedReadCount(this.getWorkFilename());
 		this.setLastModified();
 	}
 
+	/** Estimator of depth from the index of the current work file, if suitable.
+	 * */
+	private void openIndexCoverage() throws IOException{
+		this.indexCoverage= null;
+		if(BamIndexCoverage.isEstimable(this.getWorkFilename())){
+			this.indexCoverage= new BamIndexCoverage(this.getWorkFilename());
+		}
+	}
+
+	/** Open, and build if needed, the coverage cache of the current work file, if caching is enabled.
+	 * The cache of a previous work file, if any, is closed.
+	 * */
+	private void openCoveragePyramid() throws IOException{
+		if(this.coveragePyramid != null){
+			this.coveragePyramid.close();
+			this.coveragePyramid= null;
+		}
+		if(new File(this.getFilename()).isFile() && Config.get(ConfigKey.coverage_cache) != null && Utils.asBoolean(Config.get(ConfigKey.coverage_cache))){
+			File cacheDir= new File(Utils.tildeToHomeDir(Config.get(ConfigKey.cache_dir)));
+			this.coveragePyramid= new BamCoveragePyramid(this.getWorkFilename(), this.getFilename(), cacheDir);
+			this.coveragePyramid.buildInBackground();
+		}
+	}
+
 	/*                  F I L T E R S           */
 	@Override
 	void setSamRecordFilter(List<SamRecordFilter> samRecordFilter) throws MalformedURLException, ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException {
@@ -115,7 +148,6 @@ public class TrackPileup extends TrackWiggles {
 	
 	/*       M E T H O D S        */
 	
-	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	public void update() throws InvalidGenomicCoordsException, IOException{
 		
@@ -124,62 +156,127 @@ public class TrackPileup extends TrackWiggles {
 		}
 		String chrom= this.getGc().getChrom();
 		
-		if(! this.loci.containsKey(chrom)){
-			this.loci.put(chrom, new HashMap<Integer, Locus>());
+		// Zoomed out with no filters: Use the cached coverage, if ready.
+		if(this.coveragePyramid != null && this.getActiveFilters().isEmpty()){
+			List<Float> depth= this.coveragePyramid.getDepth(chrom, this.getGc().getScreenMapping());
+			if(depth != null){
+				this.isIndexEstimate= false;
+				this.setScreenScores(depth);
+				return;
+			}
 		}
-		if(! this.zeroDepthIntervals.containsKey(chrom)){
-			this.zeroDepthIntervals.put(chrom, new IntervalTree());
+		
+		// Window too large to read all the records or to keep its pileup within the 
+		// memory budget: Estimate depth from the index
+		int from= this.getGc().getFrom();
+		int to= this.getGc().getTo();
+		this.isIndexEstimate= this.indexCoverage != null 
+				&& (this.getGc().getGenomicWindowSize() > this.MAX_REGION_SIZE || ! this.loci.canHold(from, to));
+		if(this.isIndexEstimate){
+			this.setScreenScores(this.indexCoverage.getDepth(chrom, this.getGc().getScreenMapping()));
+			return;
+		}
+		
+		// Find the tiles that we haven't visited before:
+		List<int[]> gaps= this.loci.getMissingTiles(chrom, from, to);
+		for(PileupAccumulator tile : this.fillGaps(chrom, gaps)){
+			this.loci.put(chrom, tile);
 		}
-
 		// Check cache is not growing too much
-		if(this.loci.get(chrom).keySet().size() > 500000){
-			this.loci.get(chrom).clear();
-			this.zeroDepthIntervals.get(chrom).clear();
+		this.loci.evict(chrom, from, to);
+		List<Float> screenScores= this.prepareScreenScores();
+		this.setScreenScores(screenScores);
+	}
+
+	/** Collect pileup over the given intervals, aligned to tiles. Intervals are split in chunks of 
+	 * whole tiles filled in parallel, each with its own reader and accumulators. Reads spanning two 
+	 * chunks are read twice but each accumulator only counts the positions inside its tile, so no 
+	 * locking is needed and the accumulators can go to the cache as they are.
+	 * The awk filter is not thread safe, so with awk chunks are filled one after another. 
+	 * */
+	private List<PileupAccumulator> fillGaps(final String chrom, List<int[]> gaps) throws IOException{
+		
+		int nThreads= this.getAwk().equals(Filter.DEFAULT_AWK.getValue()) ? N_THREADS : 1;
+		List<int[]> chunks= new ArrayList<int[]>();
+		int minTiles= (MIN_CHUNK_SIZE + PileupTileCache.TILE_SIZE - 1) / PileupTileCache.TILE_SIZE;
+		for(int[] gap : gaps){
+			int nTiles= (gap[1] - gap[0] + 1) / PileupTileCache.TILE_SIZE;
+			int chunkSize= Math.max(minTiles, (nTiles + nThreads - 1) / nThreads) * PileupTileCache.TILE_SIZE;
+			for(int from= gap[0]; from <= gap[1]; from += chunkSize){
+				chunks.add(new int[] {from, Math.min(from + chunkSize - 1, gap[1])});
+			}
 		}
 		
-		// Find the positions that we haven't visited before:
-		List<Integer> missingPos= new ArrayList<Integer>();
-		for(int pos= this.getGc().getFrom(); pos <= this.getGc().getTo(); pos++){
-			if( ! this.loci.get(chrom).containsKey(pos) &&  
-				! this.zeroDepthIntervals.get(chrom).overlappers(pos, pos).hasNext()){
-				missingPos.add(pos);
+		List<PileupAccumulator> accumulators= new ArrayList<PileupAccumulator>();
+		if(nThreads == 1 || chunks.size() <= 1){
+			for(int[] chunk : chunks){
+				accumulators.addAll(this.fillChunk(chrom, chunk[0], chunk[1]));
 			}
+			return accumulators;
 		}
-		for(List<Integer> gap : mergePositionsInIntervals(missingPos)){
+		
+		List<Future<List<PileupAccumulator>>> futures= new ArrayList<Future<List<PileupAccumulator>>>();
+		for(final int[] chunk : chunks){
+			futures.add(getExecutor().submit(new Callable<List<PileupAccumulator>>() {
+				@Override
+				public List<PileupAccumulator> call() throws IOException {
+					return fillChunk(chrom, chunk[0], chunk[1]);
+				}
+			}));
+		}
+		for(Future<List<PileupAccumulator>> future : futures){
+			try {
+				accumulators.addAll(future.get());
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof IOException){
+					throw (IOException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		return accumulators;
+	}
 
-			int qryFrom= gap.get(0);
-			int qryTo= gap.get(1);
-			
-			SamReader samReader= Utils.getSamReader(this.getWorkFilename());
-			List<Boolean> passFilter= this.filterReads(samReader, chrom, qryFrom, qryTo);
-			samReader.close();
-			
-			samReader= Utils.getSamReader(this.getWorkFilename());
-			
-			Iterator<SAMRecord> sam= samReader.query(chrom, qryFrom, qryTo, false);
-	
-			ListIterator<Boolean> pass = passFilter.listIterator();
+	/** Read the interval from-to once and collect pileup in one accumulator for each tile in it.
+	 * */
+	private List<PileupAccumulator> fillChunk(String chrom, int from, int to) throws IOException{
+		List<PileupAccumulator> tiles= new ArrayList<PileupAccumulator>();
+		for(int tileFrom= from; tileFrom <= to; tileFrom += PileupTileCache.TILE_SIZE){
+			tiles.add(new PileupAccumulator(tileFrom, tileFrom + PileupTileCache.TILE_SIZE - 1));
+		}
+		SamReader samReader= Utils.getSamReader(this.getWorkFilename());
+		try{
+			Iterator<SAMRecord> sam= this.filterReads(samReader, chrom, from, to);
 			while(sam.hasNext()){
 				SAMRecord rec= sam.next();
-				if(pass.next()){
-					this.add(rec, qryFrom, qryTo, this.loci.get(chrom));
+				int first= (Math.max(rec.getAlignmentStart(), from) - from) / PileupTileCache.TILE_SIZE;
+				int last= (Math.min(rec.getAlignmentEnd(), to) - from) / PileupTileCache.TILE_SIZE;
+				for(int i= first; i <= last; i++){
+					tiles.get(i).add(rec);
 				}
 			}
+		} finally {
 			samReader.close();
-			// Now add the loci that have been collected in this last update
-			List<Integer> zeroDepthPos= new ArrayList<Integer>();
-			for(int pos= qryFrom; pos <= qryTo; pos++){
-				if( ! this.loci.get(chrom).containsKey(pos)){
-					zeroDepthPos.add(pos);
+		}
+		return tiles;
+	}
+	
+	/** Thread pool shared by all pileup tracks. Threads are daemon so they don't prevent exit.
+	 * */
+	private static synchronized ExecutorService getExecutor(){
+		if(executor == null){
+			executor= Executors.newFixedThreadPool(N_THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t= new Thread(r);
+					t.setDaemon(true);
+					return t;
 				}
-			}
-			List<List<Integer>> zeroDepthGaps = mergePositionsInIntervals(zeroDepthPos);
-			for(List<Integer> z : zeroDepthGaps){
-				this.zeroDepthIntervals.get(chrom).put(z.get(0), z.get(1), null);
-			}
+			});
 		}
-		List<Float> screenScores= this.prepareScreenScores();
-		this.setScreenScores(screenScores);
+		return executor;
 	}
 
 	private List<Float> prepareScreenScores() throws InvalidGenomicCoordsException, IOException{
@@ -192,7 +289,7 @@ public class TrackPileup extends TrackWiggles {
 			this.screenWiggleLocusInfoList.add(new ScreenWiggleLocusInfo());
 		}		
 		
-		List<Double> mapping= this.getGc().getMapping();
+		ScreenMapping mapping= this.getGc().getScreenMapping();
 		Map<Integer, Integer> depthMap = this.getDepth(this.getGc().getChrom(), this.getGc().getFrom(), this.getGc().getTo());
 		// Winsorise here:
 //		if(this.getWinsorizeMultiple() > 0){
@@ -203,7 +300,7 @@ public class TrackPileup extends TrackWiggles {
 //		}
 		
 		for(int refPos : depthMap.keySet()){
-			int screenIdx= Utils.getIndexOfclosestValue(refPos, mapping);
+			int screenIdx= mapping.getColumn(refPos);
 			ScreenWiggleLocusInfo sloc = this.screenWiggleLocusInfoList.get(screenIdx);
 			int depth= depthMap.get(refPos);
 			sloc.increment(depth);
@@ -221,137 +318,54 @@ public class TrackPileup extends TrackWiggles {
 	protected List<Float> getScreenScores(){
 		return this.screenScores;
 	}
-	
-	/** Update the given map of loci with the information in this record. Only consider positions
-	 * between qryFrom and qryTo. 
-	 * */
-	private void add(SAMRecord samRecord, int qryFrom, int qryTo, Map<Integer, Locus> accumulator){
-		
-		// Is this read forward or reverse? First or second in pair?
-		boolean isFirstOFPair= ! samRecord.getFirstOfPairFlag();
-		boolean isReverse= samRecord.getReadNegativeStrandFlag();
-		
-		List<AlignmentBlock> alnBlocks = samRecord.getAlignmentBlocks();
-		if(alnBlocks.size() == 0){
-			// Nothing to be done. This may happen with e.g. fully clipped reads
-			return; 
-		}
-		int readPos= alnBlocks.get(0).getReadStart() - 1; // Leftmost position where the read starts aligning.
-		for(AlignmentBlock block : alnBlocks){
-			
-			if(block.getReferenceStart() > qryTo){
-				// This block is completely to the right of the user's coordinates: Not useful
-				continue; 
-			}
-			if((block.getReferenceStart() + block.getLength() - 1) < qryFrom){
-				// This block is completely to the left of the user's coordinates.
-				// So no useful information here.
-				continue;
-			}
-			
-			int refPos= block.getReferenceStart() - 1; // -1 because we increment immediately in the loop
-			for(int i= 0; i < block.getLength(); i++){
-				// Iterate through each base of this block
-				refPos++;
-				readPos++;
-				if(refPos < qryFrom){
-					continue; // Skip this position. Part of this block is outside user's coordinates. 
-				}
-				if(refPos > qryTo){
-					break; // We have passed the user's endpoint, no need to process this record anymore
-				}
-				// What read base do we have at this position?
-				char base= samRecord.getReadBases().length == 0 ? 'N' : (char) samRecord.getReadBases()[readPos-1];				
 
-				// Start collecting info	
-				if( ! accumulator.containsKey(refPos)){
-					// Add this position to the map.
-					accumulator.put(refPos, new Locus(this.getGc().getChrom(), refPos));
-				}
-				accumulator.get(refPos).add(base, isReverse, isFirstOFPair);
-			}
-		}
-		// Now we need to increment counts corresponding to deletions in the reference
-		List<int[]>deletedBlocks= this.getRefPositionOfDeletedBlocks(samRecord);
-		for(int[] block : deletedBlocks){
-			for(int refPos= block[0]; refPos <= block[1]; refPos++){
-				if(refPos < qryFrom || refPos > qryTo){
-					continue; // Position is outside user's coordinates.
-				}
-				if( ! accumulator.containsKey(refPos)){
-					// Add this position to the map.
-					accumulator.put(refPos, new Locus(this.getGc().getChrom(), refPos));
-				}
-				accumulator.get(refPos).add('D', isReverse, isFirstOFPair);
-			}
-		}
-	}
-	
-	/**
-	 * MEMO: Deletion does not consume read bases. It consumes reference bases:
-	 * ref  NNNNNNNN
-	 * read NNN---NN
-	 * */
-	private List<int[]> getRefPositionOfDeletedBlocks(SAMRecord samRecord){
-		
-		int ndel= StringUtils.countMatches(samRecord.getCigarString().toUpperCase(), 'D');
-		List<int[]> deletedBlocks= new ArrayList<int[]>(ndel); // int array contains start and end of deletion
-		if( ndel == 0 ){
-			return deletedBlocks; // No deletetions, nothing to be done.
-		}
-		
-		// 1S 2M 3D 4M 5D 6M 7S
-		// Walk along the cigar string. When an operator consumes read bases, advance the position tracker
-		// When you hit a deletion record the start and end of the deleted block in ref coordinates.
-		List<CigarElement> cigarOps = samRecord.getCigar().getCigarElements();
-		int readTracker= 0;
-		int[] deletedBlock= new int[2]; // Length 2 because it contains start and end of deleted block
-		for(CigarElement op : cigarOps){
-			if(op.getOperator().equals(CigarOperator.DELETION)){
-				deletedBlock[0]= samRecord.getReferencePositionAtReadPosition(readTracker) + 1;
-				deletedBlock[1]= samRecord.getReferencePositionAtReadPosition(readTracker + 1) - 1;
-				deletedBlocks.add(deletedBlock);
-				deletedBlock= new int[2];
-				if(deletedBlocks.size() == ndel){
-					// We have accumulated all the deleted blocks. No need to process this read any more.
-					return deletedBlocks; 
-				}
-			}
-			if(op.getOperator().consumesReadBases()){
-				readTracker += op.getLength();
-			}
-		}
-		return deletedBlocks;
+	/** Number of pileup tiles requested and found in cache so far */
+	protected long getPileupCacheHits(){
+		return this.loci.getHits();
 	}
 
+	/** Number of pileup tiles requested and read from the bam file so far */
+	protected long getPileupCacheMisses(){
+		return this.loci.getMisses();
+	}
+	
 	/** Depth at each position. Key: reference position. Value: depth. 
+	 * Positions with zero depth are not returned. 
 	 * @throws IOException 
 	 * */
 	protected Map<Integer, Integer> getDepth(String chrom, int from, int to) throws IOException{
 		
-		List<Integer> posInWindow= new ArrayList<Integer>();  
-		for(int pos : this.loci.get(chrom).keySet()){
-			if(pos < from || pos > to){
-				// Because of locus caching, some loci maybe outside the current window.
-				continue;
-			} else {
-				posInWindow.add(pos);
+		List<PileupAccumulator> accumulators= this.getAccumulators(chrom, from, to);
+		int nPos= 0;
+		for(PileupAccumulator acc : accumulators){
+			for(int pos= Math.max(from, acc.getFrom()); pos <= Math.min(to, acc.getTo()); pos++){
+				if(acc.getDepth(pos) > 0){
+					nPos++;
+				}
 			}
 		}
-
-		double samplingRate= (200000.0) / posInWindow.size();
+		
+		double samplingRate= (200000.0) / nPos;
 		Random rand = new Random();
 		// Important: Use have positions returned sorted. 
 		Map<Integer, Integer> depth= new LinkedHashMap<Integer, Integer>();
-		for(int pos : posInWindow){
-			int posDepth= this.loci.get(chrom).get(pos).getDepth();
-			if(rand.nextFloat() < samplingRate){
-				depth.put(pos, posDepth);			
+		for(PileupAccumulator acc : accumulators){
+			for(int pos= Math.max(from, acc.getFrom()); pos <= Math.min(to, acc.getTo()); pos++){
+				int posDepth= acc.getDepth(pos);
+				if(posDepth > 0 && rand.nextFloat() < samplingRate){
+					depth.put(pos, posDepth);
+				}
 			}
 		}
 		return depth;
 	}
 	
+	/** Return the cached accumulators overlapping the given interval, sorted by position.
+	 * */
+	private List<PileupAccumulator> getAccumulators(String chrom, int from, int to){
+		return this.loci.get(chrom, from, to);
+	}
+	
 	private char[] getConsensusSequence() throws IOException {
 		
 		// We could get the refseq from genomicCoords but maybe safer to extract it again from scratch.
@@ -362,25 +376,43 @@ public class TrackPileup extends TrackWiggles {
 			faSeqFile.close();
 		}
 		char[] consensusSequence= new char[this.getGc().getTo() - this.getGc().getFrom() + 1];
-		int i= 0;
-		for(int pos= this.getGc().getFrom(); pos <= this.getGc().getTo(); pos++){
-			char consensus= ' '; // Empty char assuming there is no coverage.
-			if(this.loci.get(this.getGc().getChrom()).containsKey(pos)){ // If containsKey then the position has coverage.
-				Locus loc= this.loci.get(this.getGc().getChrom()).get(pos);
-				consensus= loc.getConsensus();
-				if(refSeq != null){
-					char ref= Character.toUpperCase((char) refSeq[loc.pos - this.getGc().getFrom()]);
+		Arrays.fill(consensusSequence, ' '); // Empty char assuming there is no coverage.
+		for(PileupAccumulator acc : this.getAccumulators(this.getGc().getChrom(), this.getGc().getFrom(), this.getGc().getTo())){
+			for(int pos= Math.max(this.getGc().getFrom(), acc.getFrom()); pos <= Math.min(this.getGc().getTo(), acc.getTo()); pos++){
+				char consensus= acc.getConsensus(pos);
+				if(consensus != ' ' && refSeq != null){
+					char ref= Character.toUpperCase((char) refSeq[pos - this.getGc().getFrom()]);
 					if(ref == Character.toUpperCase(consensus)){
 						consensus= '=';
 					}
 				}
+				consensusSequence[pos - this.getGc().getFrom()]= consensus;
 			}
-			consensusSequence[i]= consensus;
-			i++;
 		}
 		return consensusSequence;
 	}
 
+	/** Tab separated counts of bases at each covered position in the current window. Columns are:
+	 * chrom, position, depth, A, C, G, T, N, deletions.
+	 * */
+	@Override
+	public List<String> printPileupList(){
+		List<String> pileup= new ArrayList<String>();
+		String chrom= this.getGc().getChrom();
+		for(PileupAccumulator acc : this.getAccumulators(chrom, this.getGc().getFrom(), this.getGc().getTo())){
+			for(int pos= Math.max(this.getGc().getFrom(), acc.getFrom()); pos <= Math.min(this.getGc().getTo(), acc.getTo()); pos++){
+				if(acc.getDepth(pos) == 0){
+					continue;
+				}
+				pileup.add(chrom + "\t" + pos + "\t" + acc.getDepth(pos) 
+						+ "\t" + acc.getCount(pos, 'A') + "\t" + acc.getCount(pos, 'C') 
+						+ "\t" + acc.getCount(pos, 'G') + "\t" + acc.getCount(pos, 'T') 
+						+ "\t" + acc.getCount(pos, 'N') + "\t" + acc.getCount(pos, 'D'));
+			}
+		}
+		return pileup;
+	}
+
 	public String getPrintableConsensusSequence() throws IOException, InvalidGenomicCoordsException, InvalidColourException{
 		if( ! this.getGc().isSingleBaseResolution || this.isBisulf()){
 			return "";
@@ -407,8 +439,9 @@ public class TrackPileup extends TrackWiggles {
 		return faSeqStr + "\n";
 	}
 	
-	@Override
-	protected String getTitleForActiveFilters() {
+	/** Names of the filters currently set on this track. Empty if all filters have default values.
+	 * */
+	private List<String> getActiveFilters(){
 		List<String> title= new ArrayList<String>();
 		if( ! this.getAwk().equals(Filter.DEFAULT_AWK.getValue())){
 			title.add("awk");
@@ -426,6 +459,12 @@ public class TrackPileup extends TrackWiggles {
 		if( ! this.getFeatureFilter().getVariantChrom().equals(Filter.DEFAULT_VARIANT_CHROM.getValue())){
 			title.add("var-read");
 		}
+		return title;
+	}
+	
+	@Override
+	protected String getTitleForActiveFilters() {
+		List<String> title= this.getActiveFilters();
 		if(title.size() > 0){
 			return "; filters: " + title.toString(); 
 		} else {
@@ -461,11 +500,16 @@ public class TrackPileup extends TrackWiggles {
 		if(this.alnRecCnt != -1){
 			libsize= "; lib size: " + this.alnRecCnt;
 		}
+		String estimateTag= "";
+		if(this.isIndexEstimate){
+			estimateTag= "; estimated from index";
+		}
 		String xtitle= this.getTrackTag() 
 				+ "; ylim[" + ymin + " " + ymax + "]" 
 				+ "; range[" + rounded[0] + " " + rounded[1] + "]"
 				+ libsize
 				+ rpmTag
+				+ estimateTag
 				+ this.getTitleForActiveFilters();
 		return this.formatTitle(xtitle) + "\n";
 	}
@@ -515,17 +559,36 @@ public class TrackPileup extends TrackWiggles {
 
 	private void clearCache(){
 		this.loci.clear(); // clear cached positions
-		this.zeroDepthIntervals.clear();
 	}
 	
+	@Override
+	public void close(){
+		super.close();
+		if(this.coveragePyramid != null){
+			this.coveragePyramid.close();
+		}
+	}
+
+	/** Estimator of depth from the index, null if the file is not suitable */
+	protected BamIndexCoverage getIndexCoverage(){
+		return this.indexCoverage;
+	}
+
+	/** Coverage cache of the current work file, null if not enabled */
+	protected BamCoveragePyramid getCoveragePyramid(){
+		return this.coveragePyramid;
+	}
+
 	@Override
 	public void reload() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
 		if( ! Files.isSameFile(Paths.get(this.getWorkFilename()), Paths.get(this.getFilename()))){
-			TrackPileup tr= new TrackPileup(this.getFilename(), this.getGc());
-			String fname= this.getWorkFilename();
-			Files.move(Paths.get(tr.getWorkFilename()), Paths.get(fname), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-			Files.move(Paths.get(tr.getWorkFilename().replaceAll("\\.bam$", ".bai")), Paths.get(fname.replaceAll("\\.bam$", ".bai")), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			// The sorted copy of a modified file is a different file, possibly from cache 
+			CacheFiles.release(this);
+			this.setWorkFilename(SortedBamCache.getSortedBam(this.getFilename(), this));
 		}
+		// The cache of a modified file is a different file and its reads may have a different length
+		this.openIndexCoverage();
+		this.openCoveragePyramid();
 		this.clearCache();
 		this.update();
 	}
@@ -1,17 +1,22 @@
 package tracks;
 
-import java.io.File;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
@@ -23,6 +28,7 @@ import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
+import htsjdk.samtools.filter.SamRecordFilter;
 import samTextViewer.GenomicCoords;
 import samTextViewer.Utils;
 
@@ -39,6 +45,11 @@ public class TrackReads extends Track{
 	private int userWindowSize;
 	private List<Argument> colorForRegex= null;
 	private long alnRecCnt= -1;
+	/** Reads of the current window. Null if the window has to be read again from scratch */
+	private ReadWindow readWindow;
+	private int readWindowMaxReads;
+	/** Seed for downsampling reads. Fixed for the track so the same window always shows the same reads */
+	private final long sampleSeed= new Random().nextLong();
 	
 	/* C o n s t r u c t o r s */
 	/**
@@ -58,9 +69,7 @@ public class TrackReads extends Track{
 		this.setTrackFormat(TrackFormat.BAM);
 		
 		if(!Utils.bamHasIndex(bam)){
-			File temp= Utils.createTempFile(".asciigenome.", ".bam", true);
-			Utils.sortAndIndexSamOrBam(bam, temp.getAbsolutePath(), true);
-			this.setWorkFilename(temp.getAbsolutePath());
+			this.setWorkFilename(SortedBamCache.getSortedBam(bam, this));
 		} else {
 			this.setWorkFilename(bam);
 		}
@@ -68,11 +77,38 @@ public class TrackReads extends Track{
 		this.setGc(gc);
 	}
 		
+	/*                  F I L T E R S           */
+	// Changing filters invalidates the reads of the current window
+	
+	@Override
+	void setSamRecordFilter(List<SamRecordFilter> samRecordFilter) throws MalformedURLException, ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException {
+		this.readWindow= null;
+		super.setSamRecordFilter(samRecordFilter);
+	}
+
+	@Override
+	public void setShowHideRegex(Pattern showRegex, Pattern hideRegex) throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
+		this.readWindow= null;
+		super.setShowHideRegex(showRegex, hideRegex);
+	}
+
+	@Override
+	public void setAwk(String awk) throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException {
+		this.readWindow= null;
+		super.setAwk(awk);
+	}
+
+	@Override
+	public void setVariantReadInInterval(String chrom, int from, int to, boolean variantOnly) throws MalformedURLException, ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException{
+		this.readWindow= null;
+		super.setVariantReadInInterval(chrom, from, to, variantOnly);
+	}
+	
 	/* M e t h o d s */
 	
 	@Override
 	public void close(){
-		
+		CacheFiles.release(this);
 	}
 	
 	public void update() throws InvalidGenomicCoordsException, IOException{
@@ -81,52 +117,110 @@ public class TrackReads extends Track{
 			return;
 		}
 		
+		int previousUserWindowSize= this.userWindowSize;
 		this.userWindowSize= this.getGc().getUserWindowSize();
 		
+		List<List<SamSequenceFragment>> previousStack= this.readStack;
 		this.readStack= new ArrayList<List<SamSequenceFragment>>();
 		if(this.getGc().getGenomicWindowSize() < this.MAX_REGION_SIZE){
 
-			SamReader samReader= Utils.getSamReader(this.getWorkFilename());
-			List<Boolean> passFilter= this.filterReads(samReader, this.getGc().getChrom(), this.getGc().getFrom(), this.getGc().getTo());
-			samReader.close();
+			String chrom= this.getGc().getChrom();
+			int from= this.getGc().getFrom();
+			int to= this.getGc().getTo();
+			int max_reads= Integer.parseInt(Config.get(ConfigKey.max_reads_in_stack));
 			
-			this.nRecsInWindow= 0;
-			for(boolean x : passFilter){ // The count of reads in window is the count of reads passing filters
-				if(x){
-					this.nRecsInWindow++;
-				}
+			// If the window has moved by less than its size, read only the new part
+			ReadWindow window= null;
+			if(this.readWindow != null && this.readWindow.isPanTo(chrom, from, to) && 
+					max_reads == this.readWindowMaxReads && this.userWindowSize == previousUserWindowSize){
+				window= this.panReadWindow(from, to, max_reads);
 			}
-			samReader= Utils.getSamReader(this.getWorkFilename());
-			Iterator<SAMRecord> sam= samReader.query(this.getGc().getChrom(), this.getGc().getFrom(), this.getGc().getTo(), false);
-
-			float max_reads= Float.parseFloat(Config.get(ConfigKey.max_reads_in_stack));
-			float probSample= max_reads / this.nRecsInWindow;
+			boolean isPan= window != null;
+			if( ! isPan){
+				window= this.readWindow(chrom, from, to, max_reads);
+			}
+			this.readWindow= window;
+			this.readWindowMaxReads= max_reads;
 			
-			// Add this random String to the read name so different screenshot will generate 
-			// different samples. 
-			String rndOffset= Integer.toString(new Random().nextInt());
+			// The count of reads in window is the count of reads passing filters
+			this.nRecsInWindow= window.getCount();
 
 			List<TextRead> textReads= new ArrayList<TextRead>();
-			ListIterator<Boolean> pass = passFilter.listIterator();
-			while(sam.hasNext() && textReads.size() < max_reads){
-				SAMRecord rec= sam.next();
-				if( pass.next() ){
-					String templ_name= Utils.templateNameFromSamReadName(rec.getReadName());
-					long v= (templ_name + rndOffset).hashCode(); // Hashing.md5().hashBytes((templ_name + rndOffset).getBytes()).asLong();
-					Random rand = new Random(v);
-					if(rand.nextFloat() < probSample){ // Downsampler
-						TextRead tr= new TextRead(rec, this.getGc(), Utils.asBoolean(Config.get(ConfigKey.show_soft_clip)));
-						textReads.add(tr);
-					}
-				}
+			boolean showSoftClip= Utils.asBoolean(Config.get(ConfigKey.show_soft_clip));
+			for(SAMRecord rec : window.getSample()){
+				textReads.add(new TextRead(rec, this.getGc(), showSoftClip));
 			}
-			samReader.close();
-			this.readStack= stackReads(textReads);
+			this.readStack= stackReads(textReads, isPan ? previousStack : null);
 		} else {
 			this.nRecsInWindow= -1;
+			this.readWindow= null;
 		}
 	}
 	
+	/** Read the window once, sampling the records passing filters as they come.
+	 * */
+	private ReadWindow readWindow(String chrom, int from, int to, int max_reads) throws IOException{
+		ReadWindow window= new ReadWindow(chrom, from, to);
+		ReadSampler sampler= new ReadSampler(max_reads, this.sampleSeed);
+		SamReader samReader= Utils.getSamReader(this.getWorkFilename());
+		Iterator<SAMRecord> sam= this.filterReads(samReader, chrom, from, to);
+		while(sam.hasNext()){
+			SAMRecord rec= sam.next();
+			window.add(rec);
+			sampler.add(rec);
+		}
+		samReader.close();
+		window.setSample(sampler.getSample(), sampler.getMaxHash());
+		return window;
+	}
+	
+	/** Move the current window to from-to by reading only the slice not covered by the current window.
+	 * Sampled reads still in view are kept and reads in the new slice are sampled at the same rate.
+	 * Return null if after moving there are too few reads in the sample compared to what could be
+	 * shown, so the window should be read again from scratch. 
+	 * */
+	private ReadWindow panReadWindow(int from, int to, int max_reads) throws IOException{
+		
+		ReadWindow current= this.readWindow;
+		ReadWindow window= current.panTo(from, to);
+		ReadSampler sampler= new ReadSampler(max_reads, this.sampleSeed, current.getMaxHash());
+		for(SAMRecord rec : current.getSampleOverlapping(from, to)){
+			sampler.add(rec);
+		}
+		
+		boolean isRight= from > current.getFrom();
+		int qryFrom= isRight ? current.getTo() + 1 : from;
+		int qryTo= isRight ? to : current.getFrom() - 1;
+		SamReader samReader= Utils.getSamReader(this.getWorkFilename());
+		Iterator<SAMRecord> sam= this.filterReads(samReader, current.getChrom(), qryFrom, qryTo);
+		while(sam.hasNext()){
+			SAMRecord rec= sam.next();
+			// Skip reads overlapping the current window since we already have them
+			if(isRight && rec.getAlignmentStart() <= current.getTo()){
+				continue;
+			}
+			if( ! isRight && rec.getAlignmentEnd() >= current.getFrom()){
+				continue;
+			}
+			window.add(rec);
+			sampler.add(rec);
+		}
+		samReader.close();
+		
+		if(sampler.size() < max_reads / 2 && window.getCount() > sampler.size()){
+			return null;
+		}
+		List<SAMRecord> sample= sampler.getSample();
+		Collections.sort(sample, new Comparator<SAMRecord>() {
+			@Override
+			public int compare(SAMRecord x, SAMRecord y) {
+				return Integer.compare(x.getAlignmentStart(), y.getAlignmentStart());
+			}
+		});
+		window.setSample(sample, sampler.getMaxHash());
+		return window;
+	}
+	
 	/** 
 	 * Printable track on screen. This is what should be called by Main 
 	 * @throws InvalidGenomicCoordsException 
@@ -172,10 +266,11 @@ public class TrackReads extends Track{
 	 * Output, each line is a list of TextRead:
      [AAAAAAAAAAAA TTTTTTTTTTT  GGGGGGGGGGG]       
 	 [ CCCCCCCCCCCC                     AAAAAAAA]
+	 * @param previousStack If not null, reads already in this stack are kept in the same line, if possible.
 	 * @throws IOException 
 	 * @throws InvalidGenomicCoordsException 
 	 */
-	private List<List<SamSequenceFragment>> stackReads(List<TextRead> textReads) throws InvalidGenomicCoordsException, IOException{
+	private List<List<SamSequenceFragment>> stackReads(List<TextRead> textReads, List<List<SamSequenceFragment>> previousStack) throws InvalidGenomicCoordsException, IOException{
 		
 		List<List<SamSequenceFragment>> listOfLines= new ArrayList<List<SamSequenceFragment>>();
 		if(textReads.size() == 0){
@@ -183,37 +278,113 @@ public class TrackReads extends Track{
 		}
 
 		List<SamSequenceFragment> fragments= this.makeFragments(textReads, this.getReadsAsPairs()); 
-		List<SamSequenceFragment> line= new ArrayList<SamSequenceFragment>(); // All fragments going in the same line
-		line.add(fragments.get(0)); 
-		fragments.remove(0);
-		listOfLines.add(line);
-		int gap= (this.getGc().isSingleBaseResolution) ? 1 : 0; // If reads are very compressed, do not add space between adjacent ones.
-		while(true){
-			ArrayList<SamSequenceFragment> fragToRemove= new ArrayList<SamSequenceFragment>();
-			// Find a fragment in input whose start is greater then end of current
-			for(int i=0; i < fragments.size(); i++){
-				SamSequenceFragment frag= fragments.get(i);
-				if(frag.getTextStart() > line.get(line.size()-1).getTextEnd()+gap){ // +2 because we want some space between adjacent reads
-					listOfLines.get(listOfLines.size()-1).add(frag); // Append to the last line. 
-					fragToRemove.add(frag);
+		sortFragmentsByTextStart(fragments);
+		final int gap= (this.getGc().isSingleBaseResolution) ? 1 : 0; // If reads are very compressed, do not add space between adjacent ones.
+		
+		if(previousStack != null && previousStack.size() > 0){
+			return this.restackReads(fragments, previousStack, gap);
+		}
+		
+		// Sweep fragments from left to right. Each fragment goes to the first line, i.e. lowest index,
+		// where it fits. Lines still covering the current position are in a heap ordered by 
+		// end position. Lines that have been passed are moved to a heap of free lines ordered by index.
+		final int[] lineEnd= new int[fragments.size()]; // Text end of the last fragment in each line. At most one line per fragment.
+		PriorityQueue<Integer> busyLines= new PriorityQueue<Integer>(11, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer x, Integer y) {
+				return Integer.compare(lineEnd[x], lineEnd[y]);
+			}
+		});
+		PriorityQueue<Integer> freeLines= new PriorityQueue<Integer>();
+		for(SamSequenceFragment frag : fragments){
+			while(busyLines.size() > 0 && frag.getTextStart() > lineEnd[busyLines.peek()] + gap){
+				freeLines.add(busyLines.poll());
+			}
+			int idx;
+			if(freeLines.size() > 0){
+				idx= freeLines.poll();
+			} else {
+				idx= listOfLines.size();
+				listOfLines.add(new ArrayList<SamSequenceFragment>());
+			}
+			listOfLines.get(idx).add(frag);
+			lineEnd[idx]= frag.getTextEnd();
+			busyLines.add(idx);
+		}
+		return listOfLines;
+	}
+	
+	/** Stack fragments keeping those in previousStack in the same line as before, if they still fit. 
+	 * Fragments that are new or don't fit go to the first line where they fit.
+	 * */
+	private List<List<SamSequenceFragment>> restackReads(List<SamSequenceFragment> fragments, List<List<SamSequenceFragment>> previousStack, int gap){
+		
+		Map<SAMRecord, Integer> previousLine= new IdentityHashMap<SAMRecord, Integer>();
+		for(int i= 0; i < previousStack.size(); i++){
+			for(SamSequenceFragment frag : previousStack.get(i)){
+				previousLine.put(frag.getLeftRead().getSamRecord(), i);
+				if(frag.getRightRead() != null){
+					previousLine.put(frag.getRightRead().getSamRecord(), i);
 				}
-			} // At the end of the loop you have put in line as many reads as you can. 
-			for(SamSequenceFragment tr : fragToRemove){ 
-				fragments.remove(fragments.indexOf(tr));
 			}
-			// Create a new line, add the first textRead in list
-			if(fragments.size() > 0){
-				line= new ArrayList<SamSequenceFragment>();
-				line.add(fragments.get(0));
-				listOfLines.add(line);
-				fragments.remove(0);
+		}
+		
+		// Fragments in each line, keyed by text start
+		List<TreeMap<Integer, SamSequenceFragment>> lines= new ArrayList<TreeMap<Integer, SamSequenceFragment>>();
+		List<SamSequenceFragment> unplaced= new ArrayList<SamSequenceFragment>();
+		for(SamSequenceFragment frag : fragments){
+			Integer idx= previousLine.get(frag.getLeftRead().getSamRecord());
+			if(idx == null && frag.getRightRead() != null){
+				idx= previousLine.get(frag.getRightRead().getSamRecord());
+			}
+			if(idx == null){
+				unplaced.add(frag);
+				continue;
+			}
+			while(lines.size() <= idx){
+				lines.add(new TreeMap<Integer, SamSequenceFragment>());
+			}
+			if(fitsInLine(lines.get(idx), frag, gap)){
+				lines.get(idx).put(frag.getTextStart(), frag);
 			} else {
-				break;
+				unplaced.add(frag);
+			}
+		}
+		for(SamSequenceFragment frag : unplaced){
+			int idx= 0;
+			while(idx < lines.size() && ! fitsInLine(lines.get(idx), frag, gap)){
+				idx++;
+			}
+			if(idx == lines.size()){
+				lines.add(new TreeMap<Integer, SamSequenceFragment>());
 			}
+			lines.get(idx).put(frag.getTextStart(), frag);
+		}
+		
+		// Lines emptied by reads leaving the window are kept, so lines below don't move, 
+		// except at the bottom.
+		while(lines.size() > 0 && lines.get(lines.size() - 1).isEmpty()){
+			lines.remove(lines.size() - 1);
+		}
+		List<List<SamSequenceFragment>> listOfLines= new ArrayList<List<SamSequenceFragment>>();
+		for(TreeMap<Integer, SamSequenceFragment> line : lines){
+			listOfLines.add(new ArrayList<SamSequenceFragment>(line.values()));
 		}
 		return listOfLines;
 	}
 	
+	private static boolean fitsInLine(TreeMap<Integer, SamSequenceFragment> line, SamSequenceFragment frag, int gap){
+		Map.Entry<Integer, SamSequenceFragment> left= line.floorEntry(frag.getTextStart());
+		if(left != null && frag.getTextStart() <= left.getValue().getTextEnd() + gap){
+			return false;
+		}
+		Map.Entry<Integer, SamSequenceFragment> right= line.ceilingEntry(frag.getTextStart());
+		if(right != null && right.getKey() <= frag.getTextEnd() + gap){
+			return false;
+		}
+		return true;
+	}
+	
 	/**Match reads in textReads list to return a list fragments. Fragments are
 	 * returned sorted by start position. 
 	 * @param paired If true try to match up read pairs in the same fragment. If false, each read
@@ -223,10 +394,27 @@ public class TrackReads extends Track{
 
 		List<SamSequenceFragment> fragments= new ArrayList<SamSequenceFragment>();
 
-		while(textReads.size() > 0){
-			// Keep going until all reads have been moved to the list of fragments.
-			TextRead tr= textReads.get(0);
-			textReads.remove(0);
+		// Candidate mates grouped by template name, in input order
+		Map<String, List<TextRead>> pairedReads= new HashMap<String, List<TextRead>>();
+		if(asPair){
+			for(TextRead tr : textReads){
+				if(tr.getSamRecord().getProperPairFlag()){
+					String name= Utils.templateNameFromSamReadName(tr.getSamRecord().getReadName());
+					List<TextRead> group= pairedReads.get(name);
+					if(group == null){
+						group= new ArrayList<TextRead>(2);
+						pairedReads.put(name, group);
+					}
+					group.add(tr);
+				}
+			}
+		}
+		
+		Set<TextRead> paired= Collections.newSetFromMap(new IdentityHashMap<TextRead, Boolean>());
+		for(TextRead tr : textReads){
+			if(paired.contains(tr)){
+				continue; // Already used as mate of a previous read
+			}
 			if( ! asPair || ! tr.getSamRecord().getProperPairFlag()){
 				SamSequenceFragment frag= new SamSequenceFragment(tr);
 				if(! asPair){ 
@@ -235,10 +423,16 @@ public class TrackReads extends Track{
 				fragments.add(frag);
 			}
 			else {
-				// Find the mate of this read, if present.
+				// Find the mate of this read among the following reads, if present.
 				TextRead mate= null;
-				for(TextRead candidateMate : textReads){
-					if(candidateMate.getSamRecord().getProperPairFlag() && 
+				List<TextRead> group= pairedReads.get(Utils.templateNameFromSamReadName(tr.getSamRecord().getReadName()));
+				boolean isAfter= false;
+				for(TextRead candidateMate : group){
+					if(candidateMate == tr){
+						isAfter= true;
+						continue;
+					}
+					if(isAfter && ! paired.contains(candidateMate) &&
 					   Utils.equalReadNames(tr.getSamRecord().getReadName(), candidateMate.getSamRecord().getReadName()) &&
 					   tr.getSamRecord().getAlignmentStart() == candidateMate.getSamRecord().getMateAlignmentStart()){
 						mate= candidateMate;
@@ -249,7 +443,7 @@ public class TrackReads extends Track{
 					fragments.add(new SamSequenceFragment(tr));
 				} else {
 					fragments.add(new SamSequenceFragment(tr, mate));
-					textReads.remove(mate);
+					paired.add(mate);
 				}
 			}
 		}
@@ -257,6 +451,17 @@ public class TrackReads extends Track{
 		return fragments;
 	}
 
+	/** Stable sort by start position on screen. 
+	 * */
+	private void sortFragmentsByTextStart(List<SamSequenceFragment> fragments){
+		Collections.sort(fragments, new Comparator<SamSequenceFragment>() {
+			@Override
+			public int compare(final SamSequenceFragment frag1, final SamSequenceFragment frag2) {
+				return Integer.compare(frag1.getTextStart(), frag2.getTextStart());
+			}
+		});
+	}
+
     private void sortFragmentsByStartPosition(List<SamSequenceFragment> fragments){
     	  Collections.sort(fragments, new Comparator<SamSequenceFragment>() {
     	      @Override
@@ -380,6 +585,7 @@ public class TrackReads extends Track{
 	@Override
 	public void setReadsAsPairs(boolean readsAsPairs) throws InvalidGenomicCoordsException, IOException {
 		this.readsAsPairs= readsAsPairs;
+		this.readWindow= null;
 		this.update();
 	}
 
@@ -433,11 +639,11 @@ public class TrackReads extends Track{
 	@Override
 	public void reload() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
 		if( ! Files.isSameFile(Paths.get(this.getWorkFilename()), Paths.get(this.getFilename()))){
-			TrackReads tr= new TrackReads(this.getFilename(), this.getGc());
-			String fname= this.getWorkFilename();
-			Files.move(Paths.get(tr.getWorkFilename()), Paths.get(fname), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-			Files.move(Paths.get(tr.getWorkFilename().replaceAll("\\.bam$", ".bai")), Paths.get(fname.replaceAll("\\.bam$", ".bai")), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			// The sorted copy of a modified file is a different file, possibly from cache 
+			CacheFiles.release(this);
+			this.setWorkFilename(SortedBamCache.getSortedBam(this.getFilename(), this));
 		}
+		this.readWindow= null;
 		this.update();
 	}
 
@@ -47,7 +47,7 @@ public class TrackSeqRegex extends TrackIntervalFeature {
 
 		this.findRegex();
 		for(IntervalFeature ift : this.getIntervalFeatureList()){
-			ift.mapToScreen(this.getGc().getMapping());
+			ift.mapToScreen(this.getGc().getScreenMapping());
 		}
 	}
 	
@@ -133,8 +133,10 @@ public class TrackSeqRegex extends TrackIntervalFeature {
 		// ======================================================
 		File regexMatchBgzip= new File(regexMatchFile + ".gz");
 		File regexMatchIndex= new File(regexMatchFile + ".gz.tbi");
+		File regexMatchCsi= new File(regexMatchFile + ".gz.csi");
 		regexMatchBgzip.deleteOnExit();
 		regexMatchIndex.deleteOnExit();
+		regexMatchCsi.deleteOnExit();
 
 		new MakeTabixIndex(regexMatchFile, regexMatchBgzip, TabixFormat.BED);
 		new File(regexMatchFile).delete();
@@ -142,6 +144,7 @@ public class TrackSeqRegex extends TrackIntervalFeature {
 		TrackIntervalFeature regexMatchTrack = new TrackIntervalFeature(regexMatchBgzip.getAbsolutePath(), this.getGc());
 		regexMatchBgzip.delete();
 		regexMatchIndex.delete();
+		regexMatchCsi.delete();
 		
 		this.intervalFeatureList= regexMatchTrack.getIntervalFeatureList(); 
 	}
@@ -4,12 +4,15 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.sql.SQLException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -22,15 +25,16 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 
+import coloring.Config;
+import coloring.ConfigKey;
 import coloring.Xterm256;
 import exceptions.BamIndexNotFoundException;
 import exceptions.InvalidColourException;
 import exceptions.InvalidCommandLineException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
-import filter.FlagToFilter;
+import filter.SamFlagFilter;
 import htsjdk.samtools.SAMSequenceDictionary;
-import htsjdk.samtools.filter.MappingQualityFilter;
 import htsjdk.samtools.filter.SamRecordFilter;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import samTextViewer.GenomicCoords;
@@ -967,12 +971,18 @@ public class TrackSet {
 	}
 
 	/** Get the range of all the screen scores of this list of tracks. I.e. the global min and max.
+	 * For bedGraph tracks, the range includes all the data columns.
 	 * */
 	private Float[] yRangeOfTracks(List<Track> tracks){
 		
 		List<Float> yall= new ArrayList<Float>();
 		for(Track tr : tracks){
-			yall.addAll(tr.getScreenScores());
+			Float[] dataColRange= tr instanceof TrackWiggles ? ((TrackWiggles) tr).getYRangeOfDataColumns() : null;
+			if(dataColRange != null){
+				yall.addAll(Arrays.asList(dataColRange));
+			} else {
+				yall.addAll(tr.getScreenScores());
+			}
 		}		
 		return Utils.range(yall);
 	}
@@ -1854,8 +1864,7 @@ public class TrackSet {
         	tr.setMapq(q);
         	
         	List<SamRecordFilter> filters= new ArrayList<SamRecordFilter>();
-        	filters.addAll(FlagToFilter.flagToFilterList(f, F));
-        	filters.add(new MappingQualityFilter(q));
+        	filters.add(new SamFlagFilter(f, F, q));
         	tr.setSamRecordFilter(filters);
         }		
 	}
@@ -2118,6 +2127,7 @@ public class TrackSet {
         	messages += "Dropping: " + tr.getTrackTag() + "\n";
         	if( ! test){
         		this.trackList.remove(tr);
+        		tr.close();
         	}
         }
         return messages;
@@ -2245,6 +2255,92 @@ public class TrackSet {
 		return Joiner.on("\n").join(Utils.tabulateList(toshow, -1));
 	}
 
+	/** List the files in cache_dir: sorted copies of sam/bam files, indexed copies of interval
+	 * files and coverage caches. With -clear, delete the cached files not in use by the current tracks
+	 * and not recently used, possibly by other sessions.
+	 * */
+	public String showCache(List<String> cmdInput) {
+		
+		List<String> args= new ArrayList<String>(cmdInput);
+		args.remove(0);
+		boolean clear= Utils.argListContainsFlag(args, "-clear");
+		
+		File cacheDir= new File(Utils.tildeToHomeDir(Config.get(ConfigKey.cache_dir)));
+		Set<File> inUse= new HashSet<File>();
+		for(Track tr : this.getTrackList()){
+			if(tr.getWorkFilename() != null){
+				inUse.add(new File(tr.getWorkFilename()).getAbsoluteFile());
+			}
+		}
+
+		// Each cached file with its companion index, if any
+		Map<File, File> cached= new LinkedHashMap<File, File>();
+		Map<File, String> types= new HashMap<File, String>();
+		for(File f : SortedBamCache.listCached(cacheDir)){
+			cached.put(f, SortedBamCache.getIndex(f));
+			types.put(f, "sorted_bam");
+		}
+		for(File f : TabixFileCache.listCached(cacheDir)){
+			cached.put(f, TabixFileCache.getIndex(f));
+			types.put(f, "tabix");
+		}
+		File[] coverage= cacheDir.listFiles();
+		for(File f : coverage == null ? new File[0] : coverage){
+			if(f.isFile() && f.getName().endsWith(".coverage")){
+				cached.put(f, null);
+				types.put(f, "coverage");
+			}
+			if(f.isFile() && f.getName().endsWith(".bdgcache")){
+				cached.put(f, null);
+				types.put(f, "bedgraph");
+			}
+		}
+		
+		List<String> table= new ArrayList<String>();
+		table.add("type\tsize_mb\tlast_used\tin_use\tfile");
+		long totBytes= 0;
+		int nDeleted= 0;
+		SimpleDateFormat dateFormat= new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		for(File f : cached.keySet()){
+			File idx= cached.get(f);
+			long bytes= f.length() + (idx == null ? 0 : idx.length());
+			// Files in use include the coverage caches of the tracks, registered in CacheFiles
+			boolean used= inUse.contains(f.getAbsoluteFile()) || CacheFiles.isInUse(f);
+			if(clear && ! used && ! CacheFiles.isRecentlyUsed(f)){
+				f.delete();
+				if(idx != null){
+					idx.delete();
+				}
+				nDeleted++;
+				continue;
+			}
+			totBytes += bytes;
+			table.add(types.get(f) + "\t" + String.format("%.1f", bytes / 1024.0 / 1024.0) + "\t" 
+					+ dateFormat.format(new Date(f.lastModified())) + "\t" + (used ? "*" : "") + "\t" + f.getName());
+		}
+		String msg= Joiner.on("\n").join(Utils.tabulateList(table, -1)) + "\n";
+		if(clear){
+			msg += "Deleted " + nDeleted + " cached files\n";
+		}
+		msg += "Total: " + String.format("%.1f", totBytes / 1024.0 / 1024.0) + " MB in " + cacheDir.getAbsolutePath();
+
+		// Pileup tiles are cached in memory by each pileup track
+		long hits= 0;
+		long misses= 0;
+		boolean hasPileup= false;
+		for(Track tr : this.getTrackList()){
+			if(tr instanceof TrackPileup){
+				hasPileup= true;
+				hits += ((TrackPileup) tr).getPileupCacheHits();
+				misses += ((TrackPileup) tr).getPileupCacheMisses();
+			}
+		}
+		if(hasPileup){
+			msg += "\nPileup tiles in memory: " + hits + " found in cache, " + misses + " read from file";
+		}
+		return msg;
+	}
+
 	/** Merge the set of opened files with the given (historic) list. 
 	 * */ 
 	public void addHistoryFiles(List<String> historyFiles) {
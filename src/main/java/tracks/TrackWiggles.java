@@ -6,12 +6,18 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 import org.broad.igv.bbfile.BBFileReader;
+import org.broad.igv.bbfile.BBZoomLevelHeader;
 import org.broad.igv.bbfile.BigWigIterator;
 import org.broad.igv.bbfile.WigItem;
+import org.broad.igv.bbfile.ZoomDataRecord;
+import org.broad.igv.bbfile.ZoomLevelIterator;
 import org.broad.igv.tdf.TDFDataset;
 import org.broad.igv.tdf.TDFGroup;
 import org.broad.igv.tdf.TDFReader;
@@ -30,11 +36,11 @@ import htsjdk.samtools.util.FileExtensions;
 import htsjdk.tribble.index.IndexFactory;
 import htsjdk.tribble.index.tabix.TabixFormat;
 import htsjdk.tribble.index.tabix.TabixIndex;
-import htsjdk.tribble.readers.TabixReader;
-import htsjdk.tribble.readers.TabixReader.Iterator;
 import samTextViewer.GenomicCoords;
+import samTextViewer.ScreenMapping;
 import samTextViewer.Utils;
 import sortBgzipIndex.MakeTabixIndex;
+import sortBgzipIndex.TabixCsiReader;
 
 /** Process wiggle file formats. Mostly using IGV classes. 
  * bigBed, bigWig, */
@@ -44,6 +50,22 @@ public class TrackWiggles extends Track {
 	private List<ScreenWiggleLocusInfo> screenWiggleLocusInfoList;
 	protected int bdgDataColIdx= 4; 
 	private BBFileReader bigWigReader;
+	private TDFReader tdfReader;
+	/** Most recently read tiles of the tdf file. Key: Dataset name and tile number */
+	private Map<String, TDFTile> tdfTileCache= new LinkedHashMap<String, TDFTile>(16, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, TDFTile> eldest){
+			return this.size() > TDF_TILE_CACHE_SIZE;
+		}
+	};
+	/** Width of the bins of the tdf zoom datasets, as read from their tiles. Key: Dataset name */
+	private Map<String, Double> tdfBinWidths= new HashMap<String, Double>();
+	private static final int TDF_TILE_CACHE_SIZE= 64;
+	/** Binary cache of all the data columns of the bedGraph, null if not enabled */
+	private BedGraphPyramid bedGraphPyramid;
+	/** Records of the bedGraph in the current window, for all data columns */
+	private BedGraphMatrix bedGraphMatrix;
 	
 	/* C o n s t r u c t o r s */
 
@@ -88,6 +110,11 @@ public class TrackWiggles extends Track {
 		if(this.bigWigReader != null){
 			this.bigWigReader.close();
 		}
+		this.closeTdfReader();
+		if(this.bedGraphPyramid != null){
+			this.bedGraphPyramid.close();
+		}
+		CacheFiles.release(this);
 	}
 	
 	@Override
@@ -121,6 +148,7 @@ public class TrackWiggles extends Track {
 		File tmp = Utils.createTempFile(".asciigenome." + new File(inBdg).getName() + ".", ".bedGraph.gz", true);
 		File tmpTbi= new File(tmp.getAbsolutePath() + FileExtensions.TABIX_INDEX);
 		tmpTbi.deleteOnExit();
+		new File(tmp.getAbsolutePath() + FileExtensions.CSI).deleteOnExit();
 
 		new MakeTabixIndex(inBdg, tmp, TabixFormat.BED);
 		return tmp.getAbsolutePath();
@@ -131,7 +159,7 @@ public class TrackWiggles extends Track {
 		
 		this.screenWiggleLocusInfoList= 
 				this.tdfRangeToScreen(this.getWorkFilename(), this.getGc().getChrom(), 
-						this.getGc().getFrom(), this.getGc().getTo(), this.getGc().getMapping());
+						this.getGc().getFrom(), this.getGc().getTo(), this.getGc().getScreenMapping());
 		
 		List<Float> screenScores= new ArrayList<Float>();
 		for(ScreenWiggleLocusInfo x : screenWiggleLocusInfoList){
@@ -146,65 +174,140 @@ public class TrackWiggles extends Track {
 	
     /** Fetch data in tdf file in given range and puts it in a list of ScreenWiggleLocusInfo. 
      * a Adapted from dumpRange. Really it should implement iterator.
-     * @param genomeToScreenMapping Typically from GenomicCoords.getMapping() 
+     * Data is read from the dataset with resolution closest to the bp per screen column, see getTdfDatasetName().
+     * @param genomeToScreenMapping Typically from GenomicCoords.getScreenMapping() 
      * 
      * @author berald01
      * */
-    private List<ScreenWiggleLocusInfo> tdfRangeToScreen(String ibfFile, String chrom, int startLocation, int endLocation, List<Double> genomeToScreenMapping) {
+    private List<ScreenWiggleLocusInfo> tdfRangeToScreen(String ibfFile, String chrom, int startLocation, int endLocation, ScreenMapping genomeToScreenMapping) {
 
         List<ScreenWiggleLocusInfo> screenWiggleLocusInfoList= new ArrayList<ScreenWiggleLocusInfo>();
         for(int i= 0; i < genomeToScreenMapping.size(); i++){
             screenWiggleLocusInfoList.add(new ScreenWiggleLocusInfo());
         }
 
-        TDFReader reader = TDFReader.getReader(ibfFile);
-
-        for (String dsName : reader.getDatasetNames()) {
-
-            String[] tokens = dsName.split("/");
-            String chrName = tokens[1];
-            if(!chrName.equals(chrom) || !dsName.contains("raw")){ // Not the right chrom or track
-                continue;
-            }
-
-            TDFDataset ds = reader.getDataset(dsName);
-
-            int tileWidth = ds.getTileWidth();
-            int startTile = startLocation / tileWidth;
-            int endTile = endLocation / tileWidth;
-
-            for (int tileNumber = startTile; tileNumber <= endTile; tileNumber++) {
-                TDFTile tile = reader.readTile(ds, tileNumber);
-                if (tile == null) {
-                    // System.out.println("Null tile: " + dsName + " [" + tileNumber + "]");
-                } else {
-                    int nTracks = reader.getTrackNames().length;
-                    if(nTracks > 1){
-                        throw new RuntimeException("More than one track found in tdf file " + ibfFile);
-                    }
-                    int nBins = tile.getSize();
-                    if (nBins > 0) {
-                        for (int b = 0; b < nBins; b++) {
-                            int start = tile.getStartPosition(b);
-                            int end = tile.getEndPosition(b);
-                            if (start > endLocation) {
-                                break;
-                            }
-                            if (end >= startLocation) {
-                                int tileStartPos= tile.getStartPosition(b);
-                                float tileValue= tile.getValue(0, b);
-                                int idx= Utils.getIndexOfclosestValue(tileStartPos+1, genomeToScreenMapping); // Where should this position be mapped on screen?
-                                screenWiggleLocusInfoList.get(idx).increment(tileValue);
-
-                            }
-                        } // End process bins in this tile
-                    }
-                } // End process this tile
-            } // End iter tiles
-        } // End iter datasets names
-        reader.close();
+        TDFReader reader = this.getTdfReader();
+        
+        double bpPerColumn= (endLocation - startLocation + 1.0) / genomeToScreenMapping.size();
+        String dsName= this.getTdfDatasetName(reader, chrom, startLocation, endLocation, bpPerColumn);
+        if(dsName == null){ // Chrom not in this file
+        	return screenWiggleLocusInfoList;
+        }
+        TDFDataset ds = reader.getDataset(dsName);
+
+        int tileWidth = ds.getTileWidth();
+        int startTile = startLocation / tileWidth;
+        int endTile = endLocation / tileWidth;
+
+        for (int tileNumber = startTile; tileNumber <= endTile; tileNumber++) {
+            TDFTile tile = this.readTdfTile(reader, ds, dsName, tileNumber);
+            if (tile == null) {
+                // System.out.println("Null tile: " + dsName + " [" + tileNumber + "]");
+            } else {
+                int nTracks = reader.getTrackNames().length;
+                if(nTracks > 1){
+                    throw new RuntimeException("More than one track found in tdf file " + ibfFile);
+                }
+                int nBins = tile.getSize();
+                if (nBins > 0) {
+                    for (int b = 0; b < nBins; b++) {
+                        int start = tile.getStartPosition(b);
+                        int end = tile.getEndPosition(b);
+                        if (start > endLocation) {
+                            break;
+                        }
+                        float tileValue= tile.getValue(0, b);
+                        if (end >= startLocation && ! Float.isNaN(tileValue)) { // Zoom tiles may have empty bins
+                            int tileStartPos= tile.getStartPosition(b);
+                            int idx= genomeToScreenMapping.getColumn(tileStartPos+1); // Where should this position be mapped on screen?
+                            screenWiggleLocusInfoList.get(idx).increment(tileValue);
+
+                        }
+                    } // End process bins in this tile
+                }
+            } // End process this tile
+        } // End iter tiles
         return screenWiggleLocusInfoList;
     }
+
+	/** Name of the dataset to read for chrom:from-to. This is the zoom dataset with the largest bins not 
+	 * exceeding bpPerColumn, so that no screen column is left without data. If no zoom
+	 * dataset is fine enough, use the raw data. Return null if chrom is not in the file.
+	 * */
+	protected String getTdfDatasetName(TDFReader reader, String chrom, int from, int to, double bpPerColumn){
+		String rawName= null;
+		String zoomName= null;
+		double zoomBinSize= 0;
+		for(String dsName : reader.getDatasetNames()){
+			String[] tokens = dsName.split("/");
+			if(tokens.length < 3 || ! tokens[1].equals(chrom)){
+				continue;
+			}
+			if(tokens[2].equals("raw")){
+				rawName= dsName;
+			} else if(tokens[2].matches("z\\d+") && tokens.length > 3 && tokens[3].equals("mean")){
+				Double binSize= this.getTdfBinWidth(reader, dsName, from, to);
+				if(binSize != null && binSize <= bpPerColumn && binSize > zoomBinSize){
+					zoomName= dsName;
+					zoomBinSize= binSize;
+				}
+			}
+		}
+		if(zoomName != null && (rawName == null || zoomBinSize > 1)){
+			return zoomName;
+		}
+		return rawName;
+	}
+
+	/** Width of the bins of this zoom dataset, taken from the first tile with data overlapping
+	 * from-to. Null if there is no such tile, i.e. no data to show from this dataset.
+	 * */
+	private Double getTdfBinWidth(TDFReader reader, String dsName, int from, int to){
+		if(this.tdfBinWidths.containsKey(dsName)){
+			return this.tdfBinWidths.get(dsName);
+		}
+		TDFDataset ds= reader.getDataset(dsName);
+		for(int tileNumber= from / ds.getTileWidth(); tileNumber <= to / ds.getTileWidth(); tileNumber++){
+			TDFTile tile= this.readTdfTile(reader, ds, dsName, tileNumber);
+			if(tile != null && tile.getSize() > 0){
+				// Zoom tiles have bins of fixed width
+				double binWidth= tile.getEndPosition(0) - tile.getStartPosition(0);
+				this.tdfBinWidths.put(dsName, binWidth);
+				return binWidth;
+			}
+		}
+		return null;
+	}
+
+	/** Tiles are cached since a tile usually spans more than the window.
+	 * */
+	private TDFTile readTdfTile(TDFReader reader, TDFDataset ds, String dsName, int tileNumber){
+		String key= dsName + ":" + tileNumber;
+		if(this.tdfTileCache.containsKey(key)){
+			return this.tdfTileCache.get(key);
+		}
+		TDFTile tile= reader.readTile(ds, tileNumber);
+		this.tdfTileCache.put(key, tile);
+		return tile;
+	}
+
+	/** The tdf reader is opened once and kept open until the track is closed.
+	 * */
+	protected TDFReader getTdfReader(){
+		if(this.tdfReader == null){
+			this.tdfReader= new TDFReader(new ResourceLocator(this.getWorkFilename()));
+		}
+		return this.tdfReader;
+	}
+
+	private void closeTdfReader(){
+		if(this.tdfReader != null){
+			this.tdfReader.close();
+			this.tdfReader= null;
+		}
+		this.tdfTileCache.clear();
+		this.tdfBinWidths.clear();
+	}
 	
 	@Override
 	protected void updateToRPM(){
@@ -266,28 +369,6 @@ public class TrackWiggles extends Track {
 		return this.formatTitle(xtitle) + "\n";
 	}
 	
-	/** Return true if line looks like a valid bedgraph record  
-	 * */
-	private boolean isValidBedGraphLine(String line){
-		
-		if(line.trim().startsWith("#") || line.trim().startsWith("track ")){
-			return true;
-		}
-		
-		String[] bdg= line.split("\t");
-		if(bdg.length < 4){
-			return false;
-		}
-		try{
-			Integer.parseInt(bdg[1]);
-			Integer.parseInt(bdg[2]);
-			Double.parseDouble(bdg[this.bdgDataColIdx - 1]);
-		} catch(NumberFormatException e){
-			return false;
-		}
-		return true;
-	}
-	
 	/** Populate object using bigWig data 
 	 * @throws IOException 
 	 * @throws InvalidGenomicCoordsException */
@@ -299,13 +380,26 @@ public class TrackWiggles extends Track {
 			screenWigLocInfoList.add(new ScreenWiggleLocusInfo());
 		}
 
-		BigWigIterator iter = reader.getBigWigIterator(getGc().getChrom(), getGc().getFrom(), getGc().getChrom(), getGc().getTo(), false);
-		while(iter.hasNext()){
-			WigItem bw = iter.next();
-			for(int i= bw.getStartBase(); i <= bw.getEndBase(); i++){
-				int idx= Utils.getIndexOfclosestValue(i, this.getGc().getMapping()); // Where should this position be mapped on screen?
-				screenWigLocInfoList.get(idx).increment(bw.getWigValue());
-			} 
+		int zoomLevel= this.getBigWigZoomLevel(reader);
+		if(zoomLevel > 0){
+			// Zoomed out: Summaries are much smaller than the data, especially for remote files
+			this.zoomLevelToScores(reader, zoomLevel, screenWigLocInfoList);
+		} else {
+			BigWigIterator iter = reader.getBigWigIterator(getGc().getChrom(), getGc().getFrom(), getGc().getChrom(), getGc().getTo(), false);
+			ScreenMapping mapping= this.getGc().getScreenMapping();
+			while(iter.hasNext()){
+				WigItem bw = iter.next();
+				// Each base goes to the closest screen column. Count the bases of the item 
+				// in each column spanned rather than mapping base by base.
+				int[] span= mapping.getColumnSpan(bw.getStartBase(), bw.getEndBase());
+				if(span == null){
+					continue;
+				}
+				for(int idx= span[0]; idx <= span[1]; idx++){
+					int n= mapping.countPositionsInColumn(idx, bw.getStartBase(), bw.getEndBase());
+					screenWigLocInfoList.get(idx).increment(bw.getWigValue(), n);
+				}
+			}
 		}
 		List<Float> screenScores= new ArrayList<Float>();
 		for(ScreenWiggleLocusInfo x : screenWigLocInfoList){
@@ -314,52 +408,143 @@ public class TrackWiggles extends Track {
 		this.setScreenScores(screenScores);		
 	}
 	
-	/** Get values for bedgraph
+	/** Zoom level of the bigWig file to read for the current window, 0 to read data at base resolution. 
+	 * This is the level with the largest reduction not exceeding the bases per screen column, 
+	 * so that each column still collects at least one summary record. Levels are 1-based as in BBFileReader.  
+	 * */
+	protected int getBigWigZoomLevel(BBFileReader reader) throws InvalidGenomicCoordsException, IOException{
+		if(reader.getZoomLevelCount() == 0){
+			return 0;
+		}
+		double bpPerColumn= (this.getGc().getTo() - this.getGc().getFrom() + 1.0) / this.getGc().getUserWindowSize();
+		int zoomLevel= 0;
+		int bestReduction= 1;
+		for(BBZoomLevelHeader header : reader.getZoomLevels().getZoomLevelHeaders()){
+			if(header.getReductionLevel() <= bpPerColumn && header.getReductionLevel() > bestReduction){
+				zoomLevel= header.getZoomLevel();
+				bestReduction= header.getReductionLevel();
+			}
+		}
+		return zoomLevel;
+	}
+
+	/** Fill the screen loci with the summary records of this zoom level. Each record contributes 
+	 * its mean to the columns it spans, weighted by the bases covered by data in each column.
+	 * */
+	private void zoomLevelToScores(BBFileReader reader, int zoomLevel, List<ScreenWiggleLocusInfo> screenWigLocInfoList){
+		ScreenMapping mapping= this.getGc().getScreenMapping();
+		ZoomLevelIterator iter= reader.getZoomLevelIterator(zoomLevel, 
+				this.getGc().getChrom(), this.getGc().getFrom() - 1, this.getGc().getChrom(), this.getGc().getTo(), false);
+		while(iter.hasNext()){
+			ZoomDataRecord rec= iter.next();
+			if(rec.getBasesCovered() <= 0){
+				continue;
+			}
+			int start= rec.getChromStart() + 1;
+			int end= rec.getChromEnd();
+			int[] span= mapping.getColumnSpan(start, end);
+			if(span == null || end < start){
+				continue;
+			}
+			float mean= rec.getSumData() / rec.getBasesCovered();
+			double coverage= Math.min(1.0, (double)rec.getBasesCovered() / (end - start + 1));
+			for(int idx= span[0]; idx <= span[1]; idx++){
+				int n= mapping.countPositionsInColumn(idx, start, end);
+				if(n > 0){
+					screenWigLocInfoList.get(idx).increment(mean, (int) Math.max(1, Math.round(n * coverage)));
+				}
+			}
+		}
+	}
+	
+	/** Get values for bedgraph. Scores come from the records of the window held in memory, if
+	 * this is the same window, else from the bedGraph cache, if ready, else from the records of the
+	 * window read from the file and kept for the next data column.
+	 * In all cases the score of a screen column is the mean of the values over the bases in the column.
 	 * @throws InvalidRecordException 
 	 * @throws InvalidGenomicCoordsException 
 	 * */
 	protected void bedGraphToScores(String fileName) throws IOException, InvalidRecordException, InvalidGenomicCoordsException{
 
-		List<ScreenWiggleLocusInfo> screenWigLocInfoList= new ArrayList<ScreenWiggleLocusInfo>();
-		for(int i= 0; i < getGc().getUserWindowSize(); i++){
-			screenWigLocInfoList.add(new ScreenWiggleLocusInfo());
-		}
-
-		TabixReader tabixReader= new TabixReader(fileName);
-		try {
-			Iterator qry= tabixReader.query(this.getGc().getChrom(), this.getGc().getFrom()-1, this.getGc().getTo());
-			while(true){
-				String q = qry.next();
-				if(q == null){
-					break;
+		String chrom= this.getGc().getChrom();
+		int from= this.getGc().getFrom();
+		int to= this.getGc().getTo();
+		ScreenMapping mapping= this.getGc().getScreenMapping();
+
+		BedGraphPyramid pyramid= this.getBedGraphPyramid();
+		if(this.bedGraphMatrix == null || ! this.bedGraphMatrix.isWindow(fileName, chrom, from, to, mapping)){
+			this.bedGraphMatrix= null;
+			if(pyramid != null && pyramid.isReady()){
+				List<Float> screenScores= pyramid.getScores(chrom, from, to, this.bdgDataColIdx, mapping);
+				if(screenScores != null){
+					this.setScreenScores(screenScores);
+					return;
 				}
-				if ( !this.isValidBedGraphLine(q) ) {
-					continue;
+			}
+			try{
+				this.bedGraphMatrix= BedGraphMatrix.read(fileName, chrom, from, to, mapping);
+			} catch (IOException e) {			
+				e.printStackTrace();
+				System.err.println("Could not open tabix file: " + fileName);
+				System.err.println("Is the file sorted and indexed? After sorting by position (sort e.g. -k1,1 -k2,2n), compress with bgzip and index with e.g.:");
+				System.err.println("\nbgzip " + fileName);
+				System.err.println("tabix -p bed " + fileName + "\n");
+				List<Float> screenScores= new ArrayList<Float>();
+				for(int i= 0; i < mapping.size(); i++){
+					screenScores.add(Float.NaN);
 				}
-				String[] tokens= q.split("\t");
-				int screenFrom= Utils.getIndexOfclosestValue(Integer.valueOf(tokens[1])+1, this.getGc().getMapping());
-				int screenTo= Utils.getIndexOfclosestValue(Integer.valueOf(tokens[2]), this.getGc().getMapping());
-				float value= Float.valueOf(tokens[this.bdgDataColIdx-1]);
-				for(int i= screenFrom; i <= screenTo; i++){
-					screenWigLocInfoList.get(i).increment(value);
+				this.setScreenScores(screenScores);
+				return;
+			}
+		}
+		this.setScreenScores(this.bedGraphMatrix.getScores(this.bdgDataColIdx, mapping));
+	}
+
+	/** Min and max of the scores of all the data columns of this bedGraph in the current window, so
+	 * that the y-axis stays the same when switching data column. Scores are taken from the same
+	 * source as bedGraphToScores(). Null if neither records nor cache are available for this window.
+	 * */
+	protected Float[] getYRangeOfDataColumns(){
+		if( ! this.getTrackFormat().equals(TrackFormat.BEDGRAPH)){
+			return null;
+		}
+		String chrom= this.getGc().getChrom();
+		int from= this.getGc().getFrom();
+		int to= this.getGc().getTo();
+		ScreenMapping mapping= this.getGc().getScreenMapping();
+		List<Float> yall= new ArrayList<Float>();
+		if(this.bedGraphMatrix != null && this.bedGraphMatrix.isWindow(this.getWorkFilename(), chrom, from, to, mapping)){
+			for(int col= 4; col <= this.bedGraphMatrix.getColumnCount(); col++){
+				yall.addAll(this.bedGraphMatrix.getScores(col, mapping));
+			}
+		} else if(this.bedGraphPyramid != null && this.bedGraphPyramid.isReady()){
+			try{
+				for(int col= 4; col < 4 + this.bedGraphPyramid.getDataColumnCount(chrom); col++){
+					yall.addAll(this.bedGraphPyramid.getScores(chrom, from, to, col, mapping));
 				}
+			} catch(IOException e){
+				return null;
 			}
-		} catch (IOException e) {			
-			e.printStackTrace();
-			System.err.println("Could not open tabix file: " + fileName);
-			System.err.println("Is the file sorted and indexed? After sorting by position (sort e.g. -k1,1 -k2,2n), compress with bgzip and index with e.g.:");
-			System.err.println("\nbgzip " + fileName);
-			System.err.println("tabix -p bed " + fileName + "\n");
-		} finally {
-			tabixReader.close();
+		} else {
+			return null;
 		}
+		return Utils.range(yall);
+	}
 
-		List<Float> screenScores= new ArrayList<Float>();
-		for(ScreenWiggleLocusInfo x : screenWigLocInfoList){
-			screenScores.add((float)x.getMeanScore());
+	/** Binary cache of all the data columns of the bedGraph file, built in background on first
+	 * use. Null if the cache is not enabled or the file is not local.
+	 * */
+	private BedGraphPyramid getBedGraphPyramid(){
+		if(Config.get(ConfigKey.bedgraph_cache) == null || ! Utils.asBoolean(Config.get(ConfigKey.bedgraph_cache)) 
+				|| ! new File(this.getFilename()).isFile()){
+			return null;
 		}
-		this.setScreenScores(screenScores);
-		return;
+		if(this.bedGraphPyramid == null){
+			File cacheDir= new File(Utils.tildeToHomeDir(Config.get(ConfigKey.cache_dir)));
+			this.bedGraphPyramid= new BedGraphPyramid(this.getWorkFilename(), this.getFilename(), cacheDir);
+			this.bedGraphPyramid.buildInBackground();
+		}
+		return this.bedGraphPyramid;
 	}
 	
 	private List<Float> normalizeToRpm(List<Float> screenScores){
@@ -378,12 +563,8 @@ public class TrackWiggles extends Track {
 	
 	private String getAttributesFromTDF(String attr){
 		
-		String path= this.getWorkFilename();
-		
 		try{
-			ResourceLocator resourceLocator= new ResourceLocator(path);
-			TDFReader reader= new TDFReader(resourceLocator);
-			TDFGroup rootGroup= reader.getGroup("/");
+			TDFGroup rootGroup= this.getTdfReader().getGroup("/");
 			return rootGroup.getAttribute(attr);
 		} catch(Exception e){
 			return null;
@@ -395,9 +576,7 @@ public class TrackWiggles extends Track {
 		
 		if(this.getTrackFormat().equals(TrackFormat.TDF)){
 
-			ResourceLocator resourceLocator= new ResourceLocator(this.getWorkFilename());
-			TDFReader reader= new TDFReader(resourceLocator);
-			List<String> chroms= new ArrayList<String>(reader.getChromosomeNames());
+			List<String> chroms= new ArrayList<String>(this.getTdfReader().getChromosomeNames());
 			if(chroms.get(0).equals("All")){
 				chroms.remove(0);
 			}
@@ -405,7 +584,18 @@ public class TrackWiggles extends Track {
 			// chroms.addAll();
 		}
 		if(this.getTrackFormat().equals(TrackFormat.BEDGRAPH)){
-			TabixIndex tbi= (TabixIndex) IndexFactory.loadIndex(this.getWorkFilename() + FileExtensions.TABIX_INDEX);
+			File index= MakeTabixIndex.getIndexFile(new File(this.getWorkFilename()));
+			if(index.getName().endsWith(FileExtensions.CSI)){
+				try {
+					TabixCsiReader tabixReader= new TabixCsiReader(this.getWorkFilename());
+					List<String> chroms= new ArrayList<String>(tabixReader.getChromosomes());
+					tabixReader.close();
+					return chroms;
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			TabixIndex tbi= (TabixIndex) IndexFactory.loadIndex(index.getAbsolutePath());
 			return tbi.getSequenceNames();
 		}
 		if(this.getTrackFormat().equals(TrackFormat.BIGWIG)){
@@ -450,11 +640,21 @@ public class TrackWiggles extends Track {
 	
 	@Override
 	public void reload() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
+		this.closeTdfReader();
+		this.bedGraphMatrix= null;
+		if(this.bedGraphPyramid != null){
+			this.bedGraphPyramid.close();
+			this.bedGraphPyramid= null;
+		}
 		if( ! Files.isSameFile(Paths.get(this.getWorkFilename()), Paths.get(this.getFilename()))){
-			TrackWiggles tr= new TrackWiggles(this.getFilename(), this.getGc(), this.getBdgDataColIdx());
+			// Rebuild only the sorted copy: A full track would open a cache on the copy we move away
+			String tmp= this.tabixBedgraphToTmpFile(this.getFilename());
 			String fname= this.getWorkFilename();
-			Files.move(Paths.get(tr.getWorkFilename()), Paths.get(fname), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
-			Files.move(Paths.get(tr.getWorkFilename() + FileExtensions.TABIX_INDEX), Paths.get(fname + FileExtensions.TABIX_INDEX), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			Files.move(Paths.get(tmp), Paths.get(fname), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			File index= MakeTabixIndex.getIndexFile(new File(tmp));
+			String ext= index.getName().endsWith(FileExtensions.CSI) ? FileExtensions.CSI : FileExtensions.TABIX_INDEX;
+			MakeTabixIndex.getIndexFile(new File(fname)).delete();
+			Files.move(index.toPath(), Paths.get(fname + ext), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
 		}
 		this.update();
 	}
@@ -1,8 +1,12 @@
 package coloring;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.SQLException;
 
 import org.junit.Test;
@@ -52,6 +56,24 @@ public class ConfigTest {
 		new Config("metal");
 	}
 
+	@Test
+	public void canUseDefaultForMissingKeys() throws IOException, InvalidConfigException {
+		// As a configuration file written before cache_dir and coverage_cache were added
+		File conf= File.createTempFile("asciigenome.", ".conf");
+		conf.deleteOnExit();
+		StringBuilder sb= new StringBuilder();
+		for(String line : Files.readAllLines(new File("src/main/resources/config/white_on_black.conf").toPath(), StandardCharsets.UTF_8)){
+			if( ! line.startsWith("cache_dir") && ! line.startsWith("coverage_cache")){
+				sb.append(line).append("\n");
+			}
+		}
+		Files.write(conf.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+		new Config(conf.getAbsolutePath());
+		assertEquals("~/.asciigenome_cache", Config.get(ConfigKey.cache_dir));
+		assertEquals("false", Config.get(ConfigKey.coverage_cache));
+		new Config(null);
+	}
+
 	@Test
 	public void failsOnInvalidSource() throws IOException, InvalidConfigException {
 		boolean pass= false;
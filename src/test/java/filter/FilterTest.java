@@ -1,5 +1,6 @@
 package filter;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -12,7 +13,9 @@ import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.filter.AggregateFilter;
 import htsjdk.samtools.filter.AlignedFilter;
+import htsjdk.samtools.filter.MappingQualityFilter;
 import htsjdk.samtools.filter.SamRecordFilter;
 import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
@@ -133,6 +136,33 @@ public class FilterTest {
 		assertTrue(new ReadFromTopStrandFilter(true).filterOut(rec));
 	}
 	
+	@Test
+	public void compiledFlagFilterSameAsFilterList(){
+		int[][] fF= {{0, 0}, {0, 4}, {1, 0}, {3, 1024}, {131, 72}, {4096, 0}, {0, 4096}, {64 + 4096, 16}, {0, 3844}};
+		for(int[] x : fF){
+			for(int mapq : new int[] {0, 10}){
+				List<SamRecordFilter> filters= FlagToFilter.flagToFilterList(x[0], x[1]);
+				filters.add(new MappingQualityFilter(mapq));
+				AggregateFilter expected= new AggregateFilter(filters);
+				SamFlagFilter compiled= new SamFlagFilter(x[0], x[1], mapq);
+				for(int flag= 0; flag < 4096; flag++){
+					for(int q : new int[] {0, 9, 10, 60}){
+						rec.setFlags(flag);
+						rec.setMappingQuality(q);
+						assertEquals(expected.filterOut(rec), compiled.filterOut(rec));
+						assertEquals(expected.filterOut(rec), ! compiled.pass(flag, q));
+					}
+				}
+			}
+		}
+		// Combining filters
+		SamFlagFilter both= new SamFlagFilter(1, 0, 10).and(new SamFlagFilter(0, 16, 20));
+		assertTrue(both.pass(1, 20));
+		assertFalse(both.pass(1, 10));
+		assertFalse(both.pass(17, 20));
+		assertFalse(both.pass(0, 20));
+	}
+	
 	// @Test
 	public void canFilterFromIntFlag(){
 		
@@ -0,0 +1,68 @@
+package samTextViewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import exceptions.InvalidGenomicCoordsException;
+
+public class ScreenMappingTest {
+
+	@Test
+	public void canMapPositionsAsClosestValue() throws InvalidGenomicCoordsException, IOException{
+		for(String region : new String[] {"chr1:1-50", "chr1:101-180", "chr1:1001-1234", "chr1:1-1000000", "chr1:6712-750000"}){
+			GenomicCoords gc= new GenomicCoords(region, 80, null, null);
+			List<Double> mapping= gc.getMapping();
+			ScreenMapping sm= gc.getScreenMapping();
+			assertEquals(mapping.size(), sm.size());
+			int from= gc.getFrom() - 100;
+			int to= gc.getTo() + 100;
+			for(int pos= from; pos <= to; pos += Math.max(1, (to - from) / 5000)){
+				assertEquals(Utils.getIndexOfclosestValue(pos, mapping), sm.getColumn(pos));
+				assertEquals(Utils.getIndexOfclosestValue(pos + 0.5, mapping), sm.getColumn(pos + 0.5));
+			}
+		}
+	}
+
+	@Test
+	public void canCountPositionsInColumns() throws InvalidGenomicCoordsException, IOException{
+		GenomicCoords gc= new GenomicCoords("chr1:1001-1234", 80, null, null);
+		ScreenMapping sm= gc.getScreenMapping();
+		int[][] intervals= { {990, 1010}, {1001, 1234}, {1100, 1103}, {1200, 1300}, {1117, 1117} };
+		for(int[] x : intervals){
+			int[] expected= new int[sm.size()];
+			for(int pos= x[0]; pos <= x[1]; pos++){
+				expected[Utils.getIndexOfclosestValue(pos, gc.getMapping())]++;
+			}
+			for(int i= 0; i < sm.size(); i++){
+				assertEquals(expected[i], sm.countPositionsInColumn(i, x[0], x[1]));
+			}
+		}
+		assertNull(sm.getColumnSpan(1, 1000));
+		assertNull(sm.getColumnSpan(1235, 2000));
+		assertEquals(0, sm.getColumnSpan(1, 1001)[0]);
+		assertEquals(sm.size() - 1, sm.getColumnSpan(1, 5000)[1]);
+	}
+
+	@Test
+	public void canGetColumnStart() throws InvalidGenomicCoordsException, IOException{
+		for(String region : new String[] {"chr1:1-50", "chr1:1001-1234", "chr1:6712-750000"}){
+			GenomicCoords gc= new GenomicCoords(region, 80, null, null);
+			ScreenMapping sm= gc.getScreenMapping();
+			// Columns span the window
+			assertEquals((int)gc.getFrom(), sm.getColumnStart(0));
+			assertEquals(gc.getTo() + 1, sm.getColumnStart(sm.size()));
+			for(int i= 0; i < sm.size(); i++){
+				int start= sm.getColumnStart(i);
+				int end= sm.getColumnStart(i + 1) - 1;
+				assertEquals(i, sm.getColumn(start));
+				assertEquals(i, sm.getColumn(end));
+				assertEquals(end - start + 1, sm.countPositionsInColumn(i, gc.getFrom(), gc.getTo()));
+			}
+		}
+	}
+}
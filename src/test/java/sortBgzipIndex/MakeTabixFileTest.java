@@ -3,16 +3,32 @@ package sortBgzipIndex;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.io.Files;
 
+import coloring.Config;
+import coloring.ConfigKey;
+
+import exceptions.InvalidColourException;
+import exceptions.InvalidConfigException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
+import htsjdk.samtools.CSIIndex;
+import htsjdk.samtools.util.BlockCompressedInputStream;
 import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.tribble.index.tabix.TabixFormat;
 import htsjdk.tribble.readers.TabixReader;
@@ -261,6 +277,77 @@ public class MakeTabixFileTest {
 		
 	}
 	
+	@Test
+	public void canSortLinesInMemoryAndWithRunsOnDisk() throws IOException{
+		String infile= "test_data/refSeq.hg19.bed.gz";
+		LineSorter inMemory= new LineSorter(1, 2, true);
+		inMemory.sort(infile, new File(System.getProperty("java.io.tmpdir")));
+		List<String> expected= new ArrayList<String>();
+		while(inMemory.hasNext()){
+			expected.add(inMemory.next());
+		}
+		inMemory.close();
+		assertTrue(expected.size() > 1000);
+		for(int i= 1; i < expected.size(); i++){
+			String[] prev= expected.get(i-1).split("\t");
+			String[] curr= expected.get(i).split("\t");
+			int cmp= prev[0].compareTo(curr[0]);
+			assertTrue(cmp < 0 || (cmp == 0 && Integer.parseInt(prev[1]) <= Integer.parseInt(curr[1])));
+		}
+
+		// Small buffers: Many runs spilled to disk and merged, same output
+		LineSorter onDisk= new LineSorter(1, 2, true);
+		onDisk.setBufferChars(10000);
+		onDisk.sort(infile, new File(System.getProperty("java.io.tmpdir")));
+		List<String> observed= new ArrayList<String>();
+		while(onDisk.hasNext()){
+			observed.add(onDisk.next());
+		}
+		onDisk.close();
+		assertEquals(expected, observed);
+	}
+
+	@Test
+	public void canCompressBlocksInParallel() throws IOException{
+		
+		File outfile= File.createTempFile("asciigenome.", ".txt.gz");
+		outfile.deleteOnExit();
+		
+		// Enough lines to fill many blocks
+		ParallelBlockCompressedOutputStream writer= new ParallelBlockCompressedOutputStream(outfile);
+		List<String> lines= new ArrayList<String>();
+		List<Long> pointers= new ArrayList<Long>();
+		for(int i= 0; i < 200000; i++){
+			String line= "chr1\t" + i + "\t" + (i * 7 % 1000) + "\tfeature_" + i;
+			lines.add(line);
+			pointers.add(writer.getBlockPointer());
+			writer.write((line + "\n").getBytes());
+		}
+		writer.flush();
+		long eof= writer.getFilePointer();
+		assertTrue(writer.getDeflaterCount() > 0);
+		writer.close();
+		// Deflaters are ended with the stream
+		assertEquals(0, writer.getDeflaterCount());
+		
+		BlockCompressedInputStream in= new BlockCompressedInputStream(outfile);
+		BufferedReader br= new BufferedReader(new InputStreamReader(in));
+		for(String line : lines){
+			assertEquals(line, br.readLine());
+		}
+		assertTrue(br.readLine() == null);
+		
+		// Virtual file pointers point to the start of the lines
+		for(int i= 0; i < lines.size(); i += 997){
+			in.seek(writer.toVirtualFilePointer(pointers.get(i)));
+			assertEquals(lines.get(i), in.readLine());
+		}
+		in.seek(eof);
+		assertEquals(-1, in.read());
+		br.close();
+		assertEquals(BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK, BlockCompressedInputStream.checkTermination(outfile));
+	}
+
 	@Test
 	public void canCompressAndIndexVCF() throws ClassNotFoundException, IOException, InvalidRecordException, SQLException{
 
@@ -320,5 +407,188 @@ public class MakeTabixFileTest {
 		assertTrue(expectedTbi.exists());
 		assertTrue(expectedTbi.length() > 50);
 	}
-	
+
+	/** Lines overlapping the 0-based region by scanning all the lines */
+	private static List<String> bruteForceQuery(List<String> bedLines, String chrom, int beg, int end){
+		List<String> hits= new ArrayList<String>();
+		for(String line : bedLines){
+			String[] x= line.split("\t");
+			if(x[0].equals(chrom) && Integer.parseInt(x[1]) < end && Integer.parseInt(x[2]) > beg){
+				hits.add(line);
+			}
+		}
+		return hits;
+	}
+
+	private static List<String> readQuery(TabixCsiReader reader, String chrom, int beg, int end) throws IOException{
+		List<String> hits= new ArrayList<String>();
+		Iterator x= reader.query(chrom, beg, end);
+		String line;
+		while((line= x.next()) != null){
+			hits.add(line);
+		}
+		return hits;
+	}
+
+	@Test
+	public void canIndexLongChromosomesWithCsi() throws ClassNotFoundException, IOException, InvalidRecordException, SQLException{
+
+		// Features beyond 2^29 cannot go in a tbi index
+		File infile= File.createTempFile("asciigenome.", ".bed");
+		infile.deleteOnExit();
+		Random rnd= new Random(1);
+		List<String> lines= new ArrayList<String>();
+		for(String chrom : new String[] {"chrA", "chrB"}){
+			for(int i= 0; i < 20000; i++){
+				int start= rnd.nextInt(1500000000);
+				int len= i % 100 == 0 ? rnd.nextInt(5000000) : rnd.nextInt(2000) + 1;
+				lines.add(chrom + "\t" + start + "\t" + (start + len) + "\tfeature_" + i);
+			}
+		}
+		Files.write(Joiner.on("\n").join(lines) + "\n", infile, Charsets.UTF_8);
+		
+		File outfile= new File(infile.getAbsolutePath() + ".gz");
+		outfile.deleteOnExit();
+		File csi= new File(outfile.getAbsolutePath() + ".csi");
+		csi.deleteOnExit();
+		new File(outfile.getAbsolutePath() + TabixUtils.STANDARD_INDEX_EXTENSION).deleteOnExit();
+
+		new MakeTabixIndex(infile.getAbsolutePath(), outfile, TabixFormat.BED);
+		assertTrue(csi.isFile());
+		assertTrue( ! new File(outfile.getAbsolutePath() + TabixUtils.STANDARD_INDEX_EXTENSION).exists());
+		assertEquals(csi, MakeTabixIndex.getIndexFile(outfile));
+
+		// Index is readable by htsjdk
+		CSIIndex index= new CSIIndex(csi, false, null);
+		assertEquals(14, index.getMinShift());
+		assertEquals(2, index.getNumberOfReferences());
+		assertEquals(20000, index.getMetaData(0).getAlignedRecordCount());
+
+		// Sort as in file to compare queries
+		List<String> sorted= new ArrayList<String>();
+		BufferedReader br= new BufferedReader(new InputStreamReader(new BlockCompressedInputStream(outfile)));
+		String line;
+		while((line= br.readLine()) != null){
+			sorted.add(line);
+		}
+		br.close();
+		
+		TabixCsiReader reader= new TabixCsiReader(outfile.getAbsolutePath());
+		assertEquals(2, reader.getChromosomes().size());
+		for(int i= 0; i < 200; i++){
+			String chrom= i % 2 == 0 ? "chrA" : "chrB";
+			int beg= rnd.nextInt(1510000000);
+			int end= beg + (i % 10 == 0 ? rnd.nextInt(50000000) : rnd.nextInt(100000)) + 1;
+			assertEquals(bruteForceQuery(sorted, chrom, beg, end), readQuery(reader, chrom, beg, end));
+		}
+		assertEquals(null, reader.query("chrC", 1, 100).next());
+		reader.close();
+	}
+
+	@Test
+	public void canQueryCsiAsTabix() throws ClassNotFoundException, IOException, InvalidRecordException, SQLException, InvalidConfigException, InvalidColourException{
+
+		new Config(null);
+		String infile= "test_data/refSeq.hg19.bed.gz";
+		File tbiOut= File.createTempFile("asciigenome.", ".bed.gz");
+		tbiOut.deleteOnExit();
+		new File(tbiOut.getAbsolutePath() + TabixUtils.STANDARD_INDEX_EXTENSION).deleteOnExit();
+		new MakeTabixIndex(infile, tbiOut, TabixFormat.BED);
+
+		File csiOut= File.createTempFile("asciigenome.", ".bed.gz");
+		csiOut.deleteOnExit();
+		new File(csiOut.getAbsolutePath() + ".csi").deleteOnExit();
+		Config.set(ConfigKey.csi_index, "true");
+		try{
+			new MakeTabixIndex(infile, csiOut, TabixFormat.BED);
+		} finally {
+			Config.set(ConfigKey.csi_index, "false");
+		}
+		assertTrue(new File(csiOut.getAbsolutePath() + ".csi").isFile());
+		
+		TabixCsiReader tbx= new TabixCsiReader(tbiOut.getAbsolutePath());
+		TabixCsiReader csi= new TabixCsiReader(csiOut.getAbsolutePath());
+		assertEquals(tbx.getChromosomes(), csi.getChromosomes());
+		Random rnd= new Random(1);
+		for(int i= 0; i < 500; i++){
+			String chrom= "chr" + (rnd.nextInt(22) + 1);
+			int beg= rnd.nextInt(250000000);
+			int end= beg + rnd.nextInt(i % 10 == 0 ? 5000000 : 50000) + 1;
+			assertEquals(readQuery(tbx, chrom, beg, end), readQuery(csi, chrom, beg, end));
+		}
+		tbx.close();
+		csi.close();
+	}
+
+	@Test
+	public void canSkipFeaturesThatCannotBeIndexed() throws ClassNotFoundException, IOException, InvalidRecordException, SQLException, InvalidConfigException, InvalidColourException{
+
+		new Config(null);
+		File infile= File.createTempFile("asciigenome.", ".bed");
+		infile.deleteOnExit();
+		// With depth 1 CSI addresses positions up to 2^17 only 
+		Files.write("chr1\t10\t20\n" + "chr1\t200000\t200010\tbeyond\n" + "chr1\t200020\t200030\tbeyond\n" + "chr2\t10\t20\n", infile, Charsets.UTF_8);
+		File outfile= new File(infile.getAbsolutePath() + ".gz");
+		outfile.deleteOnExit();
+		new File(outfile.getAbsolutePath() + ".csi").deleteOnExit();
+
+		PrintStream stderr= System.err;
+		ByteArrayOutputStream baos= new ByteArrayOutputStream();
+		System.setErr(new PrintStream(baos));
+		Config.set(ConfigKey.csi_index, "true");
+		Config.set(ConfigKey.csi_depth, "1");
+		try{
+			new MakeTabixIndex(infile.getAbsolutePath(), outfile, TabixFormat.BED);
+		} finally {
+			System.setErr(stderr);
+			Config.set(ConfigKey.csi_index, "false");
+			Config.set(ConfigKey.csi_depth, "0");
+		}
+		// Each failing feature is reported with its own line
+		String err= baos.toString();
+		assertTrue(err.contains("Skipping:\nchr1\t200000\t200010\tbeyond"));
+		assertTrue(err.contains("Skipping:\nchr1\t200020\t200030\tbeyond"));
+		assertTrue( ! err.contains("Skipping:\nchr2"));
+
+		TabixCsiReader reader= new TabixCsiReader(outfile.getAbsolutePath());
+		assertEquals("chr1\t10\t20", reader.query("chr1", 1, 100).next());
+		assertEquals("chr2\t10\t20", reader.query("chr2", 1, 100).next());
+		reader.close();
+	}
+
+	@Test
+	public void canSortInputNotContiguousForCsi() throws ClassNotFoundException, IOException, InvalidRecordException, SQLException, InvalidConfigException, InvalidColourException{
+
+		new Config(null);
+		File infile= File.createTempFile("asciigenome.", ".bed");
+		infile.deleteOnExit();
+		Files.write("chr1\t10\t20\n" + "chr2\t10\t20\n" + "chr1\t30\t40\n", infile, Charsets.UTF_8);
+		File outfile= new File(infile.getAbsolutePath() + ".gz");
+		outfile.deleteOnExit();
+		new File(outfile.getAbsolutePath() + ".csi").deleteOnExit();
+
+		// Sequences not contiguous are out of order for the index creator...
+		CsiIndexCreator csi= CsiIndexCreator.forTabix(TabixFormat.BED);
+		PositionParser parser= new PositionParser(TabixFormat.BED);
+		csi.addFeature(parser.parse("chr1\t10\t20"), 0);
+		csi.addFeature(parser.parse("chr2\t10\t20"), 1);
+		boolean pass= false;
+		try{
+			csi.addFeature(parser.parse("chr1\t30\t40"), 2);
+		} catch(RecordsOutOfOrderException e){
+			pass= true;
+		}
+		assertTrue(pass);
+
+		// ...so the input is sorted before indexing
+		Config.set(ConfigKey.csi_index, "true");
+		try{
+			new MakeTabixIndex(infile.getAbsolutePath(), outfile, TabixFormat.BED);
+		} finally {
+			Config.set(ConfigKey.csi_index, "false");
+		}
+		TabixCsiReader reader= new TabixCsiReader(outfile.getAbsolutePath());
+		assertEquals(2, readQuery(reader, "chr1", 1, 100).size());
+		reader.close();
+	}
 }
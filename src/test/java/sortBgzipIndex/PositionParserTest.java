@@ -0,0 +1,90 @@
+package sortBgzipIndex;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import exceptions.InvalidRecordException;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+import samTextViewer.Utils;
+import utils.BedLineCodec;
+import utils.GtfLine;
+
+public class PositionParserTest {
+
+	private static void assertSamePosition(Feature expected, Feature observed){
+		assertEquals(expected.getContig(), observed.getContig());
+		assertEquals(expected.getStart(), observed.getStart());
+		assertEquals(expected.getEnd(), observed.getEnd());
+	}
+	
+	@Test
+	public void canParseBedPositions() throws InvalidRecordException{
+		PositionParser parser= new PositionParser(TabixFormat.BED);
+		Feature x= parser.parse("chr1\t10\t20\tname");
+		assertEquals("chr1", x.getContig());
+		assertEquals(11, x.getStart());
+		assertEquals(20, x.getEnd());
+		
+		x= parser.parse("chr1\t10");
+		assertEquals(11, x.getStart());
+		assertEquals(11, x.getEnd());
+
+		BedLineCodec codec= new BedLineCodec();
+		String line= "chrM\t0\t16571\tfoo\t0\t+";
+		assertSamePosition(codec.decode(line), parser.parse(line));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidPositionThrowsException() throws InvalidRecordException{
+		new PositionParser(TabixFormat.BED).parse("chr1\tfoo\t20");
+	}
+	
+	@Test
+	public void canParseGtfPositions() throws InvalidRecordException, IOException{
+		PositionParser parser= new PositionParser(TabixFormat.GFF);
+		BufferedReader br= Utils.reader("test_data/hg19_genes_head.gtf");
+		String line;
+		while((line= br.readLine()) != null){
+			if(line.startsWith("#")){
+				continue;
+			}
+			assertSamePosition(new GtfLine(line.split("\t")), parser.parse(line));
+		}
+		br.close();
+	}
+	
+	@Test
+	public void canParseVcfPositionsAsVariantContext() throws InvalidRecordException, IOException{
+		// This file has structural variants with END in INFO
+		String vcf= "test_data/ALL.wgs.mergedSV.v8.20130502.svs.genotypes.vcf";
+		VCFFileReader vcfr= new VCFFileReader(new java.io.File(vcf), false);
+		VCFHeader header= vcfr.getFileHeader();
+		vcfr.close();
+		VCFCodec codec= new VCFCodec();
+		codec.setVCFHeader(header, Utils.getVCFHeaderVersion(header));
+		
+		PositionParser parser= new PositionParser(TabixFormat.VCF);
+		BufferedReader br= Utils.reader(vcf);
+		String line;
+		int n= 0;
+		while((line= br.readLine()) != null){
+			if(line.startsWith("#")){
+				continue;
+			}
+			VariantContext ctx= codec.decode(line);
+			assertSamePosition(ctx, parser.parse(line));
+			n++;
+		}
+		br.close();
+		assertEquals(931, n);
+	}
+}
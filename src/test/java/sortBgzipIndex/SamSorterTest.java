@@ -0,0 +1,171 @@
+package sortBgzipIndex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordCoordinateComparator;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+
+public class SamSorterTest {
+
+	private static List<SAMRecord> readAll(File sam) throws IOException{
+		SamReader reader= SamReaderFactory.make().validationStringency(ValidationStringency.SILENT).open(sam);
+		List<SAMRecord> recs= new ArrayList<SAMRecord>();
+		for(SAMRecord rec : reader){
+			recs.add(rec);
+		}
+		reader.close();
+		return recs;
+	}
+
+	private static List<String> toStrings(List<SAMRecord> recs){
+		List<String> x= new ArrayList<String>();
+		for(SAMRecord rec : recs){
+			x.add(rec.getSAMString());
+		}
+		return x;
+	}
+
+	@Test
+	public void canSortInMemoryAndWithRunsOnDisk() throws IOException{
+
+		File unsorted= new File("test_data/ds051.noindex.sam");
+		List<SAMRecord> expected= readAll(unsorted);
+		Collections.sort(expected, new SAMRecordCoordinateComparator());
+
+		for(int bufferSize : new int[] {1000000, 1, 7}){
+			File out= File.createTempFile("asciigenome.", ".bam");
+			out.deleteOnExit();
+			File bai= new File(out.getAbsolutePath().replaceAll("\\.bam$", ".bai"));
+			bai.deleteOnExit();
+
+			SamSorter sorter= new SamSorter(new File(System.getProperty("java.io.tmpdir")));
+			sorter.setBufferSize(bufferSize);
+			SamReader reader= SamReaderFactory.make().validationStringency(ValidationStringency.SILENT).open(unsorted);
+			sorter.sortAndIndex(reader, out);
+			reader.close();
+
+			assertTrue(bai.isFile());
+			assertEquals(toStrings(expected), toStrings(readAll(out)));
+
+			// Index works
+			reader= SamReaderFactory.make().open(out);
+			assertTrue(reader.hasIndex());
+			SAMRecord first= expected.get(0);
+			assertTrue(reader.query(first.getContig(), first.getStart(), first.getStart(), false).hasNext());
+			reader.close();
+		}
+	}
+
+	@Test
+	public void canMergeRunsInSeveralPasses() throws IOException{
+
+		File unsorted= new File("test_data/ds051.noindex.sam");
+		List<SAMRecord> expected= readAll(unsorted);
+		Collections.sort(expected, new SAMRecordCoordinateComparator());
+
+		File tmpDir= java.nio.file.Files.createTempDirectory("asciigenome.test.").toFile();
+		tmpDir.deleteOnExit();
+		for(int maxFanIn : new int[] {2, 3}){
+			File out= File.createTempFile("asciigenome.", ".bam");
+			out.deleteOnExit();
+			SamSorter.getBaiFile(out).deleteOnExit();
+
+			// Many runs merged a few at a time
+			SamSorter sorter= new SamSorter(tmpDir);
+			sorter.setBufferSize(7);
+			sorter.setMaxFanIn(maxFanIn);
+			SamReader reader= SamReaderFactory.make().validationStringency(ValidationStringency.SILENT).open(unsorted);
+			sorter.sortAndIndex(reader, out);
+			reader.close();
+
+			assertEquals(toStrings(expected), toStrings(readAll(out)));
+			// Runs, including intermediate ones, are deleted
+			assertEquals(0, tmpDir.listFiles().length);
+		}
+	}
+
+	@Test
+	public void canIndexLongChromosomesWithCsi() throws IOException{
+
+		// Positions beyond 2^29 cannot go in a bai index
+		File unsorted= File.createTempFile("asciigenome.", ".sam");
+		unsorted.deleteOnExit();
+		Random rnd= new Random(1);
+		List<String> sam= new ArrayList<String>();
+		sam.add("@SQ\tSN:chrA\tLN:1000000000");
+		sam.add("@SQ\tSN:chrB\tLN:1000");
+		for(int i= 0; i < 5000; i++){
+			int pos= rnd.nextInt(999999000) + 1;
+			sam.add("r" + i + "\t0\tchrA\t" + pos + "\t60\t10M\t*\t0\t0\tACTGACTGAC\t*");
+		}
+		sam.add("placed\t4\tchrA\t700000000\t0\t*\t*\t0\t0\tACTGACTGAC\t*");
+		sam.add("b1\t0\tchrB\t10\t60\t10M\t*\t0\t0\tACTGACTGAC\t*");
+		sam.add("unmapped\t4\t*\t0\t0\t*\t*\t0\t0\tACTGACTGAC\t*");
+		Files.write(Joiner.on("\n").join(sam) + "\n", unsorted, Charsets.UTF_8);
+
+		File out= File.createTempFile("asciigenome.", ".bam");
+		out.deleteOnExit();
+		File csi= new File(out.getAbsolutePath().replaceAll("\\.bam$", ".csi"));
+		csi.deleteOnExit();
+		SamReader reader= SamReaderFactory.make().validationStringency(ValidationStringency.SILENT).open(unsorted);
+		new SamSorter(new File(System.getProperty("java.io.tmpdir"))).sortAndIndex(reader, out);
+		reader.close();
+		
+		assertTrue(csi.isFile());
+		assertEquals(csi, SamSorter.getIndexFile(out));
+		assertTrue( ! SamSorter.getBaiFile(out).exists());
+		
+		List<SAMRecord> expected= readAll(unsorted);
+		List<SAMRecord> sorted= new ArrayList<SAMRecord>(expected);
+		Collections.sort(sorted, new SAMRecordCoordinateComparator());
+		assertEquals(toStrings(sorted), toStrings(readAll(out)));
+
+		reader= SamReaderFactory.make().open(out);
+		assertTrue(reader.hasIndex());
+		assertEquals(5001, reader.indexing().getIndex().getMetaData(0).getAlignedRecordCount() + reader.indexing().getIndex().getMetaData(0).getUnalignedRecordCount());
+		for(int i= 0; i < 100; i++){
+			int start= rnd.nextInt(999000000) + 1;
+			int end= start + rnd.nextInt(1000000);
+			int n= 0;
+			for(SAMRecord rec : expected){
+				if(rec.getContig() != null && rec.getContig().equals("chrA") && ! rec.getReadUnmappedFlag() && rec.getStart() <= end && rec.getEnd() >= start){
+					n++;
+				}
+			}
+			SAMRecordIterator iter= reader.query("chrA", start, end, false);
+			int observed= 0;
+			while(iter.hasNext()){
+				if( ! iter.next().getReadUnmappedFlag()){
+					observed++;
+				}
+			}
+			iter.close();
+			assertEquals(n, observed);
+		}
+		SAMRecordIterator iter= reader.query("chrA", 700000000, 700000000, false);
+		assertEquals("placed", iter.next().getReadName());
+		iter.close();
+		iter= reader.query("chrB", 1, 1000, false);
+		assertEquals("b1", iter.next().getReadName());
+		iter.close();
+		reader.close();
+	}
+}
@@ -3,10 +3,13 @@ package tracks;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
 
 import org.junit.Before;
@@ -15,6 +18,7 @@ import org.junit.Test;
 import com.google.common.base.Splitter;
 
 import coloring.Config;
+import coloring.ConfigKey;
 import coloring.Xterm256;
 import exceptions.InvalidColourException;
 import exceptions.InvalidCommandLineException;
@@ -22,6 +26,7 @@ import exceptions.InvalidConfigException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
 import samTextViewer.GenomicCoords;
+import sortBgzipIndex.TabixCsiReader;
 
 public class TrackIntervalFeatureTest {
 	
@@ -474,6 +479,55 @@ public class TrackIntervalFeatureTest {
 		assertTrue(tif.getIntervalFeatureList().size() == 11);
 	}
 	
+	@Test
+	public void canCacheFeaturesInTiles() throws IOException, InvalidGenomicCoordsException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException{
+		
+		GenomicCoords gc= new GenomicCoords("chr1:1-100000", 80, null, null);
+		Config.set(ConfigKey.feature_cache_mb, "0");
+		TrackIntervalFeature noCache= new TrackIntervalFeature("test_data/hg19_genes_head.gtf.gz", gc);
+		assertTrue(noCache.getFeatureCache() == null);
+		
+		Config.set(ConfigKey.feature_cache_mb, "64");
+		TrackIntervalFeature tif= new TrackIntervalFeature("test_data/hg19_genes_head.gtf.gz", gc);
+		
+		// Pan across tile boundaries and back, then zoom out 
+		int[][] windows= { {1, 120000}, {60001, 180000}, {150001, 270000}, {1, 120000}, {1, 1500000}, {899950, 900050} };
+		for(int[] w : windows){
+			List<IntervalFeature> expected= noCache.getFeaturesInInterval("chr1", w[0], w[1]);
+			List<IntervalFeature> observed= tif.getFeaturesInInterval("chr1", w[0], w[1]);
+			assertEquals(expected.size(), observed.size());
+			for(int i= 0; i < expected.size(); i++){
+				assertEquals(expected.get(i).getRaw(), observed.get(i).getRaw());
+			}
+		}
+		assertTrue(tif.getFeatureCache().getHits() > 0);
+		
+		// Filters are applied to cached features
+		tif.setShowHideRegex(Pattern.compile(".*"), Pattern.compile("exon"));
+		for(IntervalFeature x : tif.getFeaturesInInterval("chr1", 1, 1500000)){
+			assertTrue( ! x.getRaw().contains("exon"));
+		}
+		noCache.close();
+		tif.close();
+	}
+
+	@Test
+	public void canPrefetchWithOneReader() throws IOException, InvalidGenomicCoordsException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException, InterruptedException, ExecutionException{
+		Config.set(ConfigKey.feature_cache_mb, "64");
+		TrackIntervalFeature tif= new TrackIntervalFeature("test_data/hg19_genes_head.gtf.gz", new GenomicCoords("chr1:1-100000", 80, null, null));
+		TabixCsiReader reader= tif.awaitPrefetchTabix();
+		assertTrue(reader != null);
+
+		// The reader is kept across moves
+		tif.setGc(new GenomicCoords("chr1:500001-600000", 80, null, null));
+		tif.setGc(new GenomicCoords("chr1:1000001-1100000", 80, null, null));
+		assertTrue(reader == tif.awaitPrefetchTabix());
+
+		// And closed with the track
+		tif.close();
+		assertTrue(tif.awaitPrefetchTabix() == null);
+	}
+
 	@Test
 	public void canShowAndHide_getFeaturesInInterval() throws IOException, InvalidGenomicCoordsException, ClassNotFoundException, InvalidRecordException, SQLException{
 		
@@ -926,4 +980,50 @@ public class TrackIntervalFeatureTest {
 	// 	
 	// }
 	
+	@Test
+	public void canShareIndexedCopyOfUnindexedInput() throws Exception {
+		File cacheDir= Files.createTempDirectory("asciigenome.test.").toFile();
+		cacheDir.deleteOnExit();
+		String cacheDirConfig= Config.get(ConfigKey.cache_dir);
+		Config.set(ConfigKey.cache_dir, cacheDir.getAbsolutePath());
+		try{
+			GenomicCoords gc= new GenomicCoords("chr1:1-1000", 80, null, null);
+			TrackIntervalFeature tif= new TrackIntervalFeature("test_data/overlapped.bed", gc);
+			assertEquals(cacheDir.getAbsoluteFile(), new File(tif.getWorkFilename()).getParentFile());
+			assertTrue(tif.getWorkFilename().endsWith("overlapped.bed.gz"));
+			assertTrue(new File(tif.getWorkFilename() + ".tbi").isFile());
+			
+			// Another track, or another session, uses the same indexed copy
+			long modified= new File(tif.getWorkFilename()).length();
+			TrackIntervalFeature other= new TrackIntervalFeature("test_data/overlapped.bed", gc);
+			assertEquals(tif.getWorkFilename(), other.getWorkFilename());
+			assertEquals(modified, new File(other.getWorkFilename()).length());
+			assertEquals(tif.printToScreen(), other.printToScreen());
+			
+			// Files in use are not evicted
+			TrackIntervalFeature gtf= new TrackIntervalFeature("test_data/hg19_genes_head.gtf", gc);
+			assertEquals(2, TabixFileCache.listCached(cacheDir).length);
+			TabixFileCache.evict(cacheDir, 0, new File(gtf.getWorkFilename()));
+			assertTrue(new File(tif.getWorkFilename()).exists());
+			
+			// Closed and not used for a while
+			tif.close();
+			other.close();
+			new File(tif.getWorkFilename()).setLastModified(System.currentTimeMillis() - 2 * CacheFiles.RECENT_MILLIS);
+			TabixFileCache.evict(cacheDir, 0, new File(gtf.getWorkFilename()));
+			assertTrue( ! new File(tif.getWorkFilename()).exists());
+			assertTrue( ! new File(tif.getWorkFilename() + ".tbi").exists());
+			assertTrue(new File(gtf.getWorkFilename()).exists());
+			gtf.close();
+			
+			// Disable caching
+			Config.set(ConfigKey.tabix_cache_mb, "0");
+			tif= new TrackIntervalFeature("test_data/overlapped.bed", gc);
+			assertTrue( ! new File(tif.getWorkFilename()).getParentFile().equals(cacheDir.getAbsoluteFile()));
+		} finally {
+			Config.set(ConfigKey.tabix_cache_mb, "2000");
+			Config.set(ConfigKey.cache_dir, cacheDirConfig);
+		}
+	}
+	
 }
@@ -4,9 +4,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -22,12 +25,14 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Stopwatch;
 
 import coloring.Config;
+import coloring.ConfigKey;
 import exceptions.InvalidColourException;
 import exceptions.InvalidConfigException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
 import htsjdk.samtools.filter.MappingQualityFilter;
 import htsjdk.samtools.filter.SamRecordFilter;
+import htsjdk.samtools.util.IntervalTree;
 import samTextViewer.GenomicCoords;
 
 public class TrackPileupTest {
@@ -62,6 +67,20 @@ public class TrackPileupTest {
 		tr.reload();
 	}   
     
+	@Test
+	public void canCountPileupCacheHits() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException{
+		GenomicCoords gc= new GenomicCoords("chr7:5566779-5566879", 80, null, null);
+		TrackPileup tc= new TrackPileup("test_data/ds051.short.bam", gc);
+		assertEquals(0, tc.getPileupCacheHits());
+		long misses= tc.getPileupCacheMisses();
+		assertTrue(misses > 0);
+
+		// Back to a visited window: All tiles are in cache
+		tc.setGc(new GenomicCoords("chr7:5566879-5566979", 80, null, null));
+		tc.setGc(gc);
+		assertTrue(tc.getPileupCacheHits() > 0);
+	}
+
 	@Test
 	public void canPrintConsensusSequence() throws InvalidGenomicCoordsException, IOException, ClassNotFoundException, InvalidRecordException, SQLException, InvalidColourException{
 
@@ -292,6 +311,34 @@ public class TrackPileupTest {
 		// assertTrue(tr.getTitle().contains("4/22"));
 	}
 
+	@Test
+	public void canFindGapsInVisitedIntervals(){
+		
+		IntervalTree<Object> visited= new IntervalTree<Object>();
+		assertEquals("[1-100]", gapsToString(PileupTileCache.findGaps(visited, 1, 100)));
+
+		visited.put(50, 59, null);
+		visited.put(10, 19, null);
+		visited.put(20, 29, null);
+		assertEquals("[1-9, 30-49, 60-100]", gapsToString(PileupTileCache.findGaps(visited, 1, 100)));
+		assertEquals("[30-49]", gapsToString(PileupTileCache.findGaps(visited, 15, 55)));
+		assertEquals("[]", gapsToString(PileupTileCache.findGaps(visited, 10, 29)));
+		assertEquals("[30-30]", gapsToString(PileupTileCache.findGaps(visited, 30, 30)));
+
+		// A large visited interval has no gaps
+		visited= new IntervalTree<Object>();
+		visited.put(1, 1000000, null);
+		assertEquals("[]", gapsToString(PileupTileCache.findGaps(visited, 1, 1000000)));
+	}
+	
+	private static String gapsToString(List<int[]> gaps){
+		List<String> x= new ArrayList<String>();
+		for(int[] gap : gaps){
+			x.add(gap[0] + "-" + gap[1]);
+		}
+		return x.toString();
+	}
+	
 	@Test
 	public void canMergePositionsIntoIntervals(){
 		
@@ -338,6 +385,221 @@ public class TrackPileupTest {
 		TrackPileup.mergePositionsInIntervals(bigList);
 	}
 	
+	@Test
+	public void canEstimateCoverageFromIndexInLargeWindow() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException, InvalidColourException{
+		GenomicCoords gc= new GenomicCoords("chr7:1-10000000", 100, null, null);
+		TrackPileup tr= new TrackPileup("test_data/ds051.actb.bam", gc);
+		tr.setNoFormat(true);
+		assertTrue(tr.getTitle().contains("estimated from index"));
+
+		// Reads are all around ACTB at chr7:5.52-5.61 Mb so only the columns there have coverage
+		List<Float> scores= tr.getScreenScores();
+		int maxIdx= scores.indexOf(Collections.max(scores));
+		int actbIdx= (int)Math.rint(5566000 / 100000.0);
+		assertTrue(scores.get(maxIdx) > 0);
+		assertTrue(Math.abs(maxIdx - actbIdx) <= 1);
+		assertEquals(0, scores.get(10), 0.001);
+		assertEquals(0, scores.get(90), 0.001);
+		
+		// Small windows still read the records
+		gc= new GenomicCoords("chr7:5566736-5566856", 80, null, null);
+		tr.setGc(gc);
+		assertTrue( ! tr.getTitle().contains("estimated from index"));
+	}
+
+	@Test
+	public void canCollectCoverageInParallelChunks() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException{
+		// Wide window: Split between threads, if more than one core is available
+		GenomicCoords gc= new GenomicCoords("chr7:5520001-5620000", 100, null, null);
+		TrackPileup tr= new TrackPileup("test_data/ds051.actb.bam", gc);
+		Map<Integer, Integer> wide= tr.getDepth("chr7", 5520001, 5620000);
+
+		// Same positions collected in small windows
+		int n= 0;
+		for(int from= 5520001; from <= 5620000; from += 10000){
+			gc= new GenomicCoords("chr7:" + from + "-" + (from + 9999), 100, null, null);
+			tr= new TrackPileup("test_data/ds051.actb.bam", gc);
+			Map<Integer, Integer> narrow= tr.getDepth("chr7", from, from + 9999);
+			for(int pos : narrow.keySet()){
+				assertEquals(narrow.get(pos), wide.get(pos));
+				n++;
+			}
+		}
+		assertEquals(n, wide.size());
+	}
+
+	@Test
+	public void canEvictLeastRecentlyUsedTiles(){
+		int size= PileupTileCache.TILE_SIZE;
+		long tileBytes= new PileupAccumulator(1, size).getSizeInBytes();
+		PileupTileCache cache= new PileupTileCache(2 * tileBytes);
+
+		// Fill two tiles, one miss each
+		assertEquals(1, cache.getMissingTiles("chr1", 10, 20).size());
+		cache.put("chr1", new PileupAccumulator(1, size));
+		assertEquals(1, cache.getMissingTiles("chr1", size + 10, size + 20).size());
+		cache.put("chr1", new PileupAccumulator(size + 1, 2 * size));
+		assertEquals(2, cache.getMisses());
+		
+		// Back to the first tile: a hit, and the second tile becomes the least recently used
+		assertEquals(0, cache.getMissingTiles("chr1", 10, 20).size());
+		assertEquals(1, cache.get("chr1", 10, 20).size());
+		assertEquals(1, cache.getHits());
+		
+		// A third tile evicts the second
+		cache.put("chr2", new PileupAccumulator(1, size));
+		cache.evict("chr2", 1, 10);
+		assertEquals(2 * tileBytes, cache.getSizeInBytes());
+		assertEquals(0, cache.getMissingTiles("chr1", 10, 20).size());
+		assertEquals(1, cache.getMissingTiles("chr1", size + 10, size + 20).size());
+		
+		// Tiles in the current window are kept even if over budget
+		cache.put("chr1", new PileupAccumulator(size + 1, 2 * size));
+		cache.evict("chr1", 1, 2 * size);
+		assertEquals(2, cache.get("chr1", 1, 2 * size).size());
+		assertEquals(0, cache.get("chr2", 1, 10).size());
+		
+		// A window fits if its tiles are within budget
+		assertTrue(cache.canHold(1, 2 * size));
+		assertTrue( ! cache.canHold(1, 2 * size + 1));
+
+		// Only aligned tiles can be cached
+		boolean pass= false;
+		try{
+			cache.put("chr1", new PileupAccumulator(10, 100));
+		} catch(IllegalArgumentException e){
+			pass= true;
+		}
+		assertTrue(pass);
+	}
+
+	@Test
+	public void canReloadCoverageCacheOfModifiedFile() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException, InvalidColourException{
+		File cacheDir= Files.createTempDirectory("asciigenome.test.").toFile();
+		cacheDir.deleteOnExit();
+		File dir= Files.createTempDirectory("asciigenome.test.").toFile();
+		dir.deleteOnExit();
+		File bam= new File(dir, "ds051.actb.bam");
+		File bai= new File(dir, "ds051.actb.bam.bai");
+		Files.copy(new File("test_data/ds051.actb.bam").toPath(), bam.toPath());
+		Files.copy(new File("test_data/ds051.actb.bam.bai").toPath(), bai.toPath());
+		bam.deleteOnExit();
+		bai.deleteOnExit();
+
+		Config.set(ConfigKey.cache_dir, cacheDir.getAbsolutePath());
+		Config.set(ConfigKey.coverage_cache, "true");
+		try{
+			GenomicCoords gc= new GenomicCoords("chr7:5566779-5566879", 80, null, null);
+			TrackPileup tr= new TrackPileup(bam.getAbsolutePath(), gc);
+			BamCoveragePyramid before= tr.getCoveragePyramid();
+
+			// A modified file has a new cache and the old one is released
+			bam.setLastModified(bam.lastModified() - 60000);
+			tr.reload();
+			assertTrue( ! before.getCacheFile().equals(tr.getCoveragePyramid().getCacheFile()));
+			assertTrue( ! CacheFiles.isInUse(before.getCacheFile()));
+			tr.close();
+		} finally {
+			Config.set(ConfigKey.coverage_cache, "false");
+			for(File f : cacheDir.listFiles()){
+				f.delete();
+			}
+		}
+	}
+
+	@Test
+	public void canReloadIndexCoverageOfModifiedFile() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException, InvalidColourException{
+		File cacheDir= Files.createTempDirectory("asciigenome.test.").toFile();
+		cacheDir.deleteOnExit();
+		File sam= new File(cacheDir, "ds051.noindex.sam");
+		Files.copy(new File("test_data/ds051.noindex.sam").toPath(), sam.toPath());
+		sam.deleteOnExit();
+
+		Config.set(ConfigKey.cache_dir, cacheDir.getAbsolutePath());
+		try{
+			GenomicCoords gc= new GenomicCoords("chr7:1-10000000", 100, null, null);
+			TrackPileup tr= new TrackPileup(sam.getAbsolutePath(), gc);
+			BamIndexCoverage before= tr.getIndexCoverage();
+			assertTrue(before != null);
+
+			// The sorted copy of the modified file is a new file and so is its estimator
+			sam.setLastModified(sam.lastModified() - 60000);
+			tr.reload();
+			assertTrue(tr.getIndexCoverage() != null);
+			assertTrue(before != tr.getIndexCoverage());
+			tr.setNoFormat(true);
+			assertTrue(tr.getTitle().contains("estimated from index"));
+			tr.close();
+		} finally {
+			for(File f : cacheDir.listFiles()){
+				f.delete();
+			}
+		}
+	}
+
+	@Test
+	public void canEstimateWindowOverPileupCacheBudget() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException, InvalidColourException{
+		GenomicCoords gc= new GenomicCoords("chr7:5500001-5700000", 100, null, null);
+		TrackPileup tr= new TrackPileup("test_data/ds051.actb.bam", gc);
+		tr.setNoFormat(true);
+		assertTrue( ! tr.getTitle().contains("estimated from index"));
+		tr.close();
+
+		// The tiles of this window take more than 1 MB: Do not read them
+		Config.set(ConfigKey.pileup_cache_mb, "1");
+		try{
+			tr= new TrackPileup("test_data/ds051.actb.bam", gc);
+			tr.setNoFormat(true);
+			assertTrue(tr.getTitle().contains("estimated from index"));
+			tr.close();
+		} finally {
+			Config.set(ConfigKey.pileup_cache_mb, "128");
+		}
+	}
+
+	@Test
+	public void canServeCoverageFromCache() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException, InvalidColourException, InterruptedException{
+		File cacheDir= Files.createTempDirectory("asciigenome.test.").toFile();
+		cacheDir.deleteOnExit();
+
+		// Coverage from the records, no cache
+		GenomicCoords gc= new GenomicCoords("chr7:5500001-5700000", 100, null, null);
+		TrackPileup tr= new TrackPileup("test_data/ds051.actb.bam", gc);
+		List<Float> expected= tr.getScreenScores();
+
+		Config.set(ConfigKey.cache_dir, cacheDir.getAbsolutePath());
+		Config.set(ConfigKey.coverage_cache, "true");
+		try{
+			tr= new TrackPileup("test_data/ds051.actb.bam", gc);
+			// Wait for the background job to write the cache
+			FilenameFilter isCache= new FilenameFilter(){
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".coverage");
+				}};
+			for(int i= 0; i < 100 && cacheDir.listFiles(isCache).length == 0; i++){
+				Thread.sleep(100);
+			}
+			assertEquals(1, cacheDir.listFiles(isCache).length);
+			tr= new TrackPileup("test_data/ds051.actb.bam", gc);
+			List<Float> cached= tr.getScreenScores();
+			assertEquals(expected.size(), cached.size());
+			for(int i= 0; i < expected.size(); i++){
+				if(expected.get(i).isNaN()){
+					assertTrue(cached.get(i).isNaN());
+				} else {
+					// Bins are not aligned to screen columns so there is some difference
+					assertEquals(expected.get(i), cached.get(i), expected.get(i) * 0.1);
+				}
+			}
+		} finally {
+			Config.set(ConfigKey.coverage_cache, "false");
+			for(File f : cacheDir.listFiles()){
+				f.delete();
+			}
+		}
+	}
+
 	@Test
 	public void canCollectCoverageAtOnePos() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException{
 		GenomicCoords gc= new GenomicCoords("chr7:5588536-5588536", 80, null, null);
@@ -5,8 +5,10 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -173,6 +175,40 @@ public class TrackReadsTest {
 			
 	}
 	
+	@Test
+	public void canStackReadsInFirstFreeLine() throws Exception{
+		GenomicCoords gc= new GenomicCoords("chr7:1-80", 80, null, null);
+		TrackReads tr= new TrackReads("test_data/pairs.sam", gc);
+		tr.setNoFormat(true);
+		// Each read goes to the first line where it is at least one space apart from the previous read
+		List<String> expected= new ArrayList<String>();
+		expected.add("NANAN  gcgcgcgcgc  ntntn        ggggg  CCCCCCCCCC          cccccccccc");
+		expected.add("AAAAAAAAAA  GGGGG  aaaaaaaaaa     NNN  CCCCCCCCCC");
+		expected.add("TTTTT                                  TTTTTTTTTT");
+		expected.add("ATATATATAT                             gggggg");
+		expected.add("                                         aaaaaa");
+		assertEquals(expected, trimLines(tr.printToScreen()));
+
+		// Same with pairs: Overlapping and contained mates make a single fragment, 
+		// mates not in the window or not properly paired stay single 
+		tr.setReadsAsPairs(true);
+		expected.clear();
+		expected.add("NANAN       GGGGG~~~~~~~~~~~~~~~ggggg  CCCCCCCCCC~~~~~~~~~~cccccccccc");
+		expected.add("AAAAAAAAAA~~~~~~~~~aaaaaaaaaa     NNN  CCaaaaaaCC");
+		expected.add("TTTTT              ntntn               ggggggTTTT");
+		expected.add("ATATATAgcgcgcgcgc");
+		assertEquals(expected, trimLines(tr.printToScreen()));
+	}
+
+	/** Lines of the printed track without trailing spaces */
+	private static List<String> trimLines(String printable){
+		List<String> lines= new ArrayList<String>();
+		for(String line : printable.split("\n")){
+			lines.add(line.replaceAll("\\s+$", ""));
+		}
+		return lines;
+	}
+
 	@Test
 	public void canReturnReadsAsRawStrings() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException{
 		GenomicCoords gc= new GenomicCoords("chr7:5566000-5567000", 80, null, null);
@@ -329,6 +365,48 @@ public class TrackReadsTest {
 		assertTrue(tr.getTitle().contains("2436"));
 	}
 	
+	@Test
+	public void canDownsampleReads() throws Exception{
+		GenomicCoords gc= new GenomicCoords("chr7:5566000-5567000", 80, null, null);
+		Config.set(ConfigKey.max_reads_in_stack, "50");
+		try{
+			TrackReads tr= new TrackReads("test_data/ds051.actb.bam", gc);
+			tr.setNoFormat(true);
+			tr.setyMaxLines(1000);
+			// All reads are counted, not only the sampled ones
+			assertTrue(tr.getTitle().contains("Reads: 1257"));
+			List<String> sample= tr.getRecordsAsStrings();
+			assertTrue(sample.size() <= 50);
+			assertTrue(sample.size() > 40);
+
+			// Same sample at each update
+			tr.update();
+			assertEquals(sample, tr.getRecordsAsStrings());
+		} finally {
+			Config.set(ConfigKey.max_reads_in_stack, "2000");
+		}
+	}
+
+	@Test
+	public void canMoveWindowReadingOnlyNewSlice() throws Exception{
+		GenomicCoords gc= new GenomicCoords("chr7:5566701-5566800", 80, null, null);
+		TrackReads tr= new TrackReads("test_data/ds051.actb.bam", gc);
+
+		// Move right and left by less than the window size, then jump: Same reads as reading the window from scratch
+		String[] regions= {"chr7:5566751-5566850", "chr7:5566721-5566820", "chr7:5566801-5566900", "chr7:5566601-5566700"};
+		for(String region : regions){
+			gc= new GenomicCoords(region, 80, null, null);
+			tr.setGc(gc);
+			TrackReads expected= new TrackReads("test_data/ds051.actb.bam", gc);
+			assertEquals(expected.getTitle(), tr.getTitle());
+			List<String> reads= tr.getRecordsAsStrings();
+			List<String> expectedReads= expected.getRecordsAsStrings();
+			Collections.sort(reads);
+			Collections.sort(expectedReads);
+			assertEquals(expectedReads, reads);
+		}
+	}
+
 	@Test
 	public void canGetTitle() throws InvalidGenomicCoordsException, InvalidColourException, IOException, ClassNotFoundException, InvalidRecordException, SQLException{
 		String bam= "test_data/adjacent.bam";
@@ -429,4 +507,53 @@ public class TrackReadsTest {
 		assertEquals("", tr.printToScreen());
 	}
 	
+	@Test
+	public void canShareSortedCopyOfUnindexedInput() throws Exception {
+		File cacheDir= Files.createTempDirectory("asciigenome.test.").toFile();
+		cacheDir.deleteOnExit();
+		String cacheDirConfig= Config.get(ConfigKey.cache_dir);
+		Config.set(ConfigKey.cache_dir, cacheDir.getAbsolutePath());
+		try{
+			GenomicCoords gc= new GenomicCoords("chr7:1-80", 80, null, null);
+			TrackReads tr= new TrackReads("test_data/pairs.sam", gc);
+			assertEquals(cacheDir.getAbsoluteFile(), new File(tr.getWorkFilename()).getParentFile());
+	
+			// Another track, or another session, uses the same sorted copy
+			TrackPileup tp= new TrackPileup("test_data/pairs.sam", gc);
+			assertEquals(tr.getWorkFilename(), tp.getWorkFilename());
+			
+			// Files in use are not evicted
+			TrackReads other= new TrackReads("test_data/variant_reads.sam", gc);
+			assertEquals(2, SortedBamCache.listCached(cacheDir).length);
+			SortedBamCache.evict(cacheDir, 0, new File(other.getWorkFilename()));
+			assertTrue(new File(tr.getWorkFilename()).exists());
+			assertTrue(new File(other.getWorkFilename()).exists());
+	
+			// Still in use by the pileup track
+			tr.close();
+			SortedBamCache.evict(cacheDir, 0, new File(other.getWorkFilename()));
+			assertTrue(new File(tr.getWorkFilename()).exists());
+	
+			// Not in use in this session but recently used, possibly by another session
+			tp.close();
+			SortedBamCache.evict(cacheDir, 0, new File(other.getWorkFilename()));
+			assertTrue(new File(tr.getWorkFilename()).exists());
+	
+			// Not used for a while
+			new File(tr.getWorkFilename()).setLastModified(System.currentTimeMillis() - 2 * CacheFiles.RECENT_MILLIS);
+			SortedBamCache.evict(cacheDir, 0, new File(other.getWorkFilename()));
+			assertTrue( ! new File(tr.getWorkFilename()).exists());
+			assertTrue( ! SortedBamCache.getIndex(new File(tr.getWorkFilename())).exists());
+			assertTrue(new File(other.getWorkFilename()).exists());
+			other.close();
+			
+			// Disable caching
+			Config.set(ConfigKey.sorted_bam_cache_mb, "0");
+			tr= new TrackReads("test_data/pairs.sam", gc);
+			assertTrue( ! new File(tr.getWorkFilename()).getParentFile().equals(cacheDir.getAbsoluteFile()));
+		} finally {
+			Config.set(ConfigKey.sorted_bam_cache_mb, "2000");
+			Config.set(ConfigKey.cache_dir, cacheDirConfig);
+		}
+	}
 }
@@ -1,23 +1,35 @@
 package tracks;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.broad.igv.bbfile.BBFileReader;
 import org.broad.igv.bbfile.BigWigIterator;
+import org.broad.igv.tdf.TDFReader;
 import org.junit.Before;
 import org.junit.Test;
 
 import coloring.Config;
+import coloring.ConfigKey;
 import exceptions.InvalidColourException;
 import exceptions.InvalidConfigException;
 import exceptions.InvalidGenomicCoordsException;
 import exceptions.InvalidRecordException;
 import samTextViewer.GenomicCoords;
+import samTextViewer.Utils;
 
 public class TrackWigglesTest {
 
@@ -71,6 +83,78 @@ public class TrackWigglesTest {
 	// 	reader.close();
 	// }
 	
+	@Test
+	public void canChooseTdfDataset() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException{
+		// Bins of the zoom datasets of chr7 in this file are 226887 bp at z0, halved at each level
+		// down to 1772 bp at z7
+		String tdf= "test_data/hg18_var_sample.wig.v2.1.30.tdf";
+		TrackWiggles tw= new TrackWiggles(tdf, new GenomicCoords("chr7:1-400000", 100, null, null), 4);
+		TDFReader reader= tw.getTdfReader();
+		assertEquals("/chr7/z6/mean", tw.getTdfDatasetName(reader, "chr7", 1, 400000, 4000));
+		assertEquals("/chr7/z0/mean", tw.getTdfDatasetName(reader, "chr7", 1, 40000000, 400000));
+		// No zoom dataset fine enough
+		assertEquals("/chr7/raw", tw.getTdfDatasetName(reader, "chr7", 170001, 180000, 100));
+		assertNull(tw.getTdfDatasetName(reader, "chrFoo", 1, 400000, 4000));
+		tw.close();
+	}
+
+	@Test
+	public void canReuseTdfReader() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException{
+		String tdf= "test_data/hg18_var_sample.wig.v2.1.30.tdf";
+		TrackWiggles tw= new TrackWiggles(tdf, new GenomicCoords("chr7:1-400000", 100, null, null), 4);
+		TDFReader reader= tw.getTdfReader();
+		tw.setGc(new GenomicCoords("chr7:400001-800000", 100, null, null));
+		tw.setGc(new GenomicCoords("chr7:1-40000000", 100, null, null));
+		assertSame(reader, tw.getTdfReader());
+		// A new reader once closed
+		tw.close();
+		assertNotSame(reader, tw.getTdfReader());
+		tw.close();
+	}
+
+	@Test
+	public void canChooseBigWigZoomLevel() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException{
+		// Reduction levels of this file are 163840, 655360, 2621440 bp and so on
+		String bw= "test_data/wgEncodeCaltechRnaSeqGm12878R2x75Il400SigRep2V2.sample.bigWig";
+		BBFileReader reader= new BBFileReader(bw);
+
+		// 10 kb per column: Data at base resolution
+		TrackWiggles tw= new TrackWiggles(bw, new GenomicCoords("chr9:1-1000000", 100, null, null), 4);
+		assertEquals(0, tw.getBigWigZoomLevel(reader));
+
+		// 200 kb per column
+		tw.setGc(new GenomicCoords("chr9:1-20000000", 100, null, null));
+		assertEquals(1, tw.getBigWigZoomLevel(reader));
+
+		// 1 Mb per column
+		tw.setGc(new GenomicCoords("chr9:1-100000000", 100, null, null));
+		assertEquals(2, tw.getBigWigZoomLevel(reader));
+		reader.close();
+		tw.close();
+	}
+
+	@Test
+	public void canReadBigWigZoomLevelSummaries() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException{
+		// Means over bases of the data in chr9:1-200000 and chr9:1-1000000 are 566/24 and 1177/321 
+		// and the zoom summaries in these intervals give the same values.
+		String bw= "test_data/wgEncodeCaltechRnaSeqGm12878R2x75Il400SigRep2V2.sample.bigWig";
+
+		// Base resolution: One item at chr9:15077 in this window
+		TrackWiggles tw= new TrackWiggles(bw, new GenomicCoords("chr9:15001-15100", 100, null, null), 4);
+		assertEquals(232, tw.getScreenScores().get(76), 0.001);
+		assertTrue(tw.getScreenScores().get(0).isNaN());
+		assertTrue(tw.getScreenScores().get(77).isNaN());
+
+		// Zoom level 1
+		tw.setGc(new GenomicCoords("chr9:1-20000000", 100, null, null));
+		assertEquals(566 / 24.0, tw.getScreenScores().get(0), 0.001);
+
+		// Zoom level 2
+		tw.setGc(new GenomicCoords("chr9:1-100000000", 100, null, null));
+		assertEquals(1177 / 321.0, tw.getScreenScores().get(0), 0.001);
+		tw.close();
+	}
+
 	@Test
 	public void canGetDataColumnIndexForBedGraph() throws IOException, NoSuchAlgorithmException, InvalidGenomicCoordsException, InvalidRecordException, ClassNotFoundException, SQLException{
 		String url= "test_data/test.bedGraph";
@@ -181,4 +265,159 @@ public class TrackWigglesTest {
 		assertTrue(rpm > raw);
 	}
 		
+	@Test
+	public void canServeBedGraphFromCache() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException, InvalidColourException{
+		File cacheDir= Files.createTempDirectory("asciigenome.test.").toFile();
+		cacheDir.deleteOnExit();
+
+		GenomicCoords gc= new GenomicCoords("chr1:1-30", 80, null, null);
+		TrackWiggles tw= new TrackWiggles("test_data/dataCol.bedGraph", gc, 5);
+		List<Float> expected= tw.getScreenScores();
+
+		Config.set(ConfigKey.cache_dir, cacheDir.getAbsolutePath());
+		Config.set(ConfigKey.bedgraph_cache, "true");
+		try{
+			BedGraphPyramid pyramid= new BedGraphPyramid("test_data/dataCol.bedGraph", "test_data/dataCol.bedGraph", cacheDir);
+			assertTrue( ! pyramid.isReady());
+			pyramid.build();
+			assertTrue(pyramid.isReady());
+			assertTrue(pyramid.getCacheFile().isFile());
+			// Zoomed in, scores are the same as from the bedGraph file
+			assertEquals(expected, pyramid.getScores("chr1", gc.getFrom(), gc.getTo(), 5, gc.getScreenMapping()));
+			pyramid.close();
+			// An existing cache is ready when opened
+			tw= new TrackWiggles("test_data/dataCol.bedGraph", gc, 5);
+			assertEquals(expected, tw.getScreenScores());
+
+			// Zoomed out, scores are the mean over bases
+			File bdg= new File(cacheDir, "zoom.bedGraph");
+			Files.write(bdg.toPath(), Arrays.asList("chr1\t0\t500000\t2", "chr1\t500000\t505000\t4", 
+					"chr1\t505000\t505010\t1000", "chr1\t505010\t1000000\t4", "chr1\t2000000\t3000000\tnan"), StandardCharsets.UTF_8);
+			pyramid= new BedGraphPyramid(bdg.getAbsolutePath(), bdg.getAbsolutePath(), cacheDir);
+			pyramid.build();
+			assertTrue(pyramid.isReady());
+			gc= new GenomicCoords("chr1:1-1000000", 100, null, null);
+			List<Float> zoom= pyramid.getScores("chr1", gc.getFrom(), gc.getTo(), 4, gc.getScreenMapping());
+			assertEquals(2, zoom.get(0), 0.01);
+			assertEquals(4, zoom.get(99), 0.01);
+			float mean= 0;
+			for(float x : zoom){
+				mean += x / zoom.size();
+			}
+			assertEquals(3, mean, 0.05);
+			// A short record weighs by its bases: (4 * 5000 + 1000 * 10 + 4 * 4990) / 10000
+			// up to the bins straddling the column edges
+			assertEquals(4.996, zoom.get(50), 0.1);
+
+			// Same scores without cache
+			Config.set(ConfigKey.bedgraph_cache, "false");
+			List<Float> plain= new TrackWiggles(bdg.getAbsolutePath(), gc, 4).getScreenScores();
+			assertEquals(4.996, plain.get(50), 0.02);
+			for(int i= 0; i < zoom.size(); i++){
+				assertEquals(plain.get(i), zoom.get(i), 0.1);
+			}
+			gc= new GenomicCoords("chr1:2000001-3000000", 100, null, null);
+			assertTrue(pyramid.getScores("chr1", gc.getFrom(), gc.getTo(), 4, gc.getScreenMapping()).get(50).isNaN());
+		} finally {
+			Config.set(ConfigKey.bedgraph_cache, "false");
+			for(File f : cacheDir.listFiles()){
+				f.delete();
+			}
+		}
+	}
+
+	@Test
+	public void canReloadUnindexedBedGraph() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException, InvalidColourException{
+		File cacheDir= Files.createTempDirectory("asciigenome.test.").toFile();
+		cacheDir.deleteOnExit();
+		File bdg= new File(cacheDir, "reload.bedGraph");
+		Files.write(bdg.toPath(), Arrays.asList("chr1\t0\t10\t2"), StandardCharsets.UTF_8);
+
+		Config.set(ConfigKey.cache_dir, cacheDir.getAbsolutePath());
+		Config.set(ConfigKey.bedgraph_cache, "true");
+		try{
+			GenomicCoords gc= new GenomicCoords("chr1:1-10", 80, null, null);
+			TrackWiggles tw= new TrackWiggles(bdg.getAbsolutePath(), gc, 4);
+			assertEquals(2, tw.getScreenScores().get(0), 0.001);
+
+			Files.write(bdg.toPath(), Arrays.asList("chr1\t0\t10\t5"), StandardCharsets.UTF_8);
+			bdg.setLastModified(bdg.lastModified() + 10000);
+			tw.reload();
+			assertEquals(5, tw.getScreenScores().get(0), 0.001);
+
+			// Nothing else holds on to the caches of the reloaded file
+			tw.close();
+			for(File f : cacheDir.listFiles()){
+				assertTrue( ! CacheFiles.isInUse(f));
+			}
+		} finally {
+			Config.set(ConfigKey.bedgraph_cache, "false");
+			for(File f : cacheDir.listFiles()){
+				f.delete();
+			}
+		}
+	}
+
+	/** Expected screen scores with one screen column per base: NaN everywhere except from
+	 * 0-based position start (included) to end (excluded) of each record.
+	 * */
+	private static List<Float> scoresOf(int size, int[][] records, float[] values){
+		List<Float> scores= new ArrayList<Float>();
+		for(int i= 0; i < size; i++){
+			scores.add(Float.NaN);
+		}
+		for(int r= 0; r < records.length; r++){
+			for(int i= records[r][0]; i < records[r][1]; i++){
+				scores.set(i, values[r]);
+			}
+		}
+		return scores;
+	}
+
+	@Test
+	public void canSwitchDataColumn() throws ClassNotFoundException, IOException, InvalidGenomicCoordsException, InvalidRecordException, SQLException, InvalidColourException{
+		// One screen column per base
+		GenomicCoords gc= new GenomicCoords("chr1:1-30", 30, null, null);
+		int[][] records= new int[][] {{0, 1}, {5, 10}, {15, 20}, {20, 21}, {21, 22}};
+		List<Float> col4= scoresOf(30, records, new float[] {1, -1, 5, 1, -5});
+		List<Float> col5= scoresOf(30, records, new float[] {0, 1, 2, 3, 4});
+		List<Float> col6= scoresOf(30, records, new float[] {10, 20, 10, 20, 30});
+		// Non numeric values are skipped
+		List<Float> col7= scoresOf(30, records, new float[] {10, 9, 8, Float.NaN, Float.NaN});
+
+		TrackWiggles tw= new TrackWiggles("test_data/dataCol.bedGraph", gc, 4);
+		assertEquals(col4, tw.getScreenScores());
+		tw.setBdgDataColIdx(5);
+		assertEquals(col5, tw.getScreenScores());
+		tw.setBdgDataColIdx(7);
+		assertEquals(col7, tw.getScreenScores());
+		tw.setBdgDataColIdx(6);
+		assertEquals(col6, tw.getScreenScores());
+		// Range of all the data columns, whichever is shown
+		assertEquals(Arrays.asList(-5f, 30f), Arrays.asList(tw.getYRangeOfDataColumns()));
+
+		// Same scores and range when served from the bedGraph cache
+		File cacheDir= Files.createTempDirectory("asciigenome.test.").toFile();
+		cacheDir.deleteOnExit();
+		Config.set(ConfigKey.cache_dir, cacheDir.getAbsolutePath());
+		Config.set(ConfigKey.bedgraph_cache, "true");
+		try{
+			BedGraphPyramid pyramid= new BedGraphPyramid("test_data/dataCol.bedGraph", "test_data/dataCol.bedGraph", cacheDir);
+			pyramid.build();
+			pyramid.close();
+			tw= new TrackWiggles("test_data/dataCol.bedGraph", gc, 7);
+			assertEquals(col7, tw.getScreenScores());
+			assertEquals(Arrays.asList(-5f, 30f), Arrays.asList(tw.getYRangeOfDataColumns()));
+			tw.setBdgDataColIdx(4);
+			assertEquals(col4, tw.getScreenScores());
+			assertEquals(Arrays.asList(-5f, 30f), Arrays.asList(tw.getYRangeOfDataColumns()));
+			tw.close();
+		} finally {
+			Config.set(ConfigKey.bedgraph_cache, "false");
+			for(File f : cacheDir.listFiles()){
+				f.delete();
+			}
+		}
+	}
+
 }